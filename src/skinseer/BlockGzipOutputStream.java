@@ -0,0 +1,439 @@
+// Parallel block gzip output.
+// Output is cut into blocks that are compressed independently on worker
+// threads, each into a complete gzip member, and written in order, so the
+// file is a valid multi-member gzip stream (gunzip, zcat and
+// GZIPInputStream read it whole) and compression bandwidth scales with
+// the threads. Blocks in flight are bounded, so memory is too. Text
+// (line-aligned) output is cut only at line ends, so each member starts
+// at a row.
+//
+// An index, written alongside as <file>.idx, allows random access: one
+// member can be decompressed without the ones before it.
+// Binary: magic, block count (int), total uncompressed bytes (long), then
+// per block compressed offset, uncompressed offset and first line
+// (long, -1 if not line-aligned), all big-endian.
+
+package skinseer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class BlockGzipOutputStream extends OutputStream
+{
+   // Index file identifier.
+   public static final int MAGIC = 0x53534249;
+
+   // Compressed file and index suffixes.
+   public static final String SUFFIX       = ".gz";
+   public static final String INDEX_SUFFIX = ".idx";
+
+   // Default block size (uncompressed bytes).
+   public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+   // Compression threads for files opened by name (see open).
+   public static int compressThreads = Runtime.getRuntime().availableProcessors();
+
+   // Block: uncompressed data, then compressed member and line count.
+   static class Block
+   {
+      byte[] data;
+      int    length;
+      byte[] member;
+      long   lines;
+   }
+
+   // Output file and index file name.
+   OutputStream output;
+   String       indexFilename;
+
+   // Cut blocks at line ends?
+   boolean lineAligned;
+
+   // Current block, spare blocks, and blocks being compressed, in order.
+   int                        blockSize;
+   Block                      block;
+   ArrayDeque<Block>          spareBlocks;
+   ArrayDeque<Future<Block> > compressing;
+   int                        maxCompressing;
+   ExecutorService            executor;
+
+   // Index: per written block compressed offset, uncompressed offset and
+   // first line; and the totals.
+   ArrayList<long[]> index;
+   long              compressedBytes;
+   long              uncompressedBytes;
+   long              lines;
+
+   // Constructor.
+   // Compresses with the given threads (1 for the calling thread only).
+   public BlockGzipOutputStream(String filename, boolean lineAligned, int threads, int blockSize) throws IOException
+   {
+      output           = new FileOutputStream(filename);
+      indexFilename    = filename + INDEX_SUFFIX;
+      this.lineAligned = lineAligned;
+      this.blockSize   = blockSize;
+      spareBlocks      = new ArrayDeque<Block>();
+      compressing      = new ArrayDeque<Future<Block> >();
+      maxCompressing   = threads * 2;
+      executor         = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+      block            = newBlock();
+      index            = new ArrayList<long[]>();
+   }
+
+
+   // Open file for output: block gzip if the name ends with .gz (text,
+   // line-aligned, if it is .csv.gz), otherwise a plain file.
+   public static OutputStream open(String filename) throws IOException
+   {
+      if (filename.endsWith(SUFFIX))
+      {
+         return(new BlockGzipOutputStream(filename, baseName(filename).endsWith(".csv"),
+                                          compressThreads, DEFAULT_BLOCK_SIZE));
+      }
+      return(new FileOutputStream(filename));
+   }
+
+
+   // File name without compressed suffix.
+   public static String baseName(String filename)
+   {
+      if (filename.endsWith(SUFFIX))
+      {
+         return(filename.substring(0, filename.length() - SUFFIX.length()));
+      }
+      return(filename);
+   }
+
+
+   // New or spare block.
+   Block newBlock()
+   {
+      Block b = spareBlocks.poll();
+
+      if (b == null)
+      {
+         b      = new Block();
+         b.data = new byte[blockSize];
+      }
+      b.length = 0;
+      b.member = null;
+      return(b);
+   }
+
+
+   @Override
+   public void write(int b) throws IOException
+   {
+      if (block.length == block.data.length)
+      {
+         cut();
+      }
+      block.data[block.length++] = (byte)b;
+   }
+
+
+   @Override
+   public void write(byte[] bytes, int offset, int length) throws IOException
+   {
+      while (length > 0)
+      {
+         if (block.length == block.data.length)
+         {
+            cut();
+         }
+         int n = Math.min(length, block.data.length - block.length);
+         System.arraycopy(bytes, offset, block.data, block.length, n);
+         block.length += n;
+         offset       += n;
+         length       -= n;
+      }
+   }
+
+
+   // Cut full block and compress it, carrying any partial last line
+   // over to the next block. A block without a line end is grown instead.
+   void cut() throws IOException
+   {
+      int end = block.length;
+
+      if (lineAligned)
+      {
+         while ((end > 0) && (block.data[end - 1] != '\n'))
+         {
+            end--;
+         }
+         if (end == 0)
+         {
+            block.data = Arrays.copyOf(block.data, block.data.length * 2);
+            return;
+         }
+      }
+      Block nextBlock = newBlock();
+      int   carry     = block.length - end;
+      if (carry > nextBlock.data.length)
+      {
+         nextBlock.data = new byte[carry * 2];
+      }
+      System.arraycopy(block.data, end, nextBlock.data, 0, carry);
+      nextBlock.length = carry;
+      block.length     = end;
+      compress(block);
+      block = nextBlock;
+   }
+
+
+   // Compress block, on a worker thread if any, writing completed blocks
+   // in order and waiting for the oldest while too many are in flight.
+   void compress(final Block b) throws IOException
+   {
+      if (executor == null)
+      {
+         writeBlock(compressBlock(b));
+         return;
+      }
+      compressing.add(executor.submit(() -> compressBlock(b)));
+      while (compressing.size() > maxCompressing)
+      {
+         writeBlock(result(compressing.poll()));
+      }
+      while ((compressing.size() > 0) && compressing.peek().isDone())
+      {
+         writeBlock(result(compressing.poll()));
+      }
+   }
+
+
+   // Compress block into a gzip member, counting its lines.
+   Block compressBlock(Block b) throws IOException
+   {
+      ByteArrayOutputStream member = new ByteArrayOutputStream(b.length / 4 + 64);
+
+      try (GZIPOutputStream gzip = new GZIPOutputStream(member, 65536))
+         {
+            gzip.write(b.data, 0, b.length);
+         }
+      b.member = member.toByteArray();
+      b.lines  = 0;
+      if (lineAligned)
+      {
+         for (int i = 0; i < b.length; i++)
+         {
+            if (b.data[i] == '\n')
+            {
+               b.lines++;
+            }
+         }
+      }
+      return(b);
+   }
+
+
+   // Compressed block.
+   Block result(Future<Block> future) throws IOException
+   {
+      try
+      {
+         return(future.get());
+      }
+      catch (InterruptedException e)
+      {
+         throw new IOException(e);
+      }
+      catch (ExecutionException e)
+      {
+         throw new IOException(e.getCause());
+      }
+   }
+
+
+   // Write compressed block and index it.
+   void writeBlock(Block b) throws IOException
+   {
+      index.add(new long[] { compressedBytes, uncompressedBytes, lineAligned ? lines : -1 });
+      output.write(b.member);
+      compressedBytes   += b.member.length;
+      uncompressedBytes += b.length;
+      lines             += b.lines;
+      b.member           = null;
+      if (b.data.length == blockSize)
+      {
+         spareBlocks.add(b);
+      }
+   }
+
+
+   // Flush blocks already compressed; the current block stays open, so
+   // flushing does not cut small members.
+   @Override
+   public void flush() throws IOException
+   {
+      while ((compressing.size() > 0) && compressing.peek().isDone())
+      {
+         writeBlock(result(compressing.poll()));
+      }
+      output.flush();
+   }
+
+
+   // Compress the last block, write all blocks, then the index.
+   @Override
+   public void close() throws IOException
+   {
+      if (output == null)
+      {
+         return;
+      }
+      try
+      {
+         // An empty file still gets an (empty) member.
+         if ((block.length > 0) || (index.size() + compressing.size() == 0))
+         {
+            compress(block);
+         }
+         while (compressing.size() > 0)
+         {
+            writeBlock(result(compressing.poll()));
+         }
+         output.close();
+         writeIndex();
+      }
+      finally
+      {
+         if (executor != null)
+         {
+            executor.shutdown();
+         }
+         output = null;
+      }
+   }
+
+
+   // Write index.
+   void writeIndex() throws IOException
+   {
+      try (DataOutputStream indexOutput = new DataOutputStream(
+                                             new BufferedOutputStream(new FileOutputStream(indexFilename))))
+         {
+            indexOutput.writeInt(MAGIC);
+            indexOutput.writeInt(index.size());
+            indexOutput.writeLong(uncompressedBytes);
+            for (long[] entry : index)
+            {
+               indexOutput.writeLong(entry[0]);
+               indexOutput.writeLong(entry[1]);
+               indexOutput.writeLong(entry[2]);
+            }
+         }
+   }
+
+
+   // Read index of file: per block compressed offset, uncompressed offset
+   // and first line.
+   public static long[][] readIndex(String filename) throws IOException
+   {
+      try (DataInputStream input = new DataInputStream(
+                                      new BufferedInputStream(new FileInputStream(filename + INDEX_SUFFIX))))
+         {
+            if (input.readInt() != MAGIC)
+            {
+               throw new IOException("Invalid block gzip index " + filename + INDEX_SUFFIX);
+            }
+            long[][] entries = new long[input.readInt()][3];
+            input.readLong();
+            for (long[] entry : entries)
+            {
+               entry[0] = input.readLong();
+               entry[1] = input.readLong();
+               entry[2] = input.readLong();
+            }
+            return(entries);
+         }
+   }
+
+
+   // Open file at uncompressed offset, decompressing only from the block
+   // holding it.
+   public static InputStream openAtOffset(String filename, long offset) throws IOException
+   {
+      long[][] entries = readIndex(filename);
+      int      i       = 0;
+
+      while ((i + 1 < entries.length) && (entries[i + 1][1] <= offset))
+      {
+         i++;
+      }
+      return(openBlock(filename, entries, i, offset - ((entries.length > 0) ? entries[i][1] : 0)));
+   }
+
+
+   // Open line-aligned file at line (a dataset sample, a profile row),
+   // decompressing only from the block holding it.
+   public static InputStream openAtLine(String filename, long line) throws IOException
+   {
+      long[][] entries = readIndex(filename);
+      int      i       = 0;
+
+      if ((entries.length > 0) && (entries[0][2] == -1))
+      {
+         throw new IOException("Block gzip file " + filename + " is not line-aligned");
+      }
+      while ((i + 1 < entries.length) && (entries[i + 1][2] <= line))
+      {
+         i++;
+      }
+      InputStream input = openBlock(filename, entries, i, 0);
+      for (long skip = line - ((entries.length > 0) ? entries[i][2] : 0); skip > 0; )
+      {
+         int b = input.read();
+         if (b == -1)
+         {
+            break;
+         }
+         if (b == '\n')
+         {
+            skip--;
+         }
+      }
+      return(input);
+   }
+
+
+   // Open file at block, skipping uncompressed bytes into it.
+   static InputStream openBlock(String filename, long[][] entries, int i, long skip) throws IOException
+   {
+      FileInputStream file = new FileInputStream(filename);
+
+      if (entries.length > 0)
+      {
+         file.getChannel().position(entries[i][0]);
+      }
+      InputStream input = new BufferedInputStream(new GZIPInputStream(new BufferedInputStream(file), 65536));
+      while (skip > 0)
+      {
+         long n = input.skip(skip);
+         if (n <= 0)
+         {
+            break;
+         }
+         skip -= n;
+      }
+      return(input);
+   }
+}
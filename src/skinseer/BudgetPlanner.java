@@ -0,0 +1,410 @@
+// Compute budget planner for dataset generation.
+// Runs pilot scans of each nevus distribution at the current photon
+// emission rate and models how photon counters scale with it: a counter's
+// mean grows with the rate, its photon (shot) noise variance with the
+// rate, and its nevus variance with the square of the rate. Each pilot
+// scan is repeated with other photon keys on the same nevus, so the two
+// variances are measured separately. Sample cost is measured as fixed
+// thread CPU time plus photon transport time, which grows with the rate.
+// Nevus variance is hard to resolve in pilots with few counts, so a plan
+// far above the pilot rate should be refined by planning again at it.
+//
+// The plan is the emission rate and dataset size of least projected time
+// that give every signal counter (the counters holding most of a
+// distribution's photons) the target per-sample signal-to-noise ratio
+// and/or give the best counter the target ok/danger separation (Fisher
+// score, see FeatureStatistics), with dataset size enough to estimate
+// each signal counter's mean to the given relative error. Pooled
+// distributions are planned as simulated, so their projection is an
+// upper bound.
+
+package skinseer;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+public class BudgetPlanner
+{
+   // Default relative error of counter means.
+   public static final double DEFAULT_MEAN_ERROR = 0.05;
+
+   // Fraction of a distribution's photons held by its signal counters.
+   public static final double SIGNAL_FRACTION = 0.9;
+
+   // Emission rates searched, as a multiple of the least sufficient rate.
+   public static final int MAX_RATE_FACTOR = 64;
+
+   // Untimed warm-up scans, and rate multiple beyond which to refine.
+   public static final int WARM_UP_SCANS = 5;
+   public static final int REFINE_FACTOR = 4;
+
+   // Pilot measurements of a distribution, at the pilot rate: per counter
+   // mean, nevus variance and shot variance; signal counters; steps
+   // and fixed and photon transport CPU nanoseconds per sample.
+   static class Pilot
+   {
+      double[]  mean;
+      double[]  nevusVariance;
+      double[]  shotVariance;
+      boolean[] signal;
+      int       scanSteps;
+      double    fixedNanos;
+      double    transportNanos;
+   }
+
+   // Generator and pilot scanner.
+   GenClassificationData generator;
+   SkinSeerSim           scanner;
+   CounterRandom         random;
+
+   // Pilot counts by class for separation: statistics of the scans, and
+   // sum of shot variance estimates per counter.
+   FeatureStatistics statistics;
+   double[][]        classShot;
+
+   // Constructor.
+   public BudgetPlanner(GenClassificationData generator)
+   {
+      this.generator = generator;
+      random         = new CounterRandom(generator.randomSeed, 0, CounterRandom.SAMPLE_STREAM);
+      statistics     = new FeatureStatistics(generator.numCounters);
+      classShot      = new double[FeatureStatistics.NUM_CLASSES][generator.numCounters];
+   }
+
+
+   // Run pilots of -datasetSize samples per distribution and print plan.
+   // Return false if the targets cannot be reached.
+   public boolean run(PrintWriter writer)
+   {
+      int     numDistributions = generator.nevusDistributionFrequency.size();
+      int     pilots           = generator.datasetSize;
+      int     pilotRate        = SkinSeerSim.PHOTON_EMISSION_RATE;
+      Pilot[] pilot            = new Pilot[numDistributions];
+
+      writer.println("plan: " + pilots + " pilot samples per distribution, PHOTON_EMISSION_RATE=" + pilotRate +
+                     ", steps=" + generator.steps);
+      scanner              = new SkinSeerSim();
+      scanner.photonTraces = false;
+      scanner.engine       = SkinSeerSim.getEngine(generator.engine);
+
+      // Warm up, then run pilots.
+      for (int i = 0; i < WARM_UP_SCANS; i++)
+      {
+         scan(i, -1, new int[generator.numCounters]);
+      }
+      for (int n = 0; n < numDistributions; n++)
+      {
+         pilot[n] = pilot(n, pilots);
+      }
+
+      // Least rate (multiple of the pilot rate) for the SNR target.
+      double minRate = 1.0 / (double)pilotRate;
+      for (int n = 0; n < numDistributions; n++)
+      {
+         double rate = 0.0;
+         for (int c = 0; c < generator.numCounters; c++)
+         {
+            if (pilot[n].signal[c])
+            {
+               rate = Math.max(rate, generator.planSnr * generator.planSnr * pilot[n].shotVariance[c] /
+                               (pilot[n].mean[c] * pilot[n].mean[c]));
+            }
+         }
+         writer.println("distribution " + n + ": " +
+                        String.format("frequency=%.3f, scan steps=%d, mean photons counted=%.1f, median signal counter SNR=%.2f, " +
+                                      "sample CPU time=%.3f ms (photon transport %.3f ms)",
+                                      generator.nevusDistributionFrequency.get(n), pilot[n].scanSteps,
+                                      sum(pilot[n].mean), medianSnr(pilot[n]),
+                                      (pilot[n].fixedNanos + pilot[n].transportNanos) / 1.0e6,
+                                      pilot[n].transportNanos / 1.0e6));
+         if (generator.planSnr > 0.0)
+         {
+            minRate = Math.max(minRate, rate);
+         }
+      }
+
+      // Least rate for the separation target: any counter may reach it.
+      if (generator.planSeparation > 0.0)
+      {
+         double rate = separationRate(writer);
+         if (rate < 0.0)
+         {
+            writer.flush();
+            return(false);
+         }
+         minRate = Math.max(minRate, rate);
+      }
+
+      // Cheapest rate from the least sufficient one, with the dataset size it needs.
+      int    firstRate = (int)Math.ceil(minRate * (double)pilotRate - 1.0e-9);
+      int    bestRate  = firstRate;
+      long   bestSize  = 0;
+      double bestNanos = Double.MAX_VALUE;
+      for (long r = firstRate; r <= (long)firstRate * MAX_RATE_FACTOR; r = Math.max(r + 1, (long)Math.ceil((double)r * 1.1)))
+      {
+         double rate  = (double)r / (double)pilotRate;
+         long   size  = datasetSize(pilot, rate);
+         double nanos = (double)size * sampleNanos(pilot, rate);
+         if (nanos < bestNanos)
+         {
+            bestRate  = (int)r;
+            bestSize  = size;
+            bestNanos = nanos;
+         }
+      }
+      writer.println("recommendation: PHOTON_EMISSION_RATE=" + bestRate + ", -datasetSize " + bestSize +
+                     String.format(" (counter mean error %.1f%%), projected time %.1f s, %.1f s wall time with %d threads",
+                                   generator.planMeanError * 100.0, bestNanos / 1.0e9,
+                                   bestNanos / 1.0e9 / (double)generator.planThreads, generator.planThreads));
+      int steps = 0;
+      for (Pilot p : pilot)
+      {
+         steps = Math.max(steps, p.scanSteps);
+      }
+      if (steps < generator.steps)
+      {
+         writer.println("note: scans end after at most " + steps + " of " + generator.steps +
+                        " steps; further steps cost nothing");
+      }
+      writer.println("note: wall time assumes samples spread evenly over threads (see -coordinatorPort)");
+      if (bestRate > pilotRate * REFINE_FACTOR)
+      {
+         writer.println("note: pilot counts are low for the plan; plan again with PHOTON_EMISSION_RATE=" + bestRate +
+                        " in the parameter file to refine the dataset size");
+      }
+      writer.flush();
+      return(true);
+   }
+
+
+   // Run pilot samples of distribution n.
+   Pilot pilot(int n, int pilots)
+   {
+      int      numCounters = generator.numCounters;
+      int[]    countsA     = new int[numCounters];
+      int[]    countsB     = new int[numCounters];
+      double[] sum         = new double[numCounters];
+      double[] sumSquares  = new double[numCounters];
+      Pilot    pilot       = new Pilot();
+
+      pilot.mean          = new double[numCounters];
+      pilot.nevusVariance = new double[numCounters];
+      pilot.shotVariance  = new double[numCounters];
+      pilot.signal        = new boolean[numCounters];
+      for (int p = 0; p < pilots; p++)
+      {
+         long index = ((long)n * (long)pilots) + p;
+
+         // Scan, then rescan the same nevus with other photon keys.
+         long start     = SkinSeerSim.threadTime();
+         int  scanSteps = scan(index, n, countsA);
+         long nanos     = SkinSeerSim.threadTime() - start;
+         long transport = 0;
+         for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+         {
+            transport += source.transportNanos;
+         }
+         boolean dangerous = GenClassificationData.isDangerous(scanner);
+         scan(index, -1, countsB);
+         pilot.scanSteps       = Math.max(pilot.scanSteps, scanSteps);
+         pilot.fixedNanos     += (double)Math.max(nanos - transport, 0);
+         pilot.transportNanos += (double)transport;
+         statistics.add(countsA, dangerous);
+         for (int c = 0; c < numCounters; c++)
+         {
+            double d = (double)(countsA[c] - countsB[c]);
+            sum[c]        += (double)countsA[c];
+            sumSquares[c] += (double)countsA[c] * (double)countsA[c];
+            pilot.shotVariance[c] += d * d / 2.0;
+            classShot[dangerous ? FeatureStatistics.DANGER : FeatureStatistics.OK][c] += d * d / 2.0;
+         }
+      }
+      pilot.fixedNanos     /= (double)pilots;
+      pilot.transportNanos /= (double)pilots;
+      for (int c = 0; c < numCounters; c++)
+      {
+         pilot.mean[c]          = sum[c] / (double)pilots;
+         pilot.shotVariance[c] /= (double)pilots;
+         double variance = (pilots > 1) ?
+            (sumSquares[c] - (sum[c] * pilot.mean[c])) / (double)(pilots - 1) : 0.0;
+         pilot.nevusVariance[c] = Math.max(variance - pilot.shotVariance[c], 0.0);
+      }
+
+      // Signal counters: the fewest holding the signal fraction of photons.
+      Integer[] order = new Integer[numCounters];
+      for (int c = 0; c < numCounters; c++)
+      {
+         order[c] = c;
+      }
+      Arrays.sort(order, (a, b) -> Double.compare(pilot.mean[b], pilot.mean[a]));
+      double total = sum(pilot.mean);
+      double held  = 0.0;
+      for (int i = 0; (i < numCounters) && (held < SIGNAL_FRACTION * total); i++)
+      {
+         pilot.signal[order[i]] = true;
+         held                  += pilot.mean[order[i]];
+      }
+      return(pilot);
+   }
+
+
+   // Scan sample index with nevus of distribution n, or the current
+   // nevus with other photon keys if n is -1, into counts.
+   // Return scan steps.
+   int scan(long index, int n, int[] counts)
+   {
+      long seed = generator.randomSeed;
+
+      if (n != -1)
+      {
+         random.setSample(index);
+         generator.setNevus(n, random);
+      }
+      else
+      {
+         seed = GenClassificationData.mixSeed(seed, -1 - index);
+      }
+      scanner.resetScan();
+      scanner.setRandomSeed(seed, index);
+      int steps = scanner.run(generator.steps);
+      for (SkinSeerSim.PhotonDetector detector : scanner.photonDetectors)
+      {
+         System.arraycopy(detector.photonCounters, 0, counts,
+                          detector.index * SkinSeerSim.NUM_PHOTON_COUNTERS, SkinSeerSim.NUM_PHOTON_COUNTERS);
+      }
+      return(steps);
+   }
+
+
+   // Least rate (multiple of the pilot rate) at which some counter's
+   // ok/danger separation reaches the target: separation at rate r is
+   // difference of means squared over the sum of class nevus variances
+   // plus class shot variances / r. Prints the best counter.
+   // Return -1 if unreachable.
+   double separationRate(PrintWriter writer)
+   {
+      FeatureStatistics s = statistics;
+
+      if ((s.count[FeatureStatistics.OK] < 2) || (s.count[FeatureStatistics.DANGER] < 2))
+      {
+         writer.println("separation: needs at least 2 pilot samples of each class (ok " +
+                        s.count[FeatureStatistics.OK] + ", danger " + s.count[FeatureStatistics.DANGER] + ")");
+         return(-1.0);
+      }
+      double bestRate      = Double.MAX_VALUE;
+      int    bestCounter   = -1;
+      double bestAsymptote = 0.0;
+      for (int c = 0; c < generator.numCounters; c++)
+      {
+         double delta = s.mean[FeatureStatistics.DANGER][c] - s.mean[FeatureStatistics.OK][c];
+         double shot  = 0.0;
+         double nevus = 0.0;
+         for (int k = 0; k < FeatureStatistics.NUM_CLASSES; k++)
+         {
+            double classShotVariance = classShot[k][c] / (double)s.count[k];
+            shot  += classShotVariance;
+            nevus += Math.max(s.variance(k, c) - classShotVariance, 0.0);
+         }
+         double asymptote = (nevus > 0.0) ? delta * delta / nevus : Double.POSITIVE_INFINITY;
+         bestAsymptote = Math.max(bestAsymptote, (delta == 0.0) ? 0.0 : asymptote);
+         double margin = (delta * delta / generator.planSeparation) - nevus;
+         if ((delta != 0.0) && (margin > 0.0))
+         {
+            double rate = shot / margin;
+            if (rate < bestRate)
+            {
+               bestRate    = rate;
+               bestCounter = c;
+            }
+         }
+      }
+      if (bestCounter == -1)
+      {
+         writer.println(String.format("separation: target %.3f unreachable, best counter separation tends to %.3f " +
+                                      "as photons increase (nevus variance dominates)",
+                                      generator.planSeparation, bestAsymptote));
+         return(-1.0);
+      }
+      writer.println(String.format("separation: counter %d reaches %.3f at %.2f times the pilot rate (pilot separation %.3f)",
+                                   bestCounter, generator.planSeparation, bestRate, s.separation(bestCounter)));
+      return(bestRate);
+   }
+
+
+   // Dataset size at rate (multiple of the pilot rate) estimating every
+   // signal counter's mean to the relative error, each distribution
+   // getting its frequency's share of samples.
+   long datasetSize(Pilot[] pilot, double rate)
+   {
+      double error = generator.planMeanError;
+      long   size  = 0;
+
+      for (int n = 0; n < pilot.length; n++)
+      {
+         double samples = 2.0;
+         for (int c = 0; c < generator.numCounters; c++)
+         {
+            if (pilot[n].signal[c])
+            {
+               double variance = pilot[n].nevusVariance[c] + (pilot[n].shotVariance[c] / rate);
+               samples = Math.max(samples, variance / (pilot[n].mean[c] * pilot[n].mean[c] * error * error));
+            }
+         }
+         double frequency = generator.nevusDistributionFrequency.get(n);
+         if (frequency > 0.0f)
+         {
+            size = Math.max(size, (long)Math.ceil(samples / frequency));
+         }
+      }
+      return(size);
+   }
+
+
+   // Mean sample nanoseconds at rate (multiple of the pilot rate).
+   double sampleNanos(Pilot[] pilot, double rate)
+   {
+      double nanos = 0.0;
+
+      for (int n = 0; n < pilot.length; n++)
+      {
+         nanos += generator.nevusDistributionFrequency.get(n) *
+                  (pilot[n].fixedNanos + (pilot[n].transportNanos * rate));
+      }
+      return(nanos);
+   }
+
+
+   // Median pilot signal-to-noise ratio of signal counters.
+   static double medianSnr(Pilot pilot)
+   {
+      double[] snr = new double[pilot.mean.length];
+      int      n   = 0;
+
+      for (int c = 0; c < pilot.mean.length; c++)
+      {
+         if (pilot.signal[c])
+         {
+            snr[n++] = (pilot.shotVariance[c] > 0.0) ? pilot.mean[c] / Math.sqrt(pilot.shotVariance[c]) :
+                       Double.POSITIVE_INFINITY;
+         }
+      }
+      if (n == 0)
+      {
+         return(0.0);
+      }
+      Arrays.sort(snr, 0, n);
+      return(snr[n / 2]);
+   }
+
+
+   static double sum(double[] values)
+   {
+      double sum = 0.0;
+
+      for (double value : values)
+      {
+         sum += value;
+      }
+      return(sum);
+   }
+}
@@ -0,0 +1,149 @@
+// Counter-based random numbers (Philox4x32-10).
+// Each value is a function of (seed, sample, stream, photon, draw) only,
+// so a photon's random numbers do not depend on which thread, process
+// or order it is simulated in. The 128-bit counter holds the draw block,
+// the photon (48 bits), the stream (16 bits, e.g. photon source) and the
+// sample (32 bits); the seed is the 64-bit key.
+
+package skinseer;
+
+import java.util.Random;
+
+public class CounterRandom extends Random
+{
+   private static final long serialVersionUID = 1L;
+
+   // Stream for per-sample draws outside photon transport.
+   public static final int SAMPLE_STREAM = 0xFFFF;
+
+   // Philox constants.
+   static final long M0 = 0xD2511F53L;
+   static final long M1 = 0xCD9E8D57L;
+   static final int  W0 = 0x9E3779B9;
+   static final int  W1 = 0xBB67AE85;
+
+   // Key and counter.
+   int  key0;
+   int  key1;
+   long sample;
+   int  stream;
+   long photon;
+   int  block;
+
+   // Output block and next word.
+   int[] output;
+   int   word;
+
+   // Constructors.
+   public CounterRandom(long seed, long sample, int stream)
+   {
+      super(seed);
+      this.sample = sample;
+      this.stream = stream;
+      output      = new int[4];
+      word        = 4;
+   }
+
+
+   public CounterRandom(long seed)
+   {
+      this(seed, 0, 0);
+   }
+
+
+   // Set seed (key), restarting the current photon's draws.
+   @Override
+   public void setSeed(long seed)
+   {
+      key0  = (int)seed;
+      key1  = (int)(seed >>> 32);
+      block = 0;
+      word  = 4;
+   }
+
+
+   // Use the seed, sample and stream of another generator, restarting draws.
+   public void setKey(CounterRandom other)
+   {
+      key0   = other.key0;
+      key1   = other.key1;
+      sample = other.sample;
+      stream = other.stream;
+      block  = 0;
+      word   = 4;
+   }
+
+
+   // Set sample, restarting draws.
+   public void setSample(long sample)
+   {
+      this.sample = sample;
+      block       = 0;
+      word        = 4;
+   }
+
+
+   // Set photon, restarting draws.
+   public void setPhoton(long photon)
+   {
+      this.photon = photon;
+      block       = 0;
+      word        = 4;
+   }
+
+
+   // Next bits of the current photon's draw sequence.
+   @Override
+   protected int next(int bits)
+   {
+      if (word == 4)
+      {
+         generate();
+         word = 0;
+      }
+      return(output[word++] >>> (32 - bits));
+   }
+
+
+   // Gaussian by Box-Muller without a cached second value,
+   // so each value depends only on its own draws.
+   @Override
+   public double nextGaussian()
+   {
+      double u1 = 1.0 - nextDouble();
+      double u2 = nextDouble();
+
+      return(Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2));
+   }
+
+
+   // Generate the output block of the current counter.
+   void generate()
+   {
+      int c0 = block;
+      int c1 = (int)photon;
+      int c2 = ((int)(photon >>> 32) & 0xFFFF) | (stream << 16);
+      int c3 = (int)sample;
+      int k0 = key0;
+      int k1 = key1;
+
+      for (int round = 0; round < 10; round++)
+      {
+         long p0 = (c0 & 0xFFFFFFFFL) * M0;
+         long p1 = (c2 & 0xFFFFFFFFL) * M1;
+         int  n0 = (int)(p1 >>> 32) ^ c1 ^ k0;
+         int  n2 = (int)(p0 >>> 32) ^ c3 ^ k1;
+         c1  = (int)p1;
+         c3  = (int)p0;
+         c0  = n0;
+         c2  = n2;
+         k0 += W0;
+         k1 += W1;
+      }
+      output[0] = c0;
+      output[1] = c1;
+      output[2] = c2;
+      output[3] = c3;
+      block++;
+   }
+}
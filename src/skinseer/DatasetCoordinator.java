@@ -0,0 +1,358 @@
+// Dataset generation coordinator.
+// Splits the sample range into chunks and hands them to worker processes
+// connecting over TCP. Samples are seeded by index, so chunks can be
+// generated anywhere and the merged dataset matches a single-process
+// run with the same seed. Chunks of failed or timed out workers are
+// reassigned; spawned local workers that die are respawned, and the run
+// fails when no worker process or connection is left to take them.
+// Completed chunks go to a dataset writer (see DatasetWriter) that writes
+// them in order; chunks are only assigned within its reorder window, so
+// chunks held for a slow one are bounded.
+//
+// Protocol (DataInput/DataOutput, big-endian):
+//   coordinator: CONFIG, argument count, arguments (UTF), parameter file length, bytes
+//   coordinator: CHUNK, chunk, first sample, sample count
+//   worker:      RESULT, chunk, entry text length, entry text (UTF-8)
+//   coordinator: DONE
+
+package skinseer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+public class DatasetCoordinator
+{
+   // Message types.
+   public static final int CONFIG = 1;
+   public static final int CHUNK  = 2;
+   public static final int RESULT = 3;
+   public static final int DONE   = 4;
+
+   // Attempts per chunk before giving up.
+   public static final int MAX_CHUNK_ATTEMPTS = 3;
+
+   // Respawns per spawned local worker before giving up on it.
+   public static final int MAX_WORKER_RESPAWNS = 3;
+
+   // Seconds without any worker before failing, for workers to reconnect.
+   public static final int RECONNECT_SECONDS = 30;
+
+   // Generator.
+   GenClassificationData generator;
+
+   // Worker arguments and parameter file contents.
+   ArrayList<String> workerArgs;
+   byte[]            parameters;
+
+   // Chunks and their writer.
+   int                          numChunks;
+   LinkedBlockingDeque<Integer> pendingChunks;
+   int[]                        chunkAttempts;
+   DatasetWriter                writer;
+   boolean                      done;
+   boolean                      failed;
+
+   // Open worker connections, and whether any worker has connected.
+   int     connections;
+   boolean connected;
+
+   // Constructor.
+   // Workers get the generation arguments with the coordinator's seed;
+   // the parameter file is shipped by contents.
+   public DatasetCoordinator(GenClassificationData generator, String[] args)
+   {
+      this.generator = generator;
+      workerArgs     = new ArrayList<String>();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-coordinatorPort") || args[i].equals("-chunkSize") ||
+             args[i].equals("-spawnLocalWorkers") || args[i].equals("-workerTimeout") ||
+             args[i].equals("-randomSeed") || args[i].equals("-parameterFile") ||
+             args[i].equals("-datasetFilename") || args[i].equals("-metricsFile") ||
+             args[i].equals("-metricsInterval") || args[i].equals("-histogramFile"))
+         {
+            i++;
+            continue;
+         }
+         workerArgs.add(args[i]);
+      }
+      workerArgs.add("-datasetFilename");
+      workerArgs.add("-");
+      workerArgs.add("-randomSeed");
+      workerArgs.add(Long.toString(generator.randomSeed));
+
+      numChunks     = (generator.datasetSize + generator.chunkSize - 1) / generator.chunkSize;
+      pendingChunks = new LinkedBlockingDeque<Integer>();
+      chunkAttempts = new int[numChunks];
+      for (int i = 0; i < numChunks; i++)
+      {
+         pendingChunks.add(i);
+      }
+      done        = false;
+      failed      = false;
+      connections = 0;
+      connected   = false;
+   }
+
+
+   // Run: serve workers and write chunks in order.
+   public void run() throws IOException
+   {
+      if (generator.parameterFilename != null)
+      {
+         parameters = Files.readAllBytes(Paths.get(generator.parameterFilename));
+      }
+      else
+      {
+         parameters = new byte[0];
+      }
+
+      // The reorder window covers the writer window's samples.
+      writer = new DatasetWriter(generator, BlockGzipOutputStream.open(generator.datasetFilename), numChunks,
+                                 (generator.writerWindow + generator.chunkSize - 1) / generator.chunkSize,
+                                 generator.writerBatchSize);
+
+      ServerSocket server = new ServerSocket(generator.coordinatorPort);
+      int          port   = server.getLocalPort();
+      System.err.println("Coordinator listening on port " + port + ", " + numChunks + " chunks");
+
+      // Accept workers.
+      Thread acceptor = new Thread(() -> {
+                                      while (!server.isClosed())
+                                      {
+                                         try
+                                         {
+                                            Socket socket = server.accept();
+                                            Thread handler = new Thread(() -> serveWorker(socket));
+                                            handler.setDaemon(true);
+                                            handler.start();
+                                         }
+                                         catch (IOException e)
+                                         {
+                                            return;
+                                         }
+                                      }
+                                   });
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      // Spawn local workers?
+      ArrayList<Process> workers  = new ArrayList<Process>();
+      int[]              respawns = new int[generator.spawnLocalWorkers];
+      for (int i = 0; i < generator.spawnLocalWorkers; i++)
+      {
+         workers.add(spawnWorker(port));
+      }
+
+      // Wait for the writer to write all chunks in order, respawning dead
+      // local workers. Fail once no worker is left for a while (remote
+      // workers may reconnect meanwhile).
+      long idleStart = -1;
+      try
+      {
+         while (!writer.await(100))
+         {
+            synchronized (this)
+            {
+               if (failed)
+               {
+                  throw new IOException("Chunk failed " + MAX_CHUNK_ATTEMPTS + " times");
+               }
+            }
+            boolean alive = false;
+            for (int i = 0; i < workers.size(); i++)
+            {
+               if (!workers.get(i).isAlive() && (respawns[i] < MAX_WORKER_RESPAWNS))
+               {
+                  respawns[i]++;
+                  System.err.println("Local worker " + i + " exited (" + workers.get(i).exitValue() +
+                                     "), respawning");
+                  workers.set(i, spawnWorker(port));
+               }
+               alive |= workers.get(i).isAlive();
+            }
+            synchronized (this)
+            {
+               if (alive || (connections > 0) || (!connected && workers.isEmpty()))
+               {
+                  idleStart = -1;
+               }
+               else if (idleStart == -1)
+               {
+                  idleStart = System.nanoTime();
+               }
+               else if ((System.nanoTime() - idleStart) >= RECONNECT_SECONDS * 1000000000L)
+               {
+                  throw new IOException("No workers left, " + pendingChunks.size() + " chunks pending");
+               }
+            }
+         }
+         writer.close();
+      }
+      catch (IOException e)
+      {
+         writer.abort();
+         throw e;
+      }
+      finally
+         {
+            synchronized (this)
+            {
+               done = true;
+               notifyAll();
+            }
+            for (Process worker : workers)
+            {
+               try
+               {
+                  if (!worker.waitFor(10, TimeUnit.SECONDS))
+                  {
+                     worker.destroy();
+                  }
+               }
+               catch (InterruptedException e)
+               {
+                  worker.destroy();
+               }
+            }
+            server.close();
+         }
+   }
+
+
+   // Spawn local worker process connecting to port.
+   Process spawnWorker(int port) throws IOException
+   {
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+      return(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                "skinseer.GenClassificationData", "-worker", "localhost:" + port)
+                .inheritIO().start());
+   }
+
+
+   // Serve worker connection until done or the worker fails.
+   void serveWorker(Socket socket)
+   {
+      int chunk = -1;
+
+      synchronized (this)
+      {
+         connections++;
+         connected = true;
+      }
+      try
+      {
+         socket.setSoTimeout(generator.workerTimeout * 1000);
+         DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         DataInputStream  input  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+         // Configure.
+         output.writeInt(CONFIG);
+         output.writeInt(workerArgs.size());
+         for (String arg : workerArgs)
+         {
+            output.writeUTF(arg);
+         }
+         output.writeInt(parameters.length);
+         output.write(parameters);
+         output.flush();
+
+         // Generate chunks.
+         while (true)
+         {
+            Integer next = null;
+            while (next == null)
+            {
+               synchronized (this)
+               {
+                  if (done || failed)
+                  {
+                     output.writeInt(DONE);
+                     output.flush();
+                     socket.close();
+                     return;
+                  }
+               }
+               try
+               {
+                  next = pendingChunks.poll(100, TimeUnit.MILLISECONDS);
+               }
+               catch (InterruptedException e)
+               {
+                  socket.close();
+                  return;
+               }
+               if ((next != null) && !writer.awaitWindow(next, 100))
+               {
+                  // Beyond the reorder window: leave it for later.
+                  pendingChunks.addFirst(next);
+                  next = null;
+               }
+            }
+            chunk = next;
+            int start = chunk * generator.chunkSize;
+            int count = Math.min(generator.chunkSize, generator.datasetSize - start);
+            output.writeInt(CHUNK);
+            output.writeInt(chunk);
+            output.writeLong(start);
+            output.writeInt(count);
+            output.flush();
+
+            if ((input.readInt() != RESULT) || (input.readInt() != chunk))
+            {
+               throw new IOException("Unexpected worker message");
+            }
+            byte[] result = new byte[input.readInt()];
+            input.readFully(result);
+            DatasetWriter.Entry entry = writer.acquire(chunk);
+            entry.text = result;
+            writer.submit(entry);
+            generator.metrics.addSamples(count);
+            chunk = -1;
+         }
+      }
+      catch (IOException e)
+      {
+         try
+         {
+            socket.close();
+         }
+         catch (IOException e2) {}
+         if (chunk != -1)
+         {
+            System.err.println("Worker " + socket.getRemoteSocketAddress() + " failed (" + e +
+                               "), reassigning chunk " + chunk);
+            synchronized (this)
+            {
+               chunkAttempts[chunk]++;
+               if (chunkAttempts[chunk] >= MAX_CHUNK_ATTEMPTS)
+               {
+                  failed = true;
+                  notifyAll();
+                  return;
+               }
+            }
+            pendingChunks.addFirst(chunk);
+         }
+      }
+      finally
+      {
+         synchronized (this)
+         {
+            connections--;
+         }
+      }
+   }
+}
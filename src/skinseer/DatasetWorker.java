@@ -0,0 +1,106 @@
+// Dataset generation worker.
+// Connects to a coordinator, receives the generation configuration and
+// generates the sample chunks it is given. See DatasetCoordinator.
+
+package skinseer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+public class DatasetWorker
+{
+   // Run worker for coordinator at host:port.
+   public static void run(String address)
+   {
+      int colon = address.lastIndexOf(':');
+
+      if (colon == -1)
+      {
+         System.err.println("Invalid worker address");
+         System.err.println(GenClassificationData.Usage);
+         System.exit(1);
+      }
+      String host = address.substring(0, colon);
+      int    port = Integer.parseInt(address.substring(colon + 1));
+
+      File parameterFile = null;
+      try (Socket socket = new Socket(host, port))
+         {
+            DataInputStream  input  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // Configure.
+            if (input.readInt() != DatasetCoordinator.CONFIG)
+            {
+               throw new IOException("Unexpected coordinator message");
+            }
+            ArrayList<String> args = new ArrayList<String>();
+            int               argc = input.readInt();
+            for (int i = 0; i < argc; i++)
+            {
+               args.add(input.readUTF());
+            }
+            byte[] parameters = new byte[input.readInt()];
+            input.readFully(parameters);
+            if (parameters.length > 0)
+            {
+               parameterFile = File.createTempFile("skinseer", ".parameters");
+               Files.write(parameterFile.toPath(), parameters);
+               args.add("-parameterFile");
+               args.add(parameterFile.getPath());
+            }
+            GenClassificationData generator = new GenClassificationData(args.toArray(new String[args.size()]));
+            generator.init();
+
+            // Chunks come unannounced, so the worker's total is unknown.
+            generator.metrics.samplesTotal = 0;
+
+            // Generate chunks.
+            int[]                 photonCounters = new int[generator.numCounters];
+            ByteArrayOutputStream entries        = new ByteArrayOutputStream();
+            while (input.readInt() == DatasetCoordinator.CHUNK)
+            {
+               int  chunk = input.readInt();
+               long start = input.readLong();
+               int  count = input.readInt();
+               entries.reset();
+               for (long i = start; i < start + count; i++)
+               {
+                  boolean dangerous = generator.generateSample(i, photonCounters);
+                  entries.write(generator.sampleBuffer, 0,
+                                generator.formatSample(photonCounters, dangerous, generator.sampleBuffer));
+               }
+               output.writeInt(DatasetCoordinator.RESULT);
+               output.writeInt(chunk);
+               output.writeInt(entries.size());
+               entries.writeTo(output);
+               output.flush();
+            }
+
+            // Print sample histograms of this worker.
+            PrintWriter writer = new PrintWriter(System.err);
+            generator.printHistograms(writer);
+            writer.flush();
+         }
+         catch (IOException e) {
+            System.err.println("Worker failed: " + e.getMessage());
+            System.exit(1);
+         }
+         finally
+         {
+            if (parameterFile != null)
+            {
+               parameterFile.delete();
+            }
+         }
+   }
+}
@@ -0,0 +1,366 @@
+// Asynchronous ordered dataset writer.
+// Completed dataset entries, in any order, are handed to a writer thread
+// through a bounded queue. The writer puts them back into index order in
+// a fixed-size reorder window, formats them into a large batch buffer and
+// writes each batch with a single write, committing many samples at once:
+// a batch is written when full, or when the writer is idle and the last
+// commit is older than the commit interval. Entries are recycled, and an
+// entry beyond the window waits until the window reaches it, so memory is
+// bounded by the window size whatever the dataset size.
+//
+// The writer is woken once a group of entries is queued, when a producer
+// has to wait for it, or by the commit interval, not for every entry, so
+// the hand-off costs little even for samples that take microseconds.
+//
+// Entries hold either a sample's photon counters and label, formatted by
+// the writer, or text formatted elsewhere (a worker chunk, see
+// DatasetCoordinator), indexed by chunk.
+
+package skinseer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class DatasetWriter
+{
+   // Default reorder window (entries) and batch size (bytes).
+   public static final int DEFAULT_WINDOW     = 4096;
+   public static final int DEFAULT_BATCH_SIZE = 1 << 20;
+
+   // Idle commit interval (milliseconds).
+   public static final long COMMIT_MILLIS = 1000;
+
+   // Dataset entry.
+   public static class Entry
+   {
+      public long    index;
+      public int[]   counters;
+      public boolean dangerous;
+      public byte[]  text;
+   }
+
+   // Generator (formatting) and output.
+   GenClassificationData generator;
+   OutputStream          output;
+
+   // Entries: free, completed, and the reorder window by index modulo
+   // its size. Entries before next are written; end is the entry count.
+   ArrayBlockingQueue<Entry> free;
+   ArrayBlockingQueue<Entry> completed;
+   Entry[]                   window;
+   volatile long             next;
+   long                      end;
+
+   // Completed entries that wake the writer, and entries drained at once.
+   int              wakeCount;
+   ArrayList<Entry> drained;
+
+   // Batch buffer.
+   byte[] batch;
+   int    batchLength;
+   long   lastCommit;
+
+   // Commits (writes) and bytes written.
+   public long commits;
+   public long bytesWritten;
+
+   // Writer thread (a daemon: it never keeps the JVM alive after its
+   // producer has failed) and its error, if any.
+   Thread               thread;
+   volatile IOException error;
+
+   // Constructor.
+   // Starts writing entries 0 to entries - 1; sample entries get photon
+   // counters for the generator.
+   public DatasetWriter(GenClassificationData generator, OutputStream output, long entries,
+                        int windowSize, int batchSize)
+   {
+      this.generator = generator;
+      this.output    = output;
+      end            = entries;
+      next           = 0;
+      window         = new Entry[windowSize];
+      free           = new ArrayBlockingQueue<Entry>(windowSize);
+      completed      = new ArrayBlockingQueue<Entry>(windowSize);
+      drained        = new ArrayList<Entry>(windowSize);
+      wakeCount      = Math.max(windowSize / 4, 1);
+      for (int i = 0; i < windowSize; i++)
+      {
+         Entry entry = new Entry();
+         entry.counters = new int[generator.numCounters];
+         free.add(entry);
+      }
+      batch       = new byte[Math.max(batchSize, generator.maxSampleLength())];
+      batchLength = 0;
+      lastCommit  = System.nanoTime();
+      commits     = 0;
+      thread      = new Thread(this::run, "DatasetWriter");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+
+   // Index within the reorder window? Waits up to the given milliseconds
+   // for the window to reach it.
+   public boolean awaitWindow(long index, long millis) throws IOException
+   {
+      long deadline = System.nanoTime() + (millis * 1000000L);
+
+      while ((index >= next + window.length) && (error == null))
+      {
+         long wait = deadline - System.nanoTime();
+         if (wait <= 0)
+         {
+            return(false);
+         }
+         LockSupport.unpark(thread);
+         waitForWriter(Math.min(wait, 1000000L));
+      }
+      checkError();
+      return(true);
+   }
+
+
+   // Acquire entry to fill for index, waiting for the window to reach it.
+   public Entry acquire(long index) throws IOException
+   {
+      while ((index >= next + window.length) && (error == null))
+      {
+         LockSupport.unpark(thread);
+         waitForWriter(1000000L);
+      }
+      Entry entry;
+      while (((entry = free.poll()) == null) && (error == null))
+      {
+         LockSupport.unpark(thread);
+         waitForWriter(1000000L);
+      }
+      checkError();
+      entry.index = index;
+      entry.text  = null;
+      return(entry);
+   }
+
+
+   // Submit filled entry.
+   public void submit(Entry entry) throws IOException
+   {
+      checkError();
+      completed.add(entry);
+      if (completed.size() >= wakeCount)
+      {
+         LockSupport.unpark(thread);
+      }
+   }
+
+
+   // All entries written? Waits up to the given milliseconds.
+   public boolean await(long millis) throws IOException
+   {
+      long deadline = System.nanoTime() + (millis * 1000000L);
+
+      while ((next < end) && (error == null))
+      {
+         long wait = deadline - System.nanoTime();
+         if (wait <= 0)
+         {
+            break;
+         }
+         LockSupport.unpark(thread);
+         waitForWriter(Math.min(wait, 1000000L));
+      }
+      checkError();
+      return(next == end);
+   }
+
+
+   // Finish writing, then close output.
+   public void close() throws IOException
+   {
+      LockSupport.unpark(thread);
+      try
+      {
+         thread.join();
+      }
+      catch (InterruptedException e)
+      {
+         throw new IOException(e);
+      }
+      checkError();
+   }
+
+
+   // Stop writing and close output, leaving it incomplete.
+   public void abort()
+   {
+      thread.interrupt();
+      try
+      {
+         thread.join();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+
+   // Wait up to the given nanoseconds for the writer to make progress.
+   void waitForWriter(long nanos) throws IOException
+   {
+      LockSupport.parkNanos(nanos);
+      if (Thread.interrupted())
+      {
+         throw new IOException("Interrupted waiting for dataset writer");
+      }
+   }
+
+
+   // Throw writer error, if any.
+   void checkError() throws IOException
+   {
+      if (error != null)
+      {
+         throw new IOException("Dataset writer failed: " + error.getMessage(), error);
+      }
+   }
+
+
+   // Writer thread: reorder, format and commit entries.
+   void run()
+   {
+      try
+      {
+         while (next < end)
+         {
+            if (Thread.interrupted())
+            {
+               closeQuietly();
+               return;
+            }
+            completed.drainTo(drained);
+            if (drained.size() == 0)
+            {
+               if ((batchLength > 0) && ((System.nanoTime() - lastCommit) >= COMMIT_MILLIS * 1000000L))
+               {
+                  commit();
+               }
+               LockSupport.parkNanos(COMMIT_MILLIS * 1000000L);
+               continue;
+            }
+            for (Entry entry : drained)
+            {
+               int slot = (int)(entry.index % window.length);
+               if ((entry.index < next) || (entry.index >= end) || (window[slot] != null))
+               {
+                  // Duplicate or invalid: drop.
+                  free.add(entry);
+               }
+               else
+               {
+                  window[slot] = entry;
+               }
+            }
+            drained.clear();
+            writeReady();
+         }
+         commit();
+         output.close();
+      }
+      catch (IOException e)
+      {
+         error = e;
+         closeQuietly();
+      }
+      catch (RuntimeException e)
+      {
+         // Fail waiting producers rather than leave them waiting.
+         error = new IOException(e.toString(), e);
+         closeQuietly();
+      }
+   }
+
+
+   // Append entries that are next in order, moving the window up.
+   void writeReady() throws IOException
+   {
+      while (next < end)
+      {
+         int   slot  = (int)(next % window.length);
+         Entry entry = window[slot];
+         if (entry == null)
+         {
+            break;
+         }
+         window[slot] = null;
+         append(entry);
+         free.add(entry);
+         next++;
+      }
+   }
+
+
+   // Append entry to batch, committing the batch if it fills.
+   void append(Entry entry) throws IOException
+   {
+      if (entry.text != null)
+      {
+         if (batchLength + entry.text.length > batch.length)
+         {
+            commit();
+         }
+         if (entry.text.length > batch.length)
+         {
+            write(entry.text, entry.text.length);
+         }
+         else
+         {
+            System.arraycopy(entry.text, 0, batch, batchLength, entry.text.length);
+            batchLength += entry.text.length;
+         }
+         entry.text = null;
+      }
+      else
+      {
+         if (batchLength + generator.maxSampleLength() > batch.length)
+         {
+            commit();
+         }
+         batchLength += generator.formatSample(entry.counters, entry.dangerous, batch, batchLength);
+      }
+   }
+
+
+   // Write batch.
+   void commit() throws IOException
+   {
+      if (batchLength > 0)
+      {
+         write(batch, batchLength);
+         batchLength = 0;
+      }
+      output.flush();
+      lastCommit = System.nanoTime();
+   }
+
+
+   void write(byte[] bytes, int length) throws IOException
+   {
+      output.write(bytes, 0, length);
+      commits++;
+      bytesWritten += length;
+   }
+
+
+   void closeQuietly()
+   {
+      try
+      {
+         output.close();
+      }
+      catch (IOException e) {}
+   }
+}
@@ -0,0 +1,155 @@
+// Transport engine equivalence check.
+// Generates samples with two transport engines (see TransportEngine) and
+// tests each photon counter for equally distributed counts with the
+// two-sample Kolmogorov-Smirnov test. The second engine's samples use a
+// seed derived from the first's, so the two samples are independent, as
+// the test assumes, rather than paired by nevus configuration and photon
+// keys; every sample is simulated, none pooled. A counter fails if its
+// p-value is below the significance level divided by the number of
+// counters (Bonferroni), so equivalent engines fail the check with at
+// most that probability. The test is conservative for discrete counts.
+
+package skinseer;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+public class EngineCheck
+{
+   // Default significance level.
+   public static final double DEFAULT_ALPHA = 0.01;
+
+   // Seed index (see GenClassificationData.mixSeed) of the second
+   // engine's samples.
+   public static final long SEED_INDEX = 1;
+
+   // Check engines on the generator's samples, printing per counter
+   // means, statistic and p-value.
+   // Return true if equivalent.
+   public static boolean run(GenClassificationData generator, String engineA, String engineB,
+                             double alpha, PrintWriter writer)
+   {
+      long seed = generator.randomSeed;
+
+      generator.poolPhotonFactor = 0;
+      int[][] countsA   = generate(generator, engineA, seed);
+      int[][] countsB   = generate(generator, engineB, GenClassificationData.mixSeed(seed, SEED_INDEX));
+      double  threshold = alpha / (double)generator.numCounters;
+      int     failed    = 0;
+
+      generator.randomSeed = seed;
+      generator.sampleRandom.setSeed(seed);
+
+      for (int c = 0; c < generator.numCounters; c++)
+      {
+         double d = ksStatistic(countsA[c], countsB[c]);
+         double p = ksProbability(d, countsA[c].length, countsB[c].length);
+         writer.println("counter " + c + ": " +
+                        String.format("%s mean=%.3f, %s mean=%.3f, D=%.4f, p=%.4f", engineA, mean(countsA[c]),
+                                      engineB, mean(countsB[c]), d, p) +
+                        ((p < threshold) ? " FAIL" : ""));
+         if (p < threshold)
+         {
+            failed++;
+         }
+      }
+      writer.println("engines " + engineA + " and " + engineB + ": " +
+                     ((failed == 0) ? "equivalent" : "NOT equivalent") +
+                     " (" + failed + " of " + generator.numCounters + " counters with p < " +
+                     String.format("%.3g", threshold) + ", alpha=" + alpha + ")");
+      writer.flush();
+      return(failed == 0);
+   }
+
+
+   // Generate the samples with engine and seed.
+   // Return counts by counter and sample.
+   static int[][] generate(GenClassificationData generator, String engine, long seed)
+   {
+      int[][] counts         = new int[generator.numCounters][generator.datasetSize];
+      int[]   photonCounters = new int[generator.numCounters];
+
+      generator.engine     = engine;
+      generator.scanner    = null;
+      generator.randomSeed = seed;
+      generator.sampleRandom.setSeed(seed);
+      for (int i = 0; i < generator.datasetSize; i++)
+      {
+         generator.generateSample(i, photonCounters);
+         for (int c = 0; c < generator.numCounters; c++)
+         {
+            counts[c][i] = photonCounters[c];
+         }
+      }
+      return(counts);
+   }
+
+
+   // Mean of counts.
+   static double mean(int[] counts)
+   {
+      double sum = 0.0;
+
+      for (int count : counts)
+      {
+         sum += (double)count;
+      }
+      return((counts.length > 0) ? sum / (double)counts.length : 0.0);
+   }
+
+
+   // Two-sample Kolmogorov-Smirnov statistic: greatest difference of the
+   // empirical distribution functions.
+   public static double ksStatistic(int[] a, int[] b)
+   {
+      int[]  x = a.clone();
+      int[]  y = b.clone();
+      int    i = 0;
+      int    j = 0;
+      double d = 0.0;
+
+      Arrays.sort(x);
+      Arrays.sort(y);
+      while ((i < x.length) && (j < y.length))
+      {
+         int value = Math.min(x[i], y[j]);
+         while ((i < x.length) && (x[i] == value))
+         {
+            i++;
+         }
+         while ((j < y.length) && (y[j] == value))
+         {
+            j++;
+         }
+         d = Math.max(d, Math.abs(((double)i / (double)x.length) - ((double)j / (double)y.length)));
+      }
+      return(d);
+   }
+
+
+   // Probability of a statistic of at least d for equal distributions:
+   // the asymptotic Kolmogorov distribution with Stephens' correction for
+   // sample sizes n and m.
+   public static double ksProbability(double d, int n, int m)
+   {
+      double effective = Math.sqrt((double)n * (double)m / (double)(n + m));
+      double lambda    = (effective + 0.12 + (0.11 / effective)) * d;
+      double sign      = 2.0;
+      double sum       = 0.0;
+      double previous  = 0.0;
+
+      for (int j = 1; j <= 100; j++)
+      {
+         double term = sign * Math.exp(-2.0 * (double)j * (double)j * lambda * lambda);
+         sum += term;
+         if ((Math.abs(term) <= 0.001 * previous) || (Math.abs(term) <= 1.0e-8 * sum))
+         {
+            return(Math.min(Math.max(sum, 0.0), 1.0));
+         }
+         sign     = -sign;
+         previous = Math.abs(term);
+      }
+      // Not converged: d is near 0.
+      return(1.0);
+   }
+}
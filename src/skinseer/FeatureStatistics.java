@@ -0,0 +1,195 @@
+// Streaming feature statistics.
+// Per-feature mean and variance of samples by class (ok and danger),
+// updated one sample at a time with Welford's algorithm over primitive
+// arrays, so any number of samples is summarized in fixed memory in a
+// single pass. Class statistics are combined for the totals (Chan et al.).
+
+package skinseer;
+
+import java.io.PrintWriter;
+
+public class FeatureStatistics
+{
+   // Classes.
+   public static final int      OK          = 0;
+   public static final int      DANGER      = 1;
+   public static final int      NUM_CLASSES = 2;
+   public static final String[] CLASS_NAMES = { "ok", "danger" };
+
+   // Features (photon counters).
+   public int dimensions;
+
+   // By class: sample count, and per feature mean and sum of squared
+   // differences from the mean.
+   public long[]     count;
+   public double[][] mean;
+   public double[][] m2;
+
+   // Constructor.
+   public FeatureStatistics(int dimensions)
+   {
+      this.dimensions = dimensions;
+      count           = new long[NUM_CLASSES];
+      mean            = new double[NUM_CLASSES][dimensions];
+      m2              = new double[NUM_CLASSES][dimensions];
+   }
+
+
+   // Add sample.
+   public void add(int[] features, boolean dangerous)
+   {
+      int      c       = dangerous ? DANGER : OK;
+      double[] cMean   = mean[c];
+      double[] cM2     = m2[c];
+      double   inverse = 1.0 / (double)(++count[c]);
+
+      for (int i = 0; i < dimensions; i++)
+      {
+         double delta = (double)features[i] - cMean[i];
+         cMean[i] += delta * inverse;
+         cM2[i]   += delta * ((double)features[i] - cMean[i]);
+      }
+   }
+
+
+   // Sample count over classes.
+   public long totalCount()
+   {
+      return(count[OK] + count[DANGER]);
+   }
+
+
+   // Sample variance of feature in class.
+   public double variance(int c, int i)
+   {
+      if (count[c] < 2)
+      {
+         return(0.0);
+      }
+      return(m2[c][i] / (double)(count[c] - 1));
+   }
+
+
+   // Mean of feature over classes.
+   public double totalMean(int i)
+   {
+      long n = totalCount();
+
+      if (n == 0)
+      {
+         return(0.0);
+      }
+      return(((mean[OK][i] * (double)count[OK]) + (mean[DANGER][i] * (double)count[DANGER])) / (double)n);
+   }
+
+
+   // Sample variance of feature over classes.
+   public double totalVariance(int i)
+   {
+      long n = totalCount();
+
+      if (n < 2)
+      {
+         return(0.0);
+      }
+      double delta = mean[DANGER][i] - mean[OK][i];
+      double sumM2 = m2[OK][i] + m2[DANGER][i] +
+                     (delta * delta * (double)count[OK] * (double)count[DANGER] / (double)n);
+      return(sumM2 / (double)(n - 1));
+   }
+
+
+   // Class separation of feature (Fisher score): squared difference of
+   // class means over the sum of class variances. 0 without both classes.
+   public double separation(int i)
+   {
+      if ((count[OK] == 0) || (count[DANGER] == 0))
+      {
+         return(0.0);
+      }
+      double delta    = mean[DANGER][i] - mean[OK][i];
+      double variance = variance(OK, i) + variance(DANGER, i);
+      if (variance == 0.0)
+      {
+         return((delta == 0.0) ? 0.0 : Double.POSITIVE_INFINITY);
+      }
+      return(delta * delta / variance);
+   }
+
+
+   // Feature with greatest class separation, or -1 if none.
+   public int mostSeparating()
+   {
+      int best = -1;
+
+      for (int i = 0; i < dimensions; i++)
+      {
+         if ((separation(i) > 0.0) && ((best == -1) || (separation(i) > separation(best))))
+         {
+            best = i;
+         }
+      }
+      return(best);
+   }
+
+
+   // Print summary.
+   public void print(PrintWriter writer)
+   {
+      writer.println("statistics: samples=" + totalCount() + ", ok=" + count[OK] + ", danger=" + count[DANGER]);
+      int best = mostSeparating();
+      if (best != -1)
+      {
+         writer.println("statistics: most separating counter=" + best +
+                        String.format(", ok mean=%.3f, danger mean=%.3f, separation=%.3f",
+                                      mean[OK][best], mean[DANGER][best], separation(best)));
+      }
+   }
+
+
+   // Write as CSV rows:
+   // "count", class, samples
+   // "mean" or "variance", "all" or class, value per feature
+   // "separation", "all", value per feature
+   public void write(PrintWriter writer)
+   {
+      writer.println("count,all," + totalCount());
+      for (int c = 0; c < NUM_CLASSES; c++)
+      {
+         writer.println("count," + CLASS_NAMES[c] + "," + count[c]);
+      }
+      writer.print("mean,all");
+      for (int i = 0; i < dimensions; i++)
+      {
+         writer.print("," + totalMean(i));
+      }
+      writer.println();
+      writer.print("variance,all");
+      for (int i = 0; i < dimensions; i++)
+      {
+         writer.print("," + totalVariance(i));
+      }
+      writer.println();
+      for (int c = 0; c < NUM_CLASSES; c++)
+      {
+         writer.print("mean," + CLASS_NAMES[c]);
+         for (int i = 0; i < dimensions; i++)
+         {
+            writer.print("," + mean[c][i]);
+         }
+         writer.println();
+         writer.print("variance," + CLASS_NAMES[c]);
+         for (int i = 0; i < dimensions; i++)
+         {
+            writer.print("," + variance(c, i));
+         }
+         writer.println();
+      }
+      writer.print("separation,all");
+      for (int i = 0; i < dimensions; i++)
+      {
+         writer.print("," + separation(i));
+      }
+      writer.println();
+   }
+}
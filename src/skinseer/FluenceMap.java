@@ -0,0 +1,192 @@
+// Photon fluence and absorption map.
+// Grids over the scanner at a cell size resolution: fluence is the
+// photon weight stepping into each cell, absorption the photon weight
+// absorbed in it. Photon sources, including transport workers, tally
+// into their own grids with a single indexed add per step, and the
+// grids are reduced into the map's totals in parallel cell ranges.
+
+package skinseer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FluenceMap
+{
+   // Binary file identifier.
+   public static final int MAGIC = 0x5353464D;
+
+   // Default cell size.
+   public static final float DEFAULT_CELL_SIZE = 1.0f;
+
+   // Grid.
+   public float cellSize;
+   public int   numCellsX;
+   public int   numCellsY;
+   float        inverseCellSize;
+
+   // Totals.
+   public float[] fluence;
+   public float[] absorption;
+
+   // Photons emitted into totals.
+   public long photons;
+
+   // Constructors.
+   public FluenceMap(float cellSize)
+   {
+      this.cellSize   = cellSize;
+      inverseCellSize = 1.0f / cellSize;
+      numCellsX       = (int)Math.ceil((float)SkinSeerSim.SCANNER_WIDTH / cellSize);
+      numCellsY       = (int)Math.ceil((float)SkinSeerSim.SCANNER_HEIGHT / cellSize);
+      fluence         = newGrid();
+      absorption      = newGrid();
+      photons         = 0;
+   }
+
+
+   public FluenceMap()
+   {
+      this(DEFAULT_CELL_SIZE);
+   }
+
+
+   // New empty grid.
+   public float[] newGrid()
+   {
+      return(new float[numCellsX * numCellsY]);
+   }
+
+
+   // Cell of position within the scanner.
+   // Rounding up to the edge is clamped to the last cell.
+   public int cell(float x, float y)
+   {
+      int cx = Math.min((int)(x * inverseCellSize), numCellsX - 1);
+      int cy = Math.min((int)(y * inverseCellSize), numCellsY - 1);
+
+      return((cy * numCellsX) + cx);
+   }
+
+
+   // Position within the scanner?
+   public boolean contains(float x, float y)
+   {
+      return((x >= 0.0f) && (x < (float)SkinSeerSim.SCANNER_WIDTH) &&
+             (y >= 0.0f) && (y < (float)SkinSeerSim.SCANNER_HEIGHT));
+   }
+
+
+   // Add grids into totals and clear them, splitting the cells into a
+   // range per thread.
+   public void reduce(final ArrayList<float[]> fluenceGrids, final ArrayList<float[]> absorptionGrids, int threads)
+   {
+      final int cells = fluence.length;
+
+      if (threads <= 1)
+      {
+         reduce(fluenceGrids, absorptionGrids, 0, cells);
+         return;
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      ArrayList<Future<?> > results = new ArrayList<Future<?> >();
+      for (int t = 0; t < threads; t++)
+      {
+         final int first = (int)(((long)cells * t) / threads);
+         final int last  = (int)(((long)cells * (t + 1)) / threads);
+         results.add(executor.submit(new Runnable()
+                                     {
+                                        public void run()
+                                        {
+                                           reduce(fluenceGrids, absorptionGrids, first, last);
+                                        }
+                                     }
+                                     ));
+      }
+      try
+      {
+         for (Future<?> result : results)
+         {
+            result.get();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e)
+      {
+         throw new RuntimeException(e.getCause());
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+   }
+
+
+   // Add cell range of grids into totals and clear it.
+   void reduce(ArrayList<float[]> fluenceGrids, ArrayList<float[]> absorptionGrids, int first, int last)
+   {
+      for (float[] grid : fluenceGrids)
+      {
+         for (int i = first; i < last; i++)
+         {
+            fluence[i] += grid[i];
+            grid[i]     = 0.0f;
+         }
+      }
+      for (float[] grid : absorptionGrids)
+      {
+         for (int i = first; i < last; i++)
+         {
+            absorption[i] += grid[i];
+            grid[i]        = 0.0f;
+         }
+      }
+   }
+
+
+   // Clear totals.
+   public void clear()
+   {
+      for (int i = 0; i < fluence.length; i++)
+      {
+         fluence[i]    = 0.0f;
+         absorption[i] = 0.0f;
+      }
+      photons = 0;
+   }
+
+
+   // Write map.
+   // Binary: magic, cells x, cells y (int), cell size (float), photons
+   // (long), then fluence and absorption grids (float), each row by row
+   // from scanner y 0 upward, all big-endian. Block gzip compressed if the
+   // name ends with .gz.
+   public void write(String filename) throws IOException
+   {
+      try (DataOutputStream output = new DataOutputStream(
+                                        new BufferedOutputStream(BlockGzipOutputStream.open(filename))))
+         {
+            output.writeInt(MAGIC);
+            output.writeInt(numCellsX);
+            output.writeInt(numCellsY);
+            output.writeFloat(cellSize);
+            output.writeLong(photons);
+            for (int i = 0; i < fluence.length; i++)
+            {
+               output.writeFloat(fluence[i]);
+            }
+            for (int i = 0; i < absorption.length; i++)
+            {
+               output.writeFloat(absorption[i]);
+            }
+         }
+   }
+}
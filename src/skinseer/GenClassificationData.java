@@ -1,5 +1,8 @@
 // Generate machine learning classification data.
 // Dangerous nevus penetrates dermis.
+// Each sample's random numbers are keyed by the random seed and its index
+// (see CounterRandom), so the dataset can be generated in chunks by
+// distributed workers.
 
 package skinseer;
 
@@ -7,35 +10,157 @@ import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.lang.management.ManagementFactory;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Random;
 
 public class GenClassificationData
 {
-   public static final String Usage = "Usage: java GenClassificationData\n\t-datasetSize <dataset size>\n\t-datasetFilename <dataset file name>\n\t"
+   public static final String Usage = "Usage: java GenClassificationData\n\t-datasetSize <dataset size>\n\t-datasetFilename <dataset file name> and/or -analysisFile <file name>\n\t"
                                       + "-steps <steps per scan>\n\t"
                                       + "-nevusDistribution (repeatable argument)\n\t\t<mean width (0=no nevus)>\n\t\t<standard deviation of width>\n\t\t<mean height>\n\t\t<standard deviation of height>"
                                       + "\n\t\t<mean depth in epidermis>\n\t\t<standard deviation of depth in epidermis>\n\t\t<distribution frequency>\n\t"
-                                      + "[-parameterFile <parameter file name>]";
+                                      + "[-parameterFile <parameter file name>]\n\t"
+                                      + "[-poolPhotonFactor <pooled simulation photon multiplier for zero-sigma distributions (0=no pooling)>]\n\t"
+                                      + "[-randomSeed <random seed>]\n\t"
+                                      + "[-engine <photon transport engine: scalar | TransportEngine class name (default scalar)>]\n\t\t"
+                                      + "(experimental, slower than scalar: lanes | vector)\n\t"
+                                      + "[-coordinatorPort <port> (distribute generation to workers)\n\t\t"
+                                      + "[-chunkSize <samples per worker chunk>] [-spawnLocalWorkers <number of local worker processes>]\n\t\t"
+                                      + "[-workerTimeout <seconds per chunk before reassignment (default 600, 0=none)>]]\n\t"
+                                      + "[-metricsFile <JSON lines metrics log file name> [-metricsInterval <seconds (default 10)>]]\n\t"
+                                      + "[-histogramFile <sample time and steps histogram CSV file name>]\n\t"
+                                      + "[-writerWindow <reorder window samples (default 4096)>] [-writerBatchSize <write batch bytes (default 1048576)>]\n\t"
+                                      + "[-compressThreads <threads compressing a .gz dataset file (default available processors)>]\n\t"
+                                      + "[-photonLog <predicate (see PhotonLog)> [-photonLogFile <file name (CSV)>]] (not with -coordinatorPort)\n\t"
+                                      + "[-analysisFile <in-process statistics and k-means model file name (CSV)>\n\t\t"
+                                      + "[-clusters <k-means clusters (default 8)>] [-clusterBatchSize <k-means mini-batch samples (default 1024)>]] (not with -coordinatorPort)\n"
+                                      + "Replay usage: java GenClassificationData -replayPhoton <sample>:<source>:<photon> [-replayFile <file name>]\n\t"
+                                      + "-randomSeed <random seed> -steps <steps per scan> -nevusDistribution ... [-parameterFile <parameter file name>]\n"
+                                      + "Engine check usage: java GenClassificationData -checkEngines <engine>,<engine> [-checkAlpha <significance level (default 0.01)>]\n\t"
+                                      + "-datasetSize <samples per engine> -steps <steps per scan> -nevusDistribution ... [-parameterFile <parameter file name>] [-randomSeed <random seed>]\n"
+                                      + "Plan usage: java GenClassificationData -planSnr <target per-sample counter signal-to-noise ratio> and/or\n\t"
+                                      + "-planSeparation <target ok/danger counter separation (Fisher score)> [-planMeanError <relative error of counter means (default 0.05)>]\n\t"
+                                      + "[-planThreads <threads for projected wall time (default available processors)>]\n\t"
+                                      + "-datasetSize <pilot samples per distribution> -steps <steps per scan> -nevusDistribution ... [-parameterFile <parameter file name>]\n"
+                                      + "Worker usage: java GenClassificationData -worker <coordinator host>:<port>";
 
-   // Main.
-   public static void main(String[] args)
-   {
-      int    datasetSize     = -1;
-      String datasetFilename = null;
-      int    steps           = -1;
-
-      ArrayList<Double> nevusWidthMean             = new ArrayList<Double>();
-      ArrayList<Double> nevusWidthSigma            = new ArrayList<Double>();
-      ArrayList<Double> nevusHeightMean            = new ArrayList<Double>();
-      ArrayList<Double> nevusHeightSigma           = new ArrayList<Double>();
-      ArrayList<Double> nevusEpidermisDepthMean    = new ArrayList<Double>();
-      ArrayList<Double> nevusEpidermisDepthSigma   = new ArrayList<Double>();
-      ArrayList<Float>  nevusDistributionFrequency = new ArrayList<Float>();
-      String            parameterFilename          = null;
+   // Default pooled simulation photon multiplier.
+   public static final int DEFAULT_POOL_PHOTON_FACTOR = 100;
+
+   // Default samples per worker chunk.
+   public static final int DEFAULT_CHUNK_SIZE = 100;
+
+   // Seed index (see mixSeed) of k-means seeding, apart from samples'
+   // (0 and up) and pooled distributions' (-1 - distribution).
+   public static final long KMEANS_SEED_INDEX = Long.MIN_VALUE;
+
+   // Default seconds per worker chunk before reassignment.
+   public static final int DEFAULT_WORKER_TIMEOUT = 600;
+
+   // Dataset.
+   public int    datasetSize     = -1;
+   public String datasetFilename = null;
+   public int    steps           = -1;
+
+   // Nevus distributions.
+   public ArrayList<Double> nevusWidthMean             = new ArrayList<Double>();
+   public ArrayList<Double> nevusWidthSigma            = new ArrayList<Double>();
+   public ArrayList<Double> nevusHeightMean            = new ArrayList<Double>();
+   public ArrayList<Double> nevusHeightSigma           = new ArrayList<Double>();
+   public ArrayList<Double> nevusEpidermisDepthMean    = new ArrayList<Double>();
+   public ArrayList<Double> nevusEpidermisDepthSigma   = new ArrayList<Double>();
+   public ArrayList<Float>  nevusDistributionFrequency = new ArrayList<Float>();
+   public String            parameterFilename          = null;
+   public int               poolPhotonFactor           = DEFAULT_POOL_PHOTON_FACTOR;
+
+   // Random seed.
+   public long    randomSeed;
+   public boolean randomSeedGiven = false;
+
+   // Photon transport engine (see SkinSeerSim.getEngine).
+   public String engine = SkinSeerSim.SCALAR_ENGINE;
+
+   // Transport engines to check for equivalence instead of generating,
+   // and significance level (see EngineCheck).
+   public String[] checkEngines = null;
+   public double   checkAlpha   = EngineCheck.DEFAULT_ALPHA;
+
+   // Compute budget plan targets instead of generating (none if not
+   // positive), counter mean error and threads (see BudgetPlanner).
+   public double planSnr        = -1.0;
+   public double planSeparation = -1.0;
+   public double planMeanError  = BudgetPlanner.DEFAULT_MEAN_ERROR;
+   public int    planThreads    = Runtime.getRuntime().availableProcessors();
+
+   // Distribution.
+   public int    coordinatorPort   = -1;
+   public int    chunkSize         = DEFAULT_CHUNK_SIZE;
+   public int    spawnLocalWorkers = 0;
+   public int    workerTimeout     = DEFAULT_WORKER_TIMEOUT;
+   public String workerAddress     = null;
+
+   // Metrics, also registered as an MBean, and optional log.
+   public SimulationMetrics metrics;
+   public String            metricsFilename = null;
+   public int               metricsInterval = SimulationMetrics.DEFAULT_LOG_INTERVAL;
+
+   // Sample wall time (ns), photon steps and allocated bytes histograms
+   // by distribution, printed at the end of a run and optionally written
+   // to a file.
+   public LogHistogram[] sampleNanos;
+   public LogHistogram[] sampleSteps;
+   public LogHistogram[] sampleBytes;
+   public String         histogramFilename = null;
+
+   // Reused per sample: scanner, sample random numbers, nevus
+   // distribution and entry buffer, so steady-state samples allocate
+   // (almost) nothing.
+   SkinSeerSim        scanner;
+   CounterRandom      sampleRandom;
+   NormalDistribution nevusDistribution;
+   byte[]             sampleBuffer;
 
+   // Entry labels.
+   static final byte[] DANGER_LABEL = "danger".getBytes(StandardCharsets.US_ASCII);
+   static final byte[] OK_LABEL     = "ok".getBytes(StandardCharsets.US_ASCII);
+
+   // Dataset writer reorder window (samples) and batch size (bytes).
+   public int writerWindow    = DatasetWriter.DEFAULT_WINDOW;
+   public int writerBatchSize = DatasetWriter.DEFAULT_BATCH_SIZE;
+
+   // Photon log of simulated (not pooled) samples, and its writer.
+   public PhotonLog photonLog         = null;
+   public String    photonLogFilename = null;
+   PrintWriter      photonLogWriter   = null;
+
+   // In-process analysis of the samples: feature statistics and k-means
+   // clustering, written to a file instead of (or as well as) the dataset.
+   public String     analysisFilename = null;
+   public int        clusters         = MiniBatchKMeans.DEFAULT_CLUSTERS;
+   public int        clusterBatchSize = MiniBatchKMeans.DEFAULT_BATCH_SIZE;
+   FeatureStatistics statistics       = null;
+   MiniBatchKMeans   kMeans           = null;
+
+   // Photon to replay instead of generating: sample, source and photon.
+   public long   replaySample   = -1;
+   public int    replaySource   = -1;
+   public long   replayPhoton   = -1;
+   public String replayFilename = null;
+
+   // Pooled simulations of zero-sigma distributions.
+   PooledScan[] pooledScans;
+
+   // Photon counters per sample over all detector arrays.
+   public int numCounters;
+
+   // Constructor.
+   // Parses arguments; worker mode only needs the coordinator address.
+   public GenClassificationData(String[] args)
+   {
       for (int i = 0; i < args.length; i++)
       {
          if (args[i].equals("-datasetSize"))
@@ -191,115 +316,1072 @@ public class GenClassificationData
             parameterFilename = args[i];
             continue;
          }
-         System.err.println(Usage);
-         System.exit(1);
-      }
-      if ((datasetSize == -1) || (datasetFilename == null) || (steps == -1) ||
-          (nevusWidthMean.size() == 0))
-      {
-         System.err.println(Usage);
-         System.exit(1);
-      }
-      float sum = 0.0f;
-      for (Float distributionFrequency : nevusDistributionFrequency)
-      {
-         sum += distributionFrequency;
-      }
-      if (Math.abs(sum - 1.0f) > 0.001f)
-      {
-         System.err.println("Sum of distribution frequencies must equal 1");
-         System.err.println(Usage);
-         System.exit(1);
-      }
-
-      // Load parameters?
-      if (parameterFilename != null)
-      {
-         SkinSeerSim.loadParameters(parameterFilename);
-      }
-
-      // Open the dataset file.
-      try (Writer writer = new BufferedWriter(new OutputStreamWriter(
-                                                 new FileOutputStream(datasetFilename), StandardCharsets.UTF_8)))
-         {
-            // Generate data.
-            SecureRandom random = new SecureRandom();
-            for (int i = 0; i < datasetSize; i++)
-            {
-               // Choose a distribution.
-               int   n     = 0;
-               float p     = random.nextFloat();
-               float accum = 0.0f;
-               for ( ; n < nevusDistributionFrequency.size(); n++)
-               {
-                  accum += nevusDistributionFrequency.get(n);
-                  if (p < accum) { break; }
-               }
-               if (n == nevusDistributionFrequency.size())
-               {
-                  n = 0;
-               }
-
-               // Set nevus properties.
-               if (nevusWidthMean.get(n) == 0.0)
-               {
-                  SkinSeerSim.NEVUS_VALID = false;
-               }
-               else
-               {
-                  SkinSeerSim.NEVUS_VALID           = true;
-                  SkinSeerSim.NEVUS_WIDTH           = (float)getDistributionValue(nevusWidthMean.get(n), nevusWidthSigma.get(n));
-                  SkinSeerSim.NEVUS_HEIGHT          = (float)getDistributionValue(nevusHeightMean.get(n), nevusHeightSigma.get(n));
-                  SkinSeerSim.NEVUS_EPIDERMIS_DEPTH = (float)getDistributionValue(nevusEpidermisDepthMean.get(n), nevusEpidermisDepthSigma.get(n));
-               }
-
-               // Run scanner.
-               SkinSeerSim scanner = new SkinSeerSim();
-               for (int step = 0; step < steps && scanner.step(); step++) {}
-
-               // Nevus is dangerous if it penetrates dermis.
-               boolean dangerous = false;
-               if (nevusWidthMean.get(n) > 0.0)
-               {
-                  if ((scanner.nevus.shape.y - SkinSeerSim.NEVUS_HEIGHT) < SkinSeerSim.DERMIS_THICKNESS)
-                  {
-                     dangerous = true;
-                  }
-               }
-
-               // Write dataset entry.
-               for (int j = 0; j < SkinSeerSim.NUM_PHOTON_COUNTERS; j++)
-               {
-                  writer.write(scanner.photonDetector.photonCounters[j] + ",");
-               }
-               if (dangerous)
-               {
-                  writer.write("danger");
-               }
-               else
-               {
-                  writer.write("ok");
-               }
-               writer.write("\n");
-            }
-         }
-         catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+         if (args[i].equals("-poolPhotonFactor"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            poolPhotonFactor = Integer.parseInt(args[i]);
+            if (poolPhotonFactor < 0)
+            {
+               System.err.println("Invalid poolPhotonFactor");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-
-
-
-
-      System.exit(0);
-   }
-
-
-   // Get normal distribution value.
-   public static double getDistributionValue(double mean, double sigma)
-   {
-      NormalDistribution distribution = new NormalDistribution(mean, sigma);
-
-      return(distribution.nextValue());
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            randomSeed      = Long.parseLong(args[i]);
+            randomSeedGiven = true;
+            continue;
+         }
+         if (args[i].equals("-coordinatorPort"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            coordinatorPort = Integer.parseInt(args[i]);
+            if ((coordinatorPort < 0) || (coordinatorPort > 65535))
+            {
+               System.err.println("Invalid coordinatorPort");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-chunkSize"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            chunkSize = Integer.parseInt(args[i]);
+            if (chunkSize <= 0)
+            {
+               System.err.println("Invalid chunkSize");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-spawnLocalWorkers"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            spawnLocalWorkers = Integer.parseInt(args[i]);
+            if (spawnLocalWorkers < 0)
+            {
+               System.err.println("Invalid spawnLocalWorkers");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-workerTimeout"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            workerTimeout = Integer.parseInt(args[i]);
+            if (workerTimeout < 0)
+            {
+               System.err.println("Invalid workerTimeout");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metricsFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            metricsFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-metricsInterval"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            metricsInterval = Integer.parseInt(args[i]);
+            if (metricsInterval <= 0)
+            {
+               System.err.println("Invalid metricsInterval");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-histogramFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            histogramFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-writerWindow"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            writerWindow = Integer.parseInt(args[i]);
+            if (writerWindow <= 0)
+            {
+               System.err.println("Invalid writerWindow");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-writerBatchSize"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            writerBatchSize = Integer.parseInt(args[i]);
+            if (writerBatchSize <= 0)
+            {
+               System.err.println("Invalid writerBatchSize");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-compressThreads"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            BlockGzipOutputStream.compressThreads = Integer.parseInt(args[i]);
+            if (BlockGzipOutputStream.compressThreads <= 0)
+            {
+               System.err.println("Invalid compressThreads");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-photonLog"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               photonLog = PhotonLog.parse(args[i]);
+            }
+            catch (IllegalArgumentException e)
+            {
+               System.err.println(e.getMessage());
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-photonLogFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            photonLogFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-engine"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            engine = args[i];
+            if (SkinSeerSim.getEngine(engine) == null)
+            {
+               System.err.println("Invalid engine");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-checkEngines"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            checkEngines = args[i].split(",");
+            if ((checkEngines.length != 2) || (SkinSeerSim.getEngine(checkEngines[0]) == null) ||
+                (SkinSeerSim.getEngine(checkEngines[1]) == null))
+            {
+               System.err.println("Invalid checkEngines");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-checkAlpha"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            checkAlpha = Double.parseDouble(args[i]);
+            if ((checkAlpha <= 0.0) || (checkAlpha >= 1.0))
+            {
+               System.err.println("Invalid checkAlpha");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-planSnr"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            planSnr = Double.parseDouble(args[i]);
+            if (planSnr <= 0.0)
+            {
+               System.err.println("Invalid planSnr");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-planSeparation"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            planSeparation = Double.parseDouble(args[i]);
+            if (planSeparation <= 0.0)
+            {
+               System.err.println("Invalid planSeparation");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-planMeanError"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            planMeanError = Double.parseDouble(args[i]);
+            if (planMeanError <= 0.0)
+            {
+               System.err.println("Invalid planMeanError");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-planThreads"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            planThreads = Integer.parseInt(args[i]);
+            if (planThreads <= 0)
+            {
+               System.err.println("Invalid planThreads");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-analysisFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            analysisFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-clusters"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            clusters = Integer.parseInt(args[i]);
+            if (clusters <= 0)
+            {
+               System.err.println("Invalid clusters");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-clusterBatchSize"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            clusterBatchSize = Integer.parseInt(args[i]);
+            if (clusterBatchSize <= 0)
+            {
+               System.err.println("Invalid clusterBatchSize");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-replayPhoton"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            String[] id = args[i].split(":");
+            if (id.length != 3)
+            {
+               System.err.println("Invalid replayPhoton");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            replaySample = Long.parseLong(id[0]);
+            replaySource = Integer.parseInt(id[1]);
+            replayPhoton = Long.parseLong(id[2]);
+            if ((replaySample < 0) || (replaySource < 0) || (replayPhoton < 0))
+            {
+               System.err.println("Invalid replayPhoton");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-replayFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            replayFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-worker"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            workerAddress = args[i];
+            continue;
+         }
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (workerAddress != null)
+      {
+         return;
+      }
+      if (replayPhoton != -1)
+      {
+         if (!randomSeedGiven)
+         {
+            System.err.println("Replay requires randomSeed");
+            System.err.println(Usage);
+            System.exit(1);
+         }
+      }
+      else if ((datasetSize == -1) ||
+               ((datasetFilename == null) && (analysisFilename == null) && (checkEngines == null) &&
+                (planSnr <= 0.0) && (planSeparation <= 0.0)))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((steps == -1) || (nevusWidthMean.size() == 0))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((analysisFilename != null) && (coordinatorPort != -1))
+      {
+         System.err.println("analysisFile is not supported with coordinatorPort");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((photonLogFilename != null) && (photonLog == null))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (photonLog != null)
+      {
+         if (coordinatorPort != -1)
+         {
+            System.err.println("photonLog is not supported with coordinatorPort");
+            System.err.println(Usage);
+            System.exit(1);
+         }
+         if (!randomSeedGiven)
+         {
+            System.err.println("photonLog requires randomSeed");
+            System.err.println(Usage);
+            System.exit(1);
+         }
+      }
+      float sum = 0.0f;
+      for (Float distributionFrequency : nevusDistributionFrequency)
+      {
+         sum += distributionFrequency;
+      }
+      if (Math.abs(sum - 1.0f) > 0.001f)
+      {
+         System.err.println("Sum of distribution frequencies must equal 1");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (!randomSeedGiven)
+      {
+         randomSeed = new SecureRandom().nextLong();
+      }
+   }
+
+
+   // Initialize generation.
+   public void init()
+   {
+      // Load parameters?
+      if (parameterFilename != null)
+      {
+         SkinSeerSim.loadParameters(parameterFilename);
+      }
+
+      // Sample nevi are drawn from the distributions: a nevus list would
+      // be simulated instead, not matching the labels.
+      if (SkinSeerSim.NEVI.size() > 0)
+      {
+         System.err.println("NEVUS_<n>_* parameters cannot be used with -nevusDistribution");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      pooledScans = new PooledScan[nevusDistributionFrequency.size()];
+      numCounters = SkinSeerSim.getPhotonDetectors().size() * SkinSeerSim.NUM_PHOTON_COUNTERS;
+      sampleNanos = new LogHistogram[nevusDistributionFrequency.size()];
+      sampleSteps = new LogHistogram[nevusDistributionFrequency.size()];
+      sampleBytes = new LogHistogram[nevusDistributionFrequency.size()];
+      for (int i = 0; i < sampleNanos.length; i++)
+      {
+         sampleNanos[i] = new LogHistogram();
+         sampleSteps[i] = new LogHistogram();
+         sampleBytes[i] = new LogHistogram();
+      }
+      sampleRandom      = new CounterRandom(randomSeed, 0, CounterRandom.SAMPLE_STREAM);
+      nevusDistribution = new NormalDistribution(0.0, 0.0, sampleRandom);
+      sampleBuffer      = new byte[maxSampleLength()];
+      if (analysisFilename != null)
+      {
+         statistics = new FeatureStatistics(numCounters);
+         kMeans     = new MiniBatchKMeans(clusters, numCounters, clusterBatchSize, mixSeed(randomSeed, KMEANS_SEED_INDEX));
+      }
+
+      // Create metrics.
+      metrics = new SimulationMetrics(datasetSize);
+      metrics.register();
+      if (metricsFilename != null)
+      {
+         try
+         {
+            metrics.startLog(metricsFilename, metricsInterval);
+         }
+         catch (IOException e)
+         {
+            System.err.println("Cannot open metrics file " + metricsFilename + ":" + e.getMessage());
+            System.exit(1);
+         }
+      }
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      GenClassificationData generator = new GenClassificationData(args);
+
+      // Worker?
+      if (generator.workerAddress != null)
+      {
+         DatasetWorker.run(generator.workerAddress);
+         System.exit(0);
+      }
+
+      generator.init();
+
+      // Replay photon?
+      if (generator.replayPhoton != -1)
+      {
+         generator.replay();
+         System.exit(0);
+      }
+
+      // Plan compute budget?
+      if ((generator.planSnr > 0.0) || (generator.planSeparation > 0.0))
+      {
+         boolean reachable = new BudgetPlanner(generator).run(new PrintWriter(System.out));
+         System.exit(reachable ? 0 : 1);
+      }
+
+      // Check transport engines?
+      if (generator.checkEngines != null)
+      {
+         boolean equivalent = EngineCheck.run(generator, generator.checkEngines[0], generator.checkEngines[1],
+                                              generator.checkAlpha, new PrintWriter(System.out));
+         System.exit(equivalent ? 0 : 1);
+      }
+
+      // Open photon log?
+      if (generator.photonLog != null)
+      {
+         generator.photonLogWriter = SkinSeerSim.openWriter(generator.photonLogFilename, "photon log");
+      }
+
+      // Distribute to workers?
+      if (generator.coordinatorPort != -1)
+      {
+         DatasetCoordinator coordinator = new DatasetCoordinator(generator, args);
+         try
+         {
+            coordinator.run();
+         }
+         catch (IOException e)
+         {
+            e.printStackTrace();
+            System.exit(1);
+         }
+         generator.metrics.stopLog();
+         System.exit(0);
+      }
+
+      // Generate data, formatted and written by the dataset writer, if
+      // any, and analyzed in process, if requested. On failure the writer
+      // is aborted, leaving the dataset incomplete.
+      DatasetWriter datasetWriter = null;
+      try
+      {
+         if (generator.datasetFilename != null)
+         {
+            datasetWriter = new DatasetWriter(generator, BlockGzipOutputStream.open(generator.datasetFilename),
+                                              generator.datasetSize, generator.writerWindow,
+                                              generator.writerBatchSize);
+         }
+         int[] photonCounters = new int[generator.numCounters];
+         for (int i = 0; i < generator.datasetSize; i++)
+         {
+            DatasetWriter.Entry entry     = (datasetWriter != null) ? datasetWriter.acquire(i) : null;
+            int[]               counters  = (entry != null) ? entry.counters : photonCounters;
+            boolean             dangerous = generator.generateSample(i, counters);
+            if (generator.statistics != null)
+            {
+               generator.analyze(counters, dangerous);
+            }
+            if (entry != null)
+            {
+               entry.dangerous = dangerous;
+               datasetWriter.submit(entry);
+            }
+         }
+         if (datasetWriter != null)
+         {
+            datasetWriter.close();
+            datasetWriter = null;
+         }
+      }
+      catch (IOException e) {
+         e.printStackTrace();
+         System.exit(1);
+      }
+      finally
+      {
+         // Unchecked exception: stop the writer so it ends the run.
+         if (datasetWriter != null)
+         {
+            datasetWriter.abort();
+         }
+      }
+      generator.metrics.stopLog();
+      if (generator.photonLogWriter != null)
+      {
+         generator.photonLogWriter.flush();
+         if (generator.photonLogFilename != null)
+         {
+            generator.photonLogWriter.close();
+         }
+      }
+
+      // Print and write sample histograms.
+      PrintWriter writer = new PrintWriter(System.out);
+      generator.printHistograms(writer);
+      writer.flush();
+      if (generator.histogramFilename != null)
+      {
+         try
+         {
+            generator.writeHistograms(generator.histogramFilename);
+         }
+         catch (IOException e)
+         {
+            System.err.println("Cannot write histogram file " + generator.histogramFilename + ":" + e.getMessage());
+            System.exit(1);
+         }
+      }
+      // Print and write analysis.
+      if (generator.statistics != null)
+      {
+         generator.kMeans.finish();
+         generator.statistics.print(writer);
+         generator.kMeans.print(writer);
+         writer.flush();
+         PrintWriter analysisWriter = SkinSeerSim.openWriter(generator.analysisFilename, "analysis");
+         generator.writeAnalysis(analysisWriter);
+         analysisWriter.close();
+      }
+
+      System.exit(0);
+   }
+
+
+   // Generate sample.
+   // Return true if nevus is dangerous.
+   public boolean generateSample(long index, int[] photonCounters)
+   {
+      long          start     = System.nanoTime();
+      long          bytes     = allocatedBytes();
+      long          scanSteps = 0;
+      CounterRandom random    = sampleRandom;
+
+      random.setSample(index);
+      int n = chooseDistribution(random);
+
+      // Degenerate distribution: simulate its single configuration once.
+      // Its values are the distribution means and it has its own seed,
+      // so samples do not depend on which sample created it.
+      if ((pooledScans[n] == null) && isPooled(n))
+      {
+         setNevus(n, new CounterRandom(randomSeed, -1 - n, CounterRandom.SAMPLE_STREAM));
+         pooledScans[n] = new PooledScan(steps, poolPhotonFactor, mixSeed(randomSeed, -1 - n));
+         metrics.addScan(pooledScans[n].scanner);
+         scanSteps = photonSteps(pooledScans[n].scanner);
+      }
+
+      // Use pooled simulation?
+      boolean dangerous;
+      if (pooledScans[n] != null)
+      {
+         pooledScans[n].sample(random, photonCounters);
+         dangerous = pooledScans[n].dangerous;
+      }
+      else
+      {
+         // Run scanner, reusing it after the first sample.
+         setNevus(n, random);
+         if (scanner == null)
+         {
+            scanner              = new SkinSeerSim();
+            scanner.photonTraces = false;
+            scanner.photonLog    = photonLog;
+            scanner.engine       = SkinSeerSim.getEngine(engine);
+         }
+         else
+         {
+            scanner.resetScan();
+         }
+         scanner.setRandomSeed(randomSeed, index);
+         scanner.run(steps);
+         if (photonLogWriter != null)
+         {
+            PhotonLog.write(photonLogWriter, scanner);
+         }
+         metrics.addScan(scanner);
+         scanSteps = photonSteps(scanner);
+         dangerous = isDangerous(scanner);
+         for (SkinSeerSim.PhotonDetector detector : scanner.photonDetectors)
+         {
+            System.arraycopy(detector.photonCounters, 0, photonCounters,
+                             detector.index * SkinSeerSim.NUM_PHOTON_COUNTERS, SkinSeerSim.NUM_PHOTON_COUNTERS);
+         }
+      }
+      metrics.addSamples(1);
+      sampleNanos[n].record(System.nanoTime() - start);
+      sampleSteps[n].record(scanSteps);
+      if (bytes != -1)
+      {
+         sampleBytes[n].record(allocatedBytes() - bytes);
+      }
+      return(dangerous);
+   }
+
+
+   // Choose distribution of sample.
+   int chooseDistribution(Random random)
+   {
+      int   n     = 0;
+      float p     = random.nextFloat();
+      float accum = 0.0f;
+
+      for ( ; n < nevusDistributionFrequency.size(); n++)
+      {
+         accum += nevusDistributionFrequency.get(n);
+         if (p < accum) { break; }
+      }
+      if (n == nevusDistributionFrequency.size())
+      {
+         n = 0;
+      }
+      return(n);
+   }
+
+
+   // Distribution pooled? Degenerate distributions are, when pooling.
+   boolean isPooled(int n)
+   {
+      return((poolPhotonFactor > 0) &&
+             ((nevusWidthMean.get(n) == 0.0) ||
+              ((nevusWidthSigma.get(n) == 0.0) && (nevusHeightSigma.get(n) == 0.0) &&
+               (nevusEpidermisDepthSigma.get(n) == 0.0))));
+   }
+
+
+   // Replay photon of a sample with a trace, configuring the sample's
+   // scan as generateSample does, and print it.
+   public void replay()
+   {
+      sampleRandom.setSample(replaySample);
+      int n = chooseDistribution(sampleRandom);
+      if (isPooled(n))
+      {
+         System.err.println("Sample " + replaySample + " is drawn from a pooled scan, which has no photons of its own");
+         System.exit(1);
+      }
+      setNevus(n, sampleRandom);
+      SkinSeerSim scanner = new SkinSeerSim();
+      scanner.setRandomSeed(randomSeed, replaySample);
+      if (replaySource >= scanner.photonSources.size())
+      {
+         System.err.println("Invalid replayPhoton source");
+         System.exit(1);
+      }
+      if (replayPhoton >= scanner.scanPhotons(steps))
+      {
+         System.err.println("Photon not emitted in a scan of " + steps + " steps");
+         System.exit(1);
+      }
+      PrintWriter writer = SkinSeerSim.openWriter(replayFilename, "replay");
+      scanner.replayPhoton(replaySource, replayPhoton).print(writer);
+      writer.flush();
+      if (replayFilename != null)
+      {
+         writer.close();
+      }
+   }
+
+
+   // Bytes allocated by the current thread, or -1 if not supported.
+   static long allocatedBytes()
+   {
+      if (threadBean == null)
+      {
+         return(-1);
+      }
+      return(threadBean.getCurrentThreadAllocatedBytes());
+   }
+
+
+   // Thread allocation measurement, or null if not supported.
+   static final com.sun.management.ThreadMXBean threadBean = allocationBean();
+
+   static com.sun.management.ThreadMXBean allocationBean()
+   {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+      if ((bean instanceof com.sun.management.ThreadMXBean) &&
+          ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+      {
+         ((com.sun.management.ThreadMXBean)bean).setThreadAllocatedMemoryEnabled(true);
+         return((com.sun.management.ThreadMXBean)bean);
+      }
+      return(null);
+   }
+
+
+   // Photon steps of scanner.
+   static long photonSteps(SkinSeerSim scanner)
+   {
+      long steps = 0;
+
+      for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+      {
+         steps += source.photonSteps;
+      }
+      return(steps);
+   }
+
+
+   // Print sample time and steps percentiles by distribution.
+   public void printHistograms(PrintWriter writer)
+   {
+      for (int i = 0; i < sampleNanos.length; i++)
+      {
+         if (sampleNanos[i].totalCount > 0)
+         {
+            sampleNanos[i].printSummary(writer, "distribution " + i + " sample time", 1.0e6, " ms");
+            sampleSteps[i].printSummary(writer, "distribution " + i + " sample photon steps", 1.0, "");
+            if (sampleBytes[i].totalCount > 0)
+            {
+               sampleBytes[i].printSummary(writer, "distribution " + i + " sample allocated bytes", 1.0, "");
+            }
+         }
+      }
+   }
+
+
+   // Write histograms as CSV rows:
+   // distribution, "nanoseconds", "steps" or "bytes", highest bucket value, count.
+   public void writeHistograms(String filename) throws IOException
+   {
+      try (PrintWriter writer = new PrintWriter(new BufferedWriter(
+                                                   new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8))))
+         {
+            for (int i = 0; i < sampleNanos.length; i++)
+            {
+               sampleNanos[i].writeCsv(writer, i + ",nanoseconds");
+               sampleSteps[i].writeCsv(writer, i + ",steps");
+               sampleBytes[i].writeCsv(writer, i + ",bytes");
+            }
+         }
+   }
+
+
+   // Analyze sample: add it to the feature statistics and k-means.
+   public void analyze(int[] photonCounters, boolean dangerous)
+   {
+      statistics.add(photonCounters, dangerous);
+      kMeans.add(photonCounters, dangerous);
+   }
+
+
+   // Write analysis as CSV rows: feature statistics, then k-means model
+   // (see FeatureStatistics.write and MiniBatchKMeans.write).
+   public void writeAnalysis(PrintWriter writer)
+   {
+      statistics.write(writer);
+      kMeans.write(writer);
+   }
+
+
+   // Set nevus properties from distribution.
+   void setNevus(int n, Random random)
+   {
+      if (nevusWidthMean.get(n) == 0.0)
+      {
+         SkinSeerSim.NEVUS_VALID = false;
+      }
+      else
+      {
+         nevusDistribution.setRandom(random);
+         SkinSeerSim.NEVUS_VALID           = true;
+         SkinSeerSim.NEVUS_WIDTH           = (float)nextDistributionValue(nevusWidthMean.get(n), nevusWidthSigma.get(n));
+         SkinSeerSim.NEVUS_HEIGHT          = (float)nextDistributionValue(nevusHeightMean.get(n), nevusHeightSigma.get(n));
+         SkinSeerSim.NEVUS_EPIDERMIS_DEPTH = (float)nextDistributionValue(nevusEpidermisDepthMean.get(n), nevusEpidermisDepthSigma.get(n));
+      }
+   }
+
+
+   // Next nevus distribution value.
+   double nextDistributionValue(double mean, double sigma)
+   {
+      nevusDistribution.setMean(mean);
+      nevusDistribution.setSigma(sigma);
+      return(nevusDistribution.nextValue());
+   }
+
+
+   // Format dataset entry.
+   public String formatSample(int[] photonCounters, boolean dangerous)
+   {
+      byte[] buffer = new byte[maxSampleLength()];
+
+      return(new String(buffer, 0, formatSample(photonCounters, dangerous, buffer), StandardCharsets.US_ASCII));
+   }
+
+
+   // Format dataset entry into buffer as ASCII, at offset if given.
+   // Return length.
+   public int formatSample(int[] photonCounters, boolean dangerous, byte[] buffer)
+   {
+      return(formatSample(photonCounters, dangerous, buffer, 0));
+   }
+
+
+   public int formatSample(int[] photonCounters, boolean dangerous, byte[] buffer, int offset)
+   {
+      int length = offset;
+
+      for (int j = 0; j < numCounters; j++)
+      {
+         length           = formatInt(photonCounters[j], buffer, length);
+         buffer[length++] = ',';
+      }
+      byte[] label = dangerous ? DANGER_LABEL : OK_LABEL;
+      System.arraycopy(label, 0, buffer, length, label.length);
+      length          += label.length;
+      buffer[length++] = '\n';
+      return(length - offset);
+   }
+
+
+   // Maximum formatted dataset entry length.
+   public int maxSampleLength()
+   {
+      return((numCounters * 12) + DANGER_LABEL.length + 1);
+   }
+
+
+   // Format integer into buffer at offset.
+   // Return offset after it.
+   static int formatInt(int value, byte[] buffer, int offset)
+   {
+      long v = value;
+
+      if (v < 0)
+      {
+         buffer[offset++] = '-';
+         v                = -v;
+      }
+      int digits = 1;
+      for (long p = 10; p <= v; p *= 10)
+      {
+         digits++;
+      }
+      for (int i = offset + digits - 1; i >= offset; i--)
+      {
+         buffer[i] = (byte)('0' + (v % 10));
+         v        /= 10;
+      }
+      return(offset + digits);
+   }
+
+
+   // Nevus is dangerous if it penetrates dermis.
+   public static boolean isDangerous(SkinSeerSim scanner)
+   {
+      float dermisY = SkinSeerSim.getDermisY();
+
+      for (SkinSeerSim.Nevus nevus : scanner.nevi)
+      {
+         if ((nevus.shape.y - nevus.shape.height) < dermisY)
+         {
+            return(true);
+         }
+      }
+      return(false);
+   }
+
+
+   // Get normal distribution value.
+   public static double getDistributionValue(double mean, double sigma)
+   {
+      NormalDistribution distribution = new NormalDistribution(mean, sigma);
+
+      return(distribution.nextValue());
+   }
+
+
+   public static double getDistributionValue(double mean, double sigma, Random random)
+   {
+      NormalDistribution distribution = new NormalDistribution(mean, sigma, random);
+
+      return(distribution.nextValue());
+   }
+
+
+   // Mix seed and index into a well-distributed seed (SplitMix64 finalizer).
+   public static long mixSeed(long seed, long index)
+   {
+      long z = seed + ((index + 1) * 0x9E3779B97F4A7C15L);
+
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return(z ^ (z >>> 31));
    }
 }
@@ -0,0 +1,32 @@
+// Photon lanes transport engine.
+// Transports photons in lanes (see PhotonLanes), with SIMD vectors if
+// requested and available (see VectorPhotonLanes). Counts are identical
+// to the scalar engine. Experimental: slower than scalar (see PhotonLanes).
+
+package skinseer;
+
+public class LanesTransportEngine implements TransportEngine
+{
+   // Name and use vectors?
+   String  name;
+   boolean vector;
+
+   // Constructor.
+   public LanesTransportEngine(String name, boolean vector)
+   {
+      this.name   = name;
+      this.vector = vector;
+   }
+
+
+   public String name()
+   {
+      return(name);
+   }
+
+
+   public void transport(SkinSeerSim scanner, SkinSeerSim.PhotonSource source, int firstStepPhoton, long photons)
+   {
+      PhotonLanes.create(scanner, source, vector).transport(firstStepPhoton, photons);
+   }
+}
@@ -0,0 +1,141 @@
+// Log-bucketed histogram.
+// Fixed-memory histogram of non-negative long values, in the manner of
+// HdrHistogram: values below 2^SUB_BUCKET_BITS are counted exactly, and
+// each higher power of two range is split into 2^(SUB_BUCKET_BITS-1)
+// equal buckets, so any recorded value is known to within 1/64 of it.
+
+package skinseer;
+
+import java.io.PrintWriter;
+
+public class LogHistogram
+{
+   // Sub-bucket resolution.
+   public static final int SUB_BUCKET_BITS  = 7;
+   public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   public static final int SUB_BUCKET_HALF  = SUB_BUCKET_COUNT / 2;
+
+   // Buckets: exact values, then half sub-bucket counts per power of two.
+   public static final int NUM_BUCKETS = SUB_BUCKET_COUNT + ((63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF);
+
+   // Counts.
+   public long[] counts;
+   public long   totalCount;
+   public long   maxValue;
+
+   // Constructor.
+   public LogHistogram()
+   {
+      counts     = new long[NUM_BUCKETS];
+      totalCount = 0;
+      maxValue   = 0;
+   }
+
+
+   // Bucket of value.
+   static int bucket(long value)
+   {
+      int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1));
+
+      return((shift * SUB_BUCKET_HALF) + (int)(value >>> shift));
+   }
+
+
+   // Highest value in bucket.
+   static long highestValue(int bucket)
+   {
+      if (bucket < SUB_BUCKET_COUNT)
+      {
+         return(bucket);
+      }
+      int  shift = ((bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF) + 1;
+      long sub   = bucket - (shift * SUB_BUCKET_HALF);
+      return(((sub + 1) << shift) - 1);
+   }
+
+
+   // Record value (negative values are recorded as 0).
+   public void record(long value)
+   {
+      if (value < 0)
+      {
+         value = 0;
+      }
+      counts[bucket(value)]++;
+      totalCount++;
+      if (value > maxValue)
+      {
+         maxValue = value;
+      }
+   }
+
+
+   // Add histogram.
+   public void add(LogHistogram histogram)
+   {
+      for (int i = 0; i < NUM_BUCKETS; i++)
+      {
+         counts[i] += histogram.counts[i];
+      }
+      totalCount += histogram.totalCount;
+      maxValue    = Math.max(maxValue, histogram.maxValue);
+   }
+
+
+   // Value at percentile (0-100): highest value of the bucket holding it,
+   // no more than the maximum recorded value.
+   public long percentile(double percentile)
+   {
+      if (totalCount == 0)
+      {
+         return(0);
+      }
+      long rank  = Math.max(1, (long)Math.ceil((percentile / 100.0) * (double)totalCount));
+      long count = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++)
+      {
+         count += counts[i];
+         if (count >= rank)
+         {
+            return(Math.min(highestValue(i), maxValue));
+         }
+      }
+      return(maxValue);
+   }
+
+
+   // Print summary: count, p50, p99, p99.9 and max, in units of the
+   // given divisor.
+   public void printSummary(PrintWriter writer, String name, double divisor, String units)
+   {
+      writer.println(name + ": count=" + totalCount +
+                     ", p50=" + format(percentile(50.0), divisor) +
+                     ", p99=" + format(percentile(99.0), divisor) +
+                     ", p99.9=" + format(percentile(99.9), divisor) +
+                     ", max=" + format(maxValue, divisor) + units);
+   }
+
+
+   // Format value in units of divisor.
+   static String format(long value, double divisor)
+   {
+      if (divisor == 1.0)
+      {
+         return(Long.toString(value));
+      }
+      return(String.format("%.3f", (double)value / divisor));
+   }
+
+
+   // Write non-empty buckets as CSV rows: label, highest bucket value, count.
+   public void writeCsv(PrintWriter writer, String label)
+   {
+      for (int i = 0; i < NUM_BUCKETS; i++)
+      {
+         if (counts[i] > 0)
+         {
+            writer.println(label + "," + highestValue(i) + "," + counts[i]);
+         }
+      }
+   }
+}
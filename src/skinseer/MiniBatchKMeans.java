@@ -0,0 +1,255 @@
+// Mini-batch k-means clustering.
+// Streaming k-means (Sculley, "Web-scale k-means clustering"): samples
+// are buffered into mini-batches, each batch is assigned to the nearest
+// centers, then each center moves toward its samples with a learning rate
+// of 1 / samples assigned to it so far. Memory is the centers and one
+// batch, whatever the number of samples. Centers are seeded by k-means++
+// on the first batch. Cluster sizes, dangerous samples and inertia are
+// counted as samples are assigned.
+
+package skinseer;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+public class MiniBatchKMeans
+{
+   // Default clusters and batch size.
+   public static final int DEFAULT_CLUSTERS   = 8;
+   public static final int DEFAULT_BATCH_SIZE = 1024;
+
+   // Clusters, features and batch size.
+   public int k;
+   public int dimensions;
+   public int batchSize;
+
+   // Centers (center-major), and centers seeded so far.
+   public double[] centers;
+   public int      numCenters;
+
+   // Per cluster: samples and dangerous samples assigned; and the sum of
+   // squared distances of samples to their centers when assigned.
+   public long[] clusterCounts;
+   public long[] clusterDanger;
+   public double inertia;
+
+   // Batch (sample-major), labels and assignments.
+   double[]  batch;
+   boolean[] batchDangerous;
+   int[]     assignments;
+   int       batchLength;
+
+   // Seeding random numbers.
+   Random random;
+
+   // Constructor.
+   public MiniBatchKMeans(int k, int dimensions, int batchSize, long randomSeed)
+   {
+      this.k          = k;
+      this.dimensions = dimensions;
+      this.batchSize  = Math.max(batchSize, k);
+      centers         = new double[k * dimensions];
+      numCenters      = 0;
+      clusterCounts   = new long[k];
+      clusterDanger   = new long[k];
+      inertia         = 0.0;
+      batch           = new double[this.batchSize * dimensions];
+      batchDangerous  = new boolean[this.batchSize];
+      assignments     = new int[this.batchSize];
+      batchLength     = 0;
+      random          = new Random(randomSeed);
+   }
+
+
+   // Add sample, updating the centers when the batch is full.
+   public void add(int[] features, boolean dangerous)
+   {
+      int offset = batchLength * dimensions;
+
+      for (int i = 0; i < dimensions; i++)
+      {
+         batch[offset + i] = (double)features[i];
+      }
+      batchDangerous[batchLength] = dangerous;
+      batchLength++;
+      if (batchLength == batchSize)
+      {
+         step();
+      }
+   }
+
+
+   // Update the centers with a partial last batch.
+   public void finish()
+   {
+      if (batchLength > 0)
+      {
+         step();
+      }
+   }
+
+
+   // Update the centers with the batch.
+   void step()
+   {
+      if (numCenters == 0)
+      {
+         seed();
+      }
+      for (int s = 0; s < batchLength; s++)
+      {
+         int offset = s * dimensions;
+         int c      = nearest(batch, offset);
+         assignments[s] = c;
+         inertia       += distance(batch, offset, c);
+      }
+      for (int s = 0; s < batchLength; s++)
+      {
+         int    c      = assignments[s];
+         int    offset = s * dimensions;
+         int    center = c * dimensions;
+         double eta    = 1.0 / (double)(++clusterCounts[c]);
+         if (batchDangerous[s])
+         {
+            clusterDanger[c]++;
+         }
+         for (int i = 0; i < dimensions; i++)
+         {
+            centers[center + i] += eta * (batch[offset + i] - centers[center + i]);
+         }
+      }
+      batchLength = 0;
+   }
+
+
+   // Seed centers from the batch by k-means++: each center is a sample
+   // chosen with probability proportional to its squared distance to the
+   // nearest center so far. Fewer centers if the batch has fewer
+   // distinct samples.
+   void seed()
+   {
+      double[] distances = new double[batchLength];
+
+      copyCenter(random.nextInt(batchLength));
+      for (int s = 0; s < batchLength; s++)
+      {
+         distances[s] = distance(batch, s * dimensions, 0);
+      }
+      while (numCenters < k)
+      {
+         double sum = 0.0;
+         for (int s = 0; s < batchLength; s++)
+         {
+            sum += distances[s];
+         }
+         if (sum == 0.0)
+         {
+            break;
+         }
+         double target = random.nextDouble() * sum;
+         int    chosen = -1;
+         for (int s = 0; s < batchLength; s++)
+         {
+            if (distances[s] > 0.0)
+            {
+               chosen  = s;
+               target -= distances[s];
+               if (target < 0.0)
+               {
+                  break;
+               }
+            }
+         }
+         copyCenter(chosen);
+         for (int s = 0; s < batchLength; s++)
+         {
+            distances[s] = Math.min(distances[s], distance(batch, s * dimensions, numCenters - 1));
+         }
+      }
+   }
+
+
+   // Add batch sample as center.
+   void copyCenter(int s)
+   {
+      System.arraycopy(batch, s * dimensions, centers, numCenters * dimensions, dimensions);
+      numCenters++;
+   }
+
+
+   // Nearest center to sample at offset.
+   int nearest(double[] data, int offset)
+   {
+      int    best         = 0;
+      double bestDistance = Double.MAX_VALUE;
+
+      for (int c = 0; c < numCenters; c++)
+      {
+         double d = distance(data, offset, c);
+         if (d < bestDistance)
+         {
+            best         = c;
+            bestDistance = d;
+         }
+      }
+      return(best);
+   }
+
+
+   // Squared distance of sample at offset to center.
+   double distance(double[] data, int offset, int c)
+   {
+      int    center = c * dimensions;
+      double sum    = 0.0;
+
+      for (int i = 0; i < dimensions; i++)
+      {
+         double d = data[offset + i] - centers[center + i];
+         sum += d * d;
+      }
+      return(sum);
+   }
+
+
+   // Print summary: clusters by size and dangerous fraction.
+   public void print(PrintWriter writer)
+   {
+      long samples = 0;
+
+      for (int c = 0; c < numCenters; c++)
+      {
+         samples += clusterCounts[c];
+      }
+      writer.println("k-means: clusters=" + numCenters + ", samples=" + samples +
+                     String.format(", mean inertia=%.3f", (samples > 0) ? inertia / (double)samples : 0.0));
+      for (int c = 0; c < numCenters; c++)
+      {
+         writer.println("cluster " + c + ": samples=" + clusterCounts[c] +
+                        String.format(", danger=%.1f%%", (clusterCounts[c] > 0) ?
+                                      100.0 * (double)clusterDanger[c] / (double)clusterCounts[c] : 0.0));
+      }
+   }
+
+
+   // Write as CSV rows:
+   // "center", cluster, value per feature
+   // "cluster", cluster, samples, dangerous samples
+   // "inertia", "all", sum of squared distances
+   public void write(PrintWriter writer)
+   {
+      for (int c = 0; c < numCenters; c++)
+      {
+         writer.print("center," + c);
+         for (int i = 0; i < dimensions; i++)
+         {
+            writer.print("," + centers[(c * dimensions) + i]);
+         }
+         writer.println();
+      }
+      for (int c = 0; c < numCenters; c++)
+      {
+         writer.println("cluster," + c + "," + clusterCounts[c] + "," + clusterDanger[c]);
+      }
+      writer.println("inertia,all," + inertia);
+   }
+}
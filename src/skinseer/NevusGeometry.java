@@ -0,0 +1,20 @@
+// Nevus geometry.
+
+package skinseer;
+
+public class NevusGeometry
+{
+   public float x;
+   public float width;
+   public float height;
+   public float epidermisDepth;
+
+   // Constructor.
+   public NevusGeometry(float x, float width, float height, float epidermisDepth)
+   {
+      this.x              = x;
+      this.width          = width;
+      this.height         = height;
+      this.epidermisDepth = epidermisDepth;
+   }
+}
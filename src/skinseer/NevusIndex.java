@@ -0,0 +1,140 @@
+// Nevus spatial index.
+// A uniform grid over the nevus bounding boxes in scan coordinates
+// (scanner offset zero). Each cell lists the nevi whose bounding box,
+// expanded by the photon radius, overlaps it, so a photon position
+// only tests the nevi of its own cell. It can be rebuilt for new nevus
+// geometry, reusing its arrays where their sizes allow.
+
+package skinseer;
+
+import java.util.ArrayList;
+
+public class NevusIndex
+{
+   static final int[] EMPTY_CELL = new int[0];
+
+   // Nevi.
+   SkinSeerSim.Nevus[] nevi;
+
+   // Grid.
+   float   originX;
+   float   originY;
+   float   cellSize;
+   int     numCellsX;
+   int     numCellsY;
+   int[][] cells;
+
+   // Nevi of cell being filled.
+   int[] cellNevi;
+
+   // Constructor.
+   public NevusIndex(ArrayList<SkinSeerSim.Nevus> nevusList)
+   {
+      build(nevusList);
+   }
+
+
+   // Build index of nevi.
+   public void build(ArrayList<SkinSeerSim.Nevus> nevusList)
+   {
+      if ((nevi == null) || (nevi.length != nevusList.size()))
+      {
+         nevi     = new SkinSeerSim.Nevus[nevusList.size()];
+         cellNevi = new int[nevi.length];
+      }
+      nevi = nevusList.toArray(nevi);
+
+      // Bound nevi, allowing for photon radius.
+      float r    = SkinSeerSim.PHOTON_RADIUS;
+      float minX = Float.MAX_VALUE;
+      float minY = Float.MAX_VALUE;
+      float maxX = -Float.MAX_VALUE;
+      float maxY = -Float.MAX_VALUE;
+      float size = 0.0f;
+      for (SkinSeerSim.Nevus nevus : nevi)
+      {
+         minX  = Math.min(minX, nevus.bounds.x - r);
+         minY  = Math.min(minY, nevus.bounds.y - r);
+         maxX  = Math.max(maxX, nevus.bounds.x + nevus.bounds.width + r);
+         maxY  = Math.max(maxY, nevus.bounds.y + nevus.bounds.height + r);
+         size += Math.max(nevus.bounds.width, nevus.bounds.height) + (r * 2.0f);
+      }
+
+      // Cell size is the mean nevus extent.
+      cellSize  = Math.max(size / (float)nevi.length, 1.0f);
+      originX   = minX;
+      originY   = minY;
+      numCellsX = (int)((maxX - minX) / cellSize) + 1;
+      numCellsY = (int)((maxY - minY) / cellSize) + 1;
+      if ((cells == null) || (cells.length != numCellsX * numCellsY))
+      {
+         cells = new int[numCellsX * numCellsY][];
+      }
+
+      // Fill cells.
+      for (int cy = 0; cy < numCellsY; cy++)
+      {
+         for (int cx = 0; cx < numCellsX; cx++)
+         {
+            float x1 = originX + ((float)cx * cellSize);
+            float y1 = originY + ((float)cy * cellSize);
+            float x2 = x1 + cellSize;
+            float y2 = y1 + cellSize;
+            int   n  = 0;
+            for (int i = 0; i < nevi.length; i++)
+            {
+               SkinSeerSim.Nevus nevus = nevi[i];
+               if ((nevus.bounds.x - r < x2) && (nevus.bounds.x + nevus.bounds.width + r >= x1) &&
+                   (nevus.bounds.y - r < y2) && (nevus.bounds.y + nevus.bounds.height + r >= y1))
+               {
+                  cellNevi[n] = i;
+                  n++;
+               }
+            }
+            if (n == 0)
+            {
+               cells[(cy * numCellsX) + cx] = EMPTY_CELL;
+            }
+            else
+            {
+               int[] cell = cells[(cy * numCellsX) + cx];
+               if ((cell == null) || (cell.length != n))
+               {
+                  cell = new int[n];
+               }
+               System.arraycopy(cellNevi, 0, cell, 0, n);
+               cells[(cy * numCellsX) + cx] = cell;
+            }
+         }
+      }
+   }
+
+
+   // Find nevus containing photon at scan coordinates, or null.
+   public SkinSeerSim.Nevus find(float x, float y)
+   {
+      float dx = x - originX;
+      float dy = y - originY;
+
+      if ((dx < 0.0f) || (dy < 0.0f))
+      {
+         return(null);
+      }
+      int cx = (int)(dx / cellSize);
+      int cy = (int)(dy / cellSize);
+      if ((cx >= numCellsX) || (cy >= numCellsY))
+      {
+         return(null);
+      }
+      int[] cell = cells[(cy * numCellsX) + cx];
+      for (int i = 0; i < cell.length; i++)
+      {
+         SkinSeerSim.Nevus nevus = nevi[cell[i]];
+         if (nevus.contains(x, y))
+         {
+            return(nevus);
+         }
+      }
+      return(null);
+   }
+}
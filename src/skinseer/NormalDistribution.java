@@ -3,6 +3,7 @@
 package skinseer;
 
 import java.security.SecureRandom;
+import java.util.Random;
 
 public class NormalDistribution
 {
@@ -10,7 +11,7 @@ public class NormalDistribution
    public static final double DEFAULT_SIGMA = 2.0;
    private double             mean;
    private double             sigma;
-   private SecureRandom       random;
+   private Random             random;
 
    // Constructors.
    public NormalDistribution(double mean, double sigma)
@@ -21,6 +22,14 @@ public class NormalDistribution
    }
 
 
+   public NormalDistribution(double mean, double sigma, Random random)
+   {
+      this.mean   = mean;
+      this.sigma  = sigma;
+      this.random = random;
+   }
+
+
    public NormalDistribution()
    {
       mean   = DEFAULT_MEAN;
@@ -53,6 +62,12 @@ public class NormalDistribution
    }
 
 
+   public void setRandom(Random random)
+   {
+      this.random = random;
+   }
+
+
    // Get next value from distribution.
    public double nextValue()
    {
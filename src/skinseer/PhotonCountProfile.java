@@ -0,0 +1,143 @@
+// Photon detector count profile.
+// Records photon counter deltas per scanner step interval so that a
+// single scan yields the detector profile along the nevus path.
+
+package skinseer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+public class PhotonCountProfile
+{
+   // Binary file identifier.
+   public static final int MAGIC = 0x53535046;
+
+   // Steps per profile row.
+   public int interval;
+
+   // Number of photon counters per row.
+   public int numCounters;
+
+   // Profile rows: nevus position and counter deltas.
+   public int     numRows;
+   public float[] nevusX;
+   public int[]   counts;
+
+   // Counters at last recorded row.
+   int[] previousCounters;
+
+   // Steps since last recorded row.
+   int stepCount;
+
+   // Constructor.
+   public PhotonCountProfile(int steps, int interval, int numCounters)
+   {
+      this.interval    = interval;
+      this.numCounters = numCounters;
+      int maxRows = (steps + interval - 1) / interval;
+      nevusX           = new float[maxRows];
+      counts           = new int[maxRows * numCounters];
+      previousCounters = new int[numCounters];
+      numRows          = 0;
+      stepCount        = 0;
+   }
+
+
+   // Record scanner step.
+   // The nevus position of a row is its position at the start of the interval.
+   public void recordStep(SkinSeerSim scanner)
+   {
+      if (stepCount == 0)
+      {
+         nevusX[numRows] = scanner.nevus.shape.x - SkinSeerSim.SCANNER_SPEED;
+      }
+      stepCount++;
+      if (stepCount == interval)
+      {
+         recordRow(scanner);
+      }
+   }
+
+
+   // Record final partial interval.
+   public void finish(SkinSeerSim scanner)
+   {
+      if (stepCount > 0)
+      {
+         recordRow(scanner);
+      }
+   }
+
+
+   // Record counter deltas since last row.
+   void recordRow(SkinSeerSim scanner)
+   {
+      int base = numRows * numCounters;
+      int k    = 0;
+
+      scanner.sumPhotonCounts();
+      for (SkinSeerSim.PhotonDetector detector : scanner.photonDetectors)
+      {
+         int[] photonCounters = detector.photonCounters;
+         for (int i = 0; i < SkinSeerSim.NUM_PHOTON_COUNTERS; i++, k++)
+         {
+            counts[base + k]    = photonCounters[i] - previousCounters[k];
+            previousCounters[k] = photonCounters[i];
+         }
+      }
+      numRows++;
+      stepCount = 0;
+   }
+
+
+   // Write profile.
+   // A .csv file gets one row per interval: nevus x followed by counter deltas.
+   // Otherwise binary: magic, interval, rows, counters, then per row
+   // nevus x (float) and counter deltas (int), all big-endian.
+   // Either is block gzip compressed if the name ends with .gz.
+   public void write(String filename) throws IOException
+   {
+      if (BlockGzipOutputStream.baseName(filename).endsWith(".csv"))
+      {
+         try (PrintWriter writer = new PrintWriter(new BufferedWriter(
+                                                      new OutputStreamWriter(BlockGzipOutputStream.open(filename)))))
+            {
+               for (int row = 0; row < numRows; row++)
+               {
+                  writer.print(nevusX[row]);
+                  int base = row * numCounters;
+                  for (int i = 0; i < numCounters; i++)
+                  {
+                     writer.print(",");
+                     writer.print(counts[base + i]);
+                  }
+                  writer.println();
+               }
+            }
+      }
+      else
+      {
+         try (DataOutputStream output = new DataOutputStream(
+                                           new BufferedOutputStream(BlockGzipOutputStream.open(filename))))
+            {
+               output.writeInt(MAGIC);
+               output.writeInt(interval);
+               output.writeInt(numRows);
+               output.writeInt(numCounters);
+               for (int row = 0; row < numRows; row++)
+               {
+                  output.writeFloat(nevusX[row]);
+                  int base = row * numCounters;
+                  for (int i = 0; i < numCounters; i++)
+                  {
+                     output.writeInt(counts[base + i]);
+                  }
+               }
+            }
+      }
+   }
+}
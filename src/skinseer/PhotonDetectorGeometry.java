@@ -0,0 +1,16 @@
+// Photon detector array geometry.
+
+package skinseer;
+
+public class PhotonDetectorGeometry
+{
+   public float x;
+   public float counterWidth;
+
+   // Constructor.
+   public PhotonDetectorGeometry(float x, float counterWidth)
+   {
+      this.x            = x;
+      this.counterWidth = counterWidth;
+   }
+}
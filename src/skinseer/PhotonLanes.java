@@ -0,0 +1,443 @@
+// Photon lanes.
+// Transports a source's photons in lanes of structure-of-arrays state
+// instead of one photon object at a time. Interactions (random draws,
+// nevus and layer lookup, scattering) are per lane; the advance and the
+// scanner bounds and detector plane tests are one pass over all lanes,
+// which VectorPhotonLanes does with SIMD vectors. Each photon draws the
+// same random numbers in the same order as PhotonSource.updatePhoton,
+// so counts, and fluence map tallies, are identical to the scalar engine.
+// No photon traces are kept.
+//
+// Experimental: slower than the scalar engine. Warmed up on
+// work/parameters.txt at 200 photons per step, scalar takes 20, lanes 26
+// and vector 24 microseconds per photon. Per-lane random draws and
+// scattering trigonometry dominate, and the advance is about 1% of the
+// time. Vectorizing them would need batched Philox draws across lanes,
+// and vector sin/cos is not bit-identical to Math, so counts would no
+// longer match the scalar engine.
+
+package skinseer;
+
+import java.util.Arrays;
+
+public class PhotonLanes
+{
+   // Default number of lanes.
+   public static final int DEFAULT_NUM_LANES = 256;
+
+   // Lane status after advance.
+   static final byte MOVING   = 0;
+   static final byte EXITED   = 1;
+   static final byte DETECTED = 2;
+
+   // Vector API unavailable and experimental engine warnings given?
+   static boolean vectorWarned       = false;
+   static boolean experimentalWarned = false;
+
+   // Scanner and source.
+   SkinSeerSim              scanner;
+   SkinSeerSim.PhotonSource source;
+
+   // Lanes.
+   public int      numLanes;
+   float[]         x;
+   float[]         y;
+   float[]         dx;
+   float[]         dy;
+   double[]        angle;
+   int[]           layer;
+   int[]           weight;
+   float[]         offset;
+   boolean[]       active;
+   boolean[]       nevus;
+   byte[]          status;
+   CounterRandom[] random;
+
+   // Wavelength weights of lanes, lane-major (see PhotonSource.numWavelengths).
+   int      numWavelengths;
+   double[] wavelengthWeights;
+
+   // Constructor.
+   public PhotonLanes(SkinSeerSim scanner, SkinSeerSim.PhotonSource source, int numLanes)
+   {
+      this.scanner  = scanner;
+      this.source   = source;
+      this.numLanes = numLanes;
+      x             = new float[numLanes];
+      y             = new float[numLanes];
+      dx            = new float[numLanes];
+      dy            = new float[numLanes];
+      angle         = new double[numLanes];
+      layer         = new int[numLanes];
+      weight        = new int[numLanes];
+      offset        = new float[numLanes];
+      active        = new boolean[numLanes];
+      nevus         = new boolean[numLanes];
+      status        = new byte[numLanes];
+      random        = new CounterRandom[numLanes];
+      for (int i = 0; i < numLanes; i++)
+      {
+         random[i] = new CounterRandom(0);
+      }
+      numWavelengths    = source.numWavelengths;
+      wavelengthWeights = new double[numLanes * numWavelengths];
+   }
+
+
+   // Create lanes, using the Vector API if requested and available.
+   public static PhotonLanes create(SkinSeerSim scanner, SkinSeerSim.PhotonSource source, boolean vector)
+   {
+      if (!experimentalWarned)
+      {
+         experimentalWarned = true;
+         System.err.println("Photon lane engines are experimental and slower than the scalar engine (see PhotonLanes)");
+      }
+      if (vector)
+      {
+         try
+         {
+            return((PhotonLanes)Class.forName("skinseer.VectorPhotonLanes")
+                      .getConstructor(SkinSeerSim.class, SkinSeerSim.PhotonSource.class)
+                      .newInstance(scanner, source));
+         }
+         catch (Throwable e)
+         {
+            if (!vectorWarned)
+            {
+               vectorWarned = true;
+               System.err.println("Vector API not available (build_vector, java --add-modules jdk.incubator.vector), using scalar lanes");
+            }
+         }
+      }
+      return(new PhotonLanes(scanner, source, DEFAULT_NUM_LANES));
+   }
+
+
+   // Transport photons of a run, starting with the given photon of the
+   // step at the source's scan offset.
+   public void transport(int firstStepPhoton, long photons)
+   {
+      long  emitted    = 0;
+      int   stepPhoton = firstStepPhoton;
+      float stepOffset = source.scanOffset;
+      int   running    = 0;
+
+      for (int i = 0; i < numLanes; i++)
+      {
+         active[i] = false;
+         dx[i]     = 0.0f;
+         dy[i]     = 0.0f;
+      }
+      while (true)
+      {
+         // Fill idle lanes.
+         for (int i = 0; i < numLanes && emitted < photons; i++)
+         {
+            if (!active[i])
+            {
+               if (stepPhoton == SkinSeerSim.PHOTON_EMISSION_RATE)
+               {
+                  stepOffset += SkinSeerSim.SCANNER_SPEED;
+                  stepPhoton  = 0;
+               }
+               emit(i, stepOffset);
+               stepPhoton++;
+               emitted++;
+               running++;
+            }
+         }
+         if (running == 0)
+         {
+            break;
+         }
+
+         // Interact, advance and resolve.
+         for (int i = 0; i < numLanes; i++)
+         {
+            if (active[i])
+            {
+               source.photonSteps++;
+               if (!interact(i))
+               {
+                  log(i, PhotonLog.ABSORBED, -1, -1);
+                  active[i] = false;
+                  dx[i]     = 0.0f;
+                  dy[i]     = 0.0f;
+                  running--;
+               }
+            }
+         }
+         advance();
+         for (int i = 0; i < numLanes; i++)
+         {
+            if (active[i])
+            {
+               if (status[i] == EXITED)
+               {
+                  if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_EXITED) != 0)
+                  {
+                     postEvent(SkinSeerSimEvent.PHOTON_EXITED, i, -1, -1);
+                  }
+                  source.regionExits[layer[i]]++;
+                  log(i, PhotonLog.EXITED, -1, -1);
+               }
+               boolean done = (status[i] == EXITED) || ((status[i] == DETECTED) && detect(i));
+               if (!done && (source.fluence != null))
+               {
+                  source.fluence[scanner.fluenceMap.cell(x[i], y[i])] += (float)weight[i];
+               }
+               if (done || !roulette(i))
+               {
+                  active[i] = false;
+                  dx[i]     = 0.0f;
+                  dy[i]     = 0.0f;
+                  running--;
+               }
+            }
+         }
+      }
+      source.scanOffset = stepOffset;
+   }
+
+
+   // Emit photon into lane.
+   void emit(int i, float scanOffset)
+   {
+      CounterRandom r = random[i];
+
+      r.setKey(source.random);
+      r.setPhoton(source.photonsEmitted);
+      source.photonsEmitted++;
+      angle[i] = (r.nextDouble() * (SkinSeerSim.PHOTON_MAX_EMISSION_ANGLE - SkinSeerSim.PHOTON_MIN_EMISSION_ANGLE)) +
+                 SkinSeerSim.PHOTON_MIN_EMISSION_ANGLE;
+      setDirection(i);
+      x[i]      = source.center.x + (dx[i] * SkinSeerSim.PHOTON_RADIUS);
+      y[i]      = source.center.y + (dy[i] * SkinSeerSim.PHOTON_RADIUS);
+      layer[i]  = source.findLayer(y[i], source.numLayers);
+      weight[i] = 1;
+      offset[i] = scanOffset;
+      if (numWavelengths > 0)
+      {
+         Arrays.fill(wavelengthWeights, i * numWavelengths, (i + 1) * numWavelengths, 1.0);
+      }
+      active[i] = true;
+      nevus[i]  = false;
+      if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_EMITTED) != 0)
+      {
+         postEvent(SkinSeerSimEvent.PHOTON_EMITTED, i, -1, -1);
+      }
+   }
+
+
+   // Nevus or layer interaction at lane position.
+   // Return false if photon absorbed.
+   boolean interact(int i)
+   {
+      CounterRandom     r   = random[i];
+      SkinSeerSim.Nevus hit = null;
+
+      if (scanner.nevusIndex != null)
+      {
+         hit = scanner.nevusIndex.find(x[i] - offset[i], y[i]);
+      }
+      if (hit != null)
+      {
+         nevus[i] = true;
+         if (r.nextDouble() < SkinSeerSim.NEVUS_PHOTON_ABSORPTION_PROBABILITY)
+         {
+            if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_ABSORBED) != 0)
+            {
+               postEvent(SkinSeerSimEvent.PHOTON_ABSORBED, i, -1, -1);
+            }
+            if (source.absorption != null)
+            {
+               tallyAbsorption(i);
+            }
+            source.regionAbsorptions[source.nevusRegion]++;
+            return(false);
+         }
+         if (numWavelengths > 0)
+         {
+            source.attenuateWavelengths(source.nevusRegion, wavelengthWeights, i * numWavelengths);
+         }
+         if (r.nextDouble() < SkinSeerSim.NEVUS_PHOTON_SCATTER_PROBABILITY)
+         {
+            source.regionScatters[source.nevusRegion]++;
+            scatter(i, SkinSeerSim.NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN,
+                    SkinSeerSim.NEVUS_PHOTON_SCATTER_ANGLE_SIGMA);
+         }
+      }
+      else if ((x[i] >= 0) && (x[i] < (float)SkinSeerSim.SCANNER_WIDTH))
+      {
+         int l = layer[i];
+         if ((y[i] <= source.layerBottom[l]) || (y[i] > source.layerTop[l]))
+         {
+            l        = source.findLayer(y[i], l);
+            layer[i] = l;
+         }
+         if (l < source.numLayers)
+         {
+            if (r.nextDouble() < source.layerAbsorptionProbability[l])
+            {
+               if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_ABSORBED) != 0)
+               {
+                  postEvent(SkinSeerSimEvent.PHOTON_ABSORBED, i, -1, -1);
+               }
+               if (source.absorption != null)
+               {
+                  tallyAbsorption(i);
+               }
+               source.regionAbsorptions[l]++;
+               return(false);
+            }
+            if (numWavelengths > 0)
+            {
+               source.attenuateWavelengths(l, wavelengthWeights, i * numWavelengths);
+            }
+            if (r.nextDouble() < source.layerScatterProbability[l])
+            {
+               source.regionScatters[l]++;
+               scatter(i, source.layerScatterAngleZeroMean[l], source.layerScatterAngleSigma[l]);
+            }
+         }
+      }
+      return(true);
+   }
+
+
+   // Scatter lane photon, drawing as NormalDistribution.nextValue.
+   void scatter(int i, double mean, double sigma)
+   {
+      double value = (random[i].nextGaussian() * sigma) + mean;
+
+      if (value < 0.0)
+      {
+         value = 0.0;
+      }
+      angle[i] += value - mean;
+      setDirection(i);
+      if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_SCATTERED) != 0)
+      {
+         postEvent(SkinSeerSimEvent.PHOTON_SCATTERED, i, -1, -1);
+      }
+   }
+
+
+   // Set lane direction from angle.
+   void setDirection(int i)
+   {
+      dx[i] = (float)Math.cos(angle[i] * (Math.PI / 180.0));
+      dy[i] = (float)Math.sin(angle[i] * (Math.PI / 180.0));
+   }
+
+
+   // Advance all lanes one step and set their status.
+   // Idle lanes have zero direction and their status is ignored.
+   void advance()
+   {
+      float speed  = SkinSeerSim.PHOTON_SPEED;
+      float width  = (float)SkinSeerSim.SCANNER_WIDTH;
+      float height = (float)SkinSeerSim.SCANNER_HEIGHT;
+      float epiY   = source.epidermisY;
+
+      for (int i = 0; i < numLanes; i++)
+      {
+         x[i] = x[i] + (dx[i] * speed);
+         y[i] = y[i] + (dy[i] * speed);
+         if ((x[i] < 0.0f) || (x[i] >= width) || (y[i] < 0.0f) || (y[i] >= height))
+         {
+            status[i] = EXITED;
+         }
+         else if ((y[i] > epiY) && (dy[i] > 0.0f))
+         {
+            status[i] = DETECTED;
+         }
+         else
+         {
+            status[i] = MOVING;
+         }
+      }
+   }
+
+
+   // Russian roulette as PhotonSource.updatePhoton.
+   // Return false if photon terminated.
+   boolean roulette(int i)
+   {
+      if ((scanner.reachabilityMap != null) && (weight[i] == 1) &&
+          (scanner.reachabilityMap.reachability(x[i], y[i], angle[i]) < scanner.rouletteThreshold))
+      {
+         if (random[i].nextDouble() >= 1.0 / (double)scanner.rouletteWeight)
+         {
+            if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_TERMINATED) != 0)
+            {
+               postEvent(SkinSeerSimEvent.PHOTON_TERMINATED, i, -1, -1);
+            }
+            log(i, PhotonLog.TERMINATED, -1, -1);
+            return(false);
+         }
+         weight[i] = scanner.rouletteWeight;
+      }
+      return(true);
+   }
+
+
+   // Tally absorbed lane photon.
+   void tallyAbsorption(int i)
+   {
+      FluenceMap map = scanner.fluenceMap;
+
+      if (map.contains(x[i], y[i]))
+      {
+         source.absorption[map.cell(x[i], y[i])] += (float)weight[i];
+      }
+   }
+
+
+   // Log completed lane photon if it matches the photon log.
+   void log(int i, int fate, int detector, int counter)
+   {
+      if (scanner.photonLog != null)
+      {
+         source.logPhoton(random[i].photon, fate, detector, counter, nevus[i]);
+      }
+   }
+
+
+   // Post lane photon event.
+   void postEvent(int type, int i, int detector, int counter)
+   {
+      scanner.postEvent(type, source.index, random[i].photon, x[i], y[i], angle[i], detector, counter);
+   }
+
+
+   // Count lane photon crossing the detector plane.
+   // Return true if detected.
+   boolean detect(int i)
+   {
+      SkinSeerSim.PhotonDetector[] detectors = scanner.photonDetectorArray;
+
+      for (int j = 0; j < detectors.length; j++)
+      {
+         int counter = detectors[j].counterIndex(x[i]);
+         if (counter != -1)
+         {
+            source.photonCounts[j][counter] += weight[i];
+            if (numWavelengths > 0)
+            {
+               source.countWavelengths(j, counter, weight[i], wavelengthWeights, i * numWavelengths);
+            }
+            source.detectedDetector = j;
+            source.detectedCounter  = counter;
+            source.regionDetections[layer[i]]++;
+            if ((scanner.eventMask & SkinSeerSimEvent.PHOTON_DETECTED) != 0)
+            {
+               postEvent(SkinSeerSimEvent.PHOTON_DETECTED, i, j, counter);
+            }
+            log(i, PhotonLog.DETECTED, j, counter);
+            return(true);
+         }
+      }
+      return(false);
+   }
+}
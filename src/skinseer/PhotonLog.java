@@ -0,0 +1,157 @@
+// Photon log.
+// Logs the IDs of photons whose completed paths match a predicate. A
+// photon's random numbers are keyed by (seed, sample, source, photon
+// number) (see CounterRandom), so its ID, with the seed, is all that is
+// needed to replay its path with a trace (see SkinSeerSim.replayPhoton);
+// no traces are stored while logging. Photon sources keep the matching
+// photon numbers of a scan.
+//
+// Predicate: comma-separated terms, all of which must hold:
+//    absorbed | exited | detected | terminated   photon fate
+//    detector=<n>                                detected by detector array n
+//    counter=<n>                                 detected in photon counter (bin) n
+//    nevus                                       touched a nevus
+// For example "detected,counter=7,nevus".
+
+package skinseer;
+
+import java.io.PrintWriter;
+
+public class PhotonLog
+{
+   // Photon fates.
+   public static final int ABSORBED   = 0;
+   public static final int EXITED     = 1;
+   public static final int DETECTED   = 2;
+   public static final int TERMINATED = 3;
+   public static final String[] FATE_NAMES = { "absorbed", "exited", "detected", "terminated" };
+
+   // Predicate: fate, detector array and counter (-1 for any), touched nevus.
+   public int     fate;
+   public int     detector;
+   public int     counter;
+   public boolean nevus;
+
+   // Constructor.
+   public PhotonLog(int fate, int detector, int counter, boolean nevus)
+   {
+      this.fate     = fate;
+      this.detector = detector;
+      this.counter  = counter;
+      this.nevus    = nevus;
+   }
+
+
+   // Parse predicate.
+   // Throws IllegalArgumentException if invalid.
+   public static PhotonLog parse(String predicate)
+   {
+      int     fate     = -1;
+      int     detector = -1;
+      int     counter  = -1;
+      boolean nevus    = false;
+
+      for (String term : predicate.split(","))
+      {
+         term = term.trim();
+         int f = fateIndex(term);
+         if (f != -1)
+         {
+            if (fate != -1)
+            {
+               throw new IllegalArgumentException("Duplicate photon fate: " + term);
+            }
+            fate = f;
+         }
+         else if (term.startsWith("detector="))
+         {
+            detector = parseIndex(term, "detector=".length());
+         }
+         else if (term.startsWith("counter="))
+         {
+            counter = parseIndex(term, "counter=".length());
+         }
+         else if (term.equals("nevus"))
+         {
+            nevus = true;
+         }
+         else
+         {
+            throw new IllegalArgumentException("Invalid photon log term: " + term);
+         }
+      }
+      if (((detector != -1) || (counter != -1)) && (fate != -1) && (fate != DETECTED))
+      {
+         throw new IllegalArgumentException("Detector and counter terms need the detected fate");
+      }
+      return(new PhotonLog(fate, detector, counter, nevus));
+   }
+
+
+   // Fate of name, or -1 if none.
+   public static int fateIndex(String name)
+   {
+      for (int i = 0; i < FATE_NAMES.length; i++)
+      {
+         if (FATE_NAMES[i].equals(name))
+         {
+            return(i);
+         }
+      }
+      return(-1);
+   }
+
+
+   // Parse non-negative index at start of term.
+   static int parseIndex(String term, int start)
+   {
+      int value;
+
+      try
+      {
+         value = Integer.parseInt(term.substring(start));
+      }
+      catch (NumberFormatException e)
+      {
+         throw new IllegalArgumentException("Invalid photon log term: " + term);
+      }
+      if (value < 0)
+      {
+         throw new IllegalArgumentException("Invalid photon log term: " + term);
+      }
+      return(value);
+   }
+
+
+   // Completed photon matches?
+   // Detector and counter are -1 if not detected.
+   public boolean matches(int photonFate, int photonDetector, int photonCounter, boolean touchedNevus)
+   {
+      if ((fate != -1) && (photonFate != fate))
+      {
+         return(false);
+      }
+      if ((detector != -1) && (photonDetector != detector))
+      {
+         return(false);
+      }
+      if ((counter != -1) && (photonCounter != counter))
+      {
+         return(false);
+      }
+      return(!nevus || touchedNevus);
+   }
+
+
+   // Write logged photon IDs of scan as CSV rows: sample, source, photon.
+   public static void write(PrintWriter writer, SkinSeerSim scanner)
+   {
+      for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+      {
+         for (int i = 0; i < source.numLoggedPhotons; i++)
+         {
+            writer.println(source.random.sample + "," + source.index + "," + source.loggedPhotons[i]);
+         }
+      }
+   }
+}
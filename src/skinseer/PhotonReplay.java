@@ -0,0 +1,49 @@
+// Photon replay.
+// The path of one photon, re-run from its random number key with a trace
+// (see SkinSeerSim.replayPhoton).
+
+package skinseer;
+
+import java.awt.geom.Point2D;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+public class PhotonReplay
+{
+   // Photon ID.
+   public long sample;
+   public int  source;
+   public long photon;
+
+   // Scanner movement at emission.
+   public float scanOffset;
+
+   // Trace: emission point, then the position after each step.
+   public ArrayList<Point2D.Float> trace;
+
+   // Outcome: fate (see PhotonLog), end position, detector array and
+   // counter (-1 if not detected), weight, steps and touched nevus.
+   public int     fate;
+   public float   endX;
+   public float   endY;
+   public int     detector;
+   public int     counter;
+   public int     weight;
+   public long    steps;
+   public boolean touchedNevus;
+
+   // Print summary, then trace as x,y rows.
+   public void print(PrintWriter writer)
+   {
+      writer.println("# photon sample=" + sample + ", source=" + source + ", photon=" + photon +
+                     ", scanOffset=" + scanOffset);
+      writer.println("# fate=" + PhotonLog.FATE_NAMES[fate] + ", end=" + endX + "," + endY +
+                     ", detector=" + detector + ", counter=" + counter + ", weight=" + weight +
+                     ", steps=" + steps + ", nevus=" + touchedNevus);
+      writer.println("x,y");
+      for (Point2D.Float p : trace)
+      {
+         writer.println(p.x + "," + p.y);
+      }
+   }
+}
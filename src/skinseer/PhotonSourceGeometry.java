@@ -0,0 +1,16 @@
+// Photon source geometry.
+
+package skinseer;
+
+public class PhotonSourceGeometry
+{
+   public float x;
+   public float radius;
+
+   // Constructor.
+   public PhotonSourceGeometry(float x, float radius)
+   {
+      this.x      = x;
+      this.radius = radius;
+   }
+}
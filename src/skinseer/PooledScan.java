@@ -0,0 +1,176 @@
+// Pooled scan simulation.
+// A nevus configuration with no geometric variance yields identically
+// distributed scans, so it is simulated once with a large photon budget
+// and scan samples are then drawn from the estimated per-step photon
+// counter distribution.
+
+package skinseer;
+
+import java.util.Random;
+
+public class PooledScan
+{
+   // Inversion is used for binomial means below this, otherwise the normal approximation.
+   public static final double BINOMIAL_INVERSION_LIMIT = 30.0;
+
+   // Photons emitted per source and scan position in a sample.
+   public int photonsPerPosition;
+
+   // Photon counters over all detector arrays.
+   public int numCounters;
+
+   // Number of scan positions and photon counter probabilities
+   // indexed by (position * sources) + source.
+   public int        numSources;
+   public int        numPositions;
+   public double[][] counterProbabilities;
+
+   // Nevus is dangerous?
+   public boolean dangerous;
+
+   // Pilot scanner.
+   public SkinSeerSim scanner;
+
+   // Constructors.
+   // Simulates the current scanner parameters with photonFactor times the
+   // photons of one scan of the given steps.
+   public PooledScan(int steps, int photonFactor, long randomSeed)
+   {
+      scanner              = new SkinSeerSim();
+      scanner.photonTraces = false;
+      scanner.setRandomSeed(randomSeed);
+      dangerous = GenClassificationData.isDangerous(scanner);
+
+      // A stationary scanner sees the same configuration at every step.
+      int positionSteps = 1;
+      if (SkinSeerSim.SCANNER_SPEED == 0.0f)
+      {
+         numPositions       = 1;
+         positionSteps      = steps;
+         photonsPerPosition = steps * SkinSeerSim.PHOTON_EMISSION_RATE;
+      }
+      else
+      {
+         numPositions       = steps;
+         photonsPerPosition = SkinSeerSim.PHOTON_EMISSION_RATE;
+      }
+      numSources           = scanner.photonSources.size();
+      numCounters          = scanner.photonDetectors.size() * SkinSeerSim.NUM_PHOTON_COUNTERS;
+      counterProbabilities = new double[numPositions * numSources][numCounters];
+
+      // Simulate each position.
+      int pilotPhotons = photonsPerPosition * photonFactor;
+      for (int position = 0; position < numPositions; position++)
+      {
+         if (!scanner.nevusInRange())
+         {
+            // Remaining positions emit no photons.
+            numPositions = position;
+            break;
+         }
+         for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+         {
+            double[] probabilities = counterProbabilities[(position * numSources) + source.index];
+            for (int i = 0; i < pilotPhotons; i++)
+            {
+               int counter = scanner.emitPhoton(source);
+               if (counter != -1)
+               {
+                  probabilities[(source.detectedDetector * SkinSeerSim.NUM_PHOTON_COUNTERS) + counter] += 1.0;
+               }
+            }
+            for (int i = 0; i < numCounters; i++)
+            {
+               probabilities[i] /= (double)pilotPhotons;
+            }
+         }
+         for (int i = 0; i < positionSteps; i++)
+         {
+            scanner.moveScanner();
+         }
+      }
+   }
+
+
+   public PooledScan(int steps, int photonFactor)
+   {
+      this(steps, photonFactor, new Random().nextLong());
+   }
+
+
+   // Sample scan photon counters of all detector arrays.
+   public void sample(Random random, int[] photonCounters)
+   {
+      for (int i = 0; i < numCounters; i++)
+      {
+         photonCounters[i] = 0;
+      }
+      for (int row = 0; row < numPositions * numSources; row++)
+      {
+         double[] probabilities = counterProbabilities[row];
+
+         // Multinomial draw as a sequence of conditional binomials.
+         int    n    = photonsPerPosition;
+         double mass = 1.0;
+         for (int i = 0; i < numCounters && n > 0; i++)
+         {
+            double p = probabilities[i];
+            if (p <= 0.0) { continue; }
+            int k = binomial(random, n, Math.min(p / mass, 1.0));
+            photonCounters[i] += k;
+            n    -= k;
+            mass -= p;
+            if (mass <= 0.0) { break; }
+         }
+      }
+   }
+
+
+   // Binomial random value.
+   public static int binomial(Random random, int n, double p)
+   {
+      if ((n <= 0) || (p <= 0.0))
+      {
+         return(0);
+      }
+      if (p >= 1.0)
+      {
+         return(n);
+      }
+      if (p > 0.5)
+      {
+         return(n - binomial(random, n, 1.0 - p));
+      }
+      double q = 1.0 - p;
+      if ((double)n * p < BINOMIAL_INVERSION_LIMIT)
+      {
+         // Inversion by sequential search.
+         double s = p / q;
+         double a = (double)(n + 1) * s;
+         double r = Math.pow(q, n);
+         double u = random.nextDouble();
+         int    x = 0;
+         while (u > r && x < n)
+         {
+            u -= r;
+            x++;
+            r *= (a / (double)x) - s;
+         }
+         return(x);
+      }
+      else
+      {
+         // Normal approximation.
+         long x = Math.round(((double)n * p) + (Math.sqrt((double)n * p * q) * random.nextGaussian()));
+         if (x < 0)
+         {
+            x = 0;
+         }
+         if (x > n)
+         {
+            x = n;
+         }
+         return((int)x);
+      }
+   }
+}
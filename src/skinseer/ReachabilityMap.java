@@ -0,0 +1,134 @@
+// Photon reachability map.
+// Estimated probability that a photon at a position and direction is
+// still detected, over scanner position cells and direction bins. It is
+// estimated by a pilot simulation of the skin layers without nevi: each
+// bin a pilot photon visits gets a visit, and a detection if the photon
+// is detected. Bins with too few visits are taken as reachable.
+// Photons in bins below the roulette threshold are terminated by Russian
+// roulette, surviving with probability 1/weight and then counting weight
+// on detection, which leaves expected photon counts unbiased.
+
+package skinseer;
+
+public class ReachabilityMap
+{
+   // Position cell size and direction bins.
+   public static final float CELL_SIZE      = 5.0f;
+   public static final int   NUM_ANGLE_BINS = 16;
+
+   // Pilot photons.
+   public static final int DEFAULT_PILOT_PHOTONS = 20000;
+
+   // Bins with fewer pilot visits are taken as reachable.
+   public static final int MIN_VISITS = 20;
+
+   // Map.
+   int     numCellsX;
+   int     numCellsY;
+   float[] map;
+
+   // Pilot photon detection probability.
+   public double meanReachability;
+
+   // Constructor.
+   // Pilot photons are shared over the scanner's photon sources, seeded
+   // from their random numbers.
+   public ReachabilityMap(SkinSeerSim scanner, int pilotPhotons)
+   {
+      numCellsX = (int)Math.ceil((float)SkinSeerSim.SCANNER_WIDTH / CELL_SIZE);
+      numCellsY = (int)Math.ceil((float)SkinSeerSim.SCANNER_HEIGHT / CELL_SIZE);
+      map       = new float[numCellsX * numCellsY * NUM_ANGLE_BINS];
+
+      // Simulate pilot photons in the skin layers.
+      SkinSeerSim pilot = new SkinSeerSim();
+      pilot.nevusIndex   = null;
+      pilot.photonTraces = false;
+      int[] visits     = new int[map.length];
+      int[] detections = new int[map.length];
+      int[] visitor    = new int[map.length];
+      int[] path       = new int[map.length];
+      int   photons    = 0;
+      int   detected   = 0;
+      for (SkinSeerSim.PhotonSource source : pilot.photonSources)
+      {
+         CounterRandom random = scanner.photonSources.get(source.index).random;
+         source.random.setKey(random);
+         source.random.setSample(~random.sample);
+         int n = pilotPhotons / pilot.photonSources.size();
+         for (int i = 0; i < n; i++)
+         {
+            photons++;
+            int length = 0;
+            while (source.updatePhoton())
+            {
+               int bin = bin(source.photonX, source.photonY, source.photonAngle);
+               if ((bin != -1) && (visitor[bin] != photons))
+               {
+                  visitor[bin] = photons;
+                  path[length] = bin;
+                  length++;
+                  visits[bin]++;
+               }
+            }
+            if (source.detectedCounter != -1)
+            {
+               detected++;
+               for (int j = 0; j < length; j++)
+               {
+                  detections[path[j]]++;
+               }
+            }
+         }
+      }
+      meanReachability = (photons > 0) ? ((double)detected / (double)photons) : 0.0;
+      for (int i = 0; i < map.length; i++)
+      {
+         if (visits[i] < MIN_VISITS)
+         {
+            map[i] = 1.0f;
+         }
+         else
+         {
+            map[i] = (float)detections[i] / (float)visits[i];
+         }
+      }
+   }
+
+
+   public ReachabilityMap(SkinSeerSim scanner)
+   {
+      this(scanner, DEFAULT_PILOT_PHOTONS);
+   }
+
+
+   // Map bin, or -1 if outside the scanner.
+   int bin(float x, float y, double angle)
+   {
+      if ((x < 0.0f) || (y < 0.0f))
+      {
+         return(-1);
+      }
+      int cx = (int)(x / CELL_SIZE);
+      int cy = (int)(y / CELL_SIZE);
+      if ((cx >= numCellsX) || (cy >= numCellsY))
+      {
+         return(-1);
+      }
+      double a  = angle / 360.0;
+      int    ca = Math.min((int)((a - Math.floor(a)) * (double)NUM_ANGLE_BINS), NUM_ANGLE_BINS - 1);
+      return((((cy * numCellsX) + cx) * NUM_ANGLE_BINS) + ca);
+   }
+
+
+   // Reachability of photon position and direction.
+   public float reachability(float x, float y, double angle)
+   {
+      int bin = bin(x, y, angle);
+
+      if (bin == -1)
+      {
+         return(1.0f);
+      }
+      return(map[bin]);
+   }
+}
@@ -0,0 +1,30 @@
+// Scalar photon transport engine.
+// The reference model: each photon is stepped to its fate in turn by
+// PhotonSource.updatePhoton.
+
+package skinseer;
+
+public class ScalarTransportEngine implements TransportEngine
+{
+   public String name()
+   {
+      return(SkinSeerSim.SCALAR_ENGINE);
+   }
+
+
+   public void transport(SkinSeerSim scanner, SkinSeerSim.PhotonSource source, int firstStepPhoton, long photons)
+   {
+      int stepPhoton = firstStepPhoton;
+
+      for (long i = 0; i < photons; i++)
+      {
+         if (stepPhoton == SkinSeerSim.PHOTON_EMISSION_RATE)
+         {
+            source.scanOffset += SkinSeerSim.SCANNER_SPEED;
+            stepPhoton         = 0;
+         }
+         while (source.updatePhoton()) {}
+         stepPhoton++;
+      }
+   }
+}
@@ -0,0 +1,326 @@
+// Headless scan frame renderer.
+// Runs a scan without a display and renders every Nth step to a PNG
+// frame with ScanRenderer. The simulation thread only takes snapshots;
+// drawing and PNG encoding are done by a pool of worker threads.
+// Each frame shows the last photon trace of each source.
+
+package skinseer;
+
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+public class ScanFrameRenderer implements SkinSeerSimNotifier
+{
+   public static final String Usage = "Usage: java ScanFrameRenderer -steps <steps> -frameDirectory <directory>"
+                                      + "\n\t[-frameInterval <steps per frame (default 1)>]"
+                                      + "\n\t[-frameThreads <encoding threads (default available processors)>]"
+                                      + "\n\t[-levelOfDetail (decimated photon traces)]"
+                                      + "\n\t[-parameterFile <file name>] [-randomSeed <random seed>]"
+                                      + "\n\t[-photonDetectorCountsFile <file name>] (otherwise sent to standard output)";
+
+   // Frames queued per encoding thread before the simulation waits.
+   public static final int FRAME_QUEUE_FACTOR = 4;
+
+   // Scanner and renderer.
+   SkinSeerSim  scanner;
+   ScanRenderer renderer;
+
+   // Frames.
+   String                               frameDirectory;
+   int                                  frameInterval;
+   ThreadPoolExecutor                   encoders;
+   ArrayList<ArrayList<Point2D.Float> > lastTraces;
+   volatile IOException                 frameError;
+
+   // Photon trace decimators for level of detail (null for full detail).
+   TraceDecimator[] decimators;
+
+   // Constructor.
+   public ScanFrameRenderer(String frameDirectory, int frameInterval, int frameThreads)
+   {
+      this.frameDirectory = frameDirectory;
+      this.frameInterval  = frameInterval;
+      scanner             = new SkinSeerSim();
+      renderer            = new ScanRenderer();
+      lastTraces          = new ArrayList<ArrayList<Point2D.Float> >();
+      for (int i = 0; i < scanner.photonSources.size(); i++)
+      {
+         lastTraces.add(null);
+      }
+
+      // Full queue makes the simulation thread encode, bounding memory.
+      encoders = new ThreadPoolExecutor(frameThreads, frameThreads, 0L, TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<Runnable>(frameThreads * FRAME_QUEUE_FACTOR),
+                                        new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+
+
+   // Run scan, rendering frames.
+   // Return steps run.
+   public int run(int steps) throws IOException
+   {
+      int step = 0;
+
+      for ( ; step < steps; step++)
+      {
+         // Track photon traces only on frame steps.
+         boolean frame = ((step + 1) % frameInterval) == 0;
+         scanner.notifier     = frame ? this : null;
+         scanner.photonTraces = frame;
+         boolean active = scanner.step();
+         if (frame)
+         {
+            submitFrame(new ScanSnapshot(scanner, step + 1, lastTraces, ScanSnapshot.DEFAULT_MAX_TRACE_POINTS, decimators));
+         }
+         if (!active)
+         {
+            break;
+         }
+      }
+      scanner.notifier = null;
+      encoders.shutdown();
+      try
+      {
+         encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      if (frameError != null)
+      {
+         throw frameError;
+      }
+      return(step);
+   }
+
+
+   // Draw photon traces as decimated polylines.
+   public void setLevelOfDetail()
+   {
+      decimators = new TraceDecimator[scanner.photonSources.size()];
+      for (int i = 0; i < decimators.length; i++)
+      {
+         decimators[i] = new TraceDecimator();
+      }
+   }
+
+
+   // Render and write frame on an encoding thread.
+   void submitFrame(final ScanSnapshot snapshot)
+   {
+      encoders.execute(new Runnable()
+                       {
+                          public void run()
+                          {
+                             BufferedImage image = new BufferedImage(SkinSeerSim.SCANNER_WIDTH, SkinSeerSim.SCANNER_HEIGHT,
+                                                                     BufferedImage.TYPE_INT_RGB);
+                             renderer.draw(image.getGraphics(), snapshot, "step=" + snapshot.step);
+                             File file = new File(frameDirectory, String.format("frame%08d.png", snapshot.step));
+                             try
+                             {
+                                ImageIO.write(image, "png", file);
+                             }
+                             catch (IOException e)
+                             {
+                                frameError = e;
+                             }
+                          }
+                       }
+                       );
+   }
+
+
+   // Scanner status callback: keep the last trace of each source.
+   public void scannerStatus(SkinSeerSim scanner)
+   {
+      for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+      {
+         if (source.photonTrace != null)
+         {
+            lastTraces.set(source.index, source.photonTrace);
+         }
+      }
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int     steps                        = -1;
+      String  frameDirectory               = null;
+      int     frameInterval                = 1;
+      int     frameThreads                 = Runtime.getRuntime().availableProcessors();
+      String  parameterFilename            = null;
+      long    randomSeed                   = -1;
+      boolean randomSeedGiven              = false;
+      boolean levelOfDetail                = false;
+      String  photonDetectorCountsFilename = null;
+
+      System.setProperty("java.awt.headless", "true");
+
+      // Get arguments.
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-steps"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            steps = Integer.parseInt(args[i]);
+            if (steps < 0)
+            {
+               System.err.println("Invalid steps");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-frameDirectory"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            frameDirectory = args[i];
+            continue;
+         }
+         if (args[i].equals("-frameInterval"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            frameInterval = Integer.parseInt(args[i]);
+            if (frameInterval <= 0)
+            {
+               System.err.println("Invalid frameInterval");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-frameThreads"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            frameThreads = Integer.parseInt(args[i]);
+            if (frameThreads <= 0)
+            {
+               System.err.println("Invalid frameThreads");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-levelOfDetail"))
+         {
+            levelOfDetail = true;
+            continue;
+         }
+         if (args[i].equals("-parameterFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            parameterFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            randomSeed      = Long.parseLong(args[i]);
+            randomSeedGiven = true;
+            continue;
+         }
+         if (args[i].equals("-photonDetectorCountsFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            photonDetectorCountsFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((steps == -1) || (frameDirectory == null))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load parameters?
+      if (parameterFilename != null)
+      {
+         SkinSeerSim.loadParameters(parameterFilename);
+      }
+
+      // Create frame directory.
+      File directory = new File(frameDirectory);
+      if (!directory.isDirectory() && !directory.mkdirs())
+      {
+         System.err.println("Cannot create frame directory " + frameDirectory);
+         System.exit(1);
+      }
+
+      // Render.
+      ScanFrameRenderer frameRenderer = new ScanFrameRenderer(frameDirectory, frameInterval, frameThreads);
+      if (randomSeedGiven)
+      {
+         frameRenderer.scanner.setRandomSeed(randomSeed);
+      }
+      if (levelOfDetail)
+      {
+         frameRenderer.setLevelOfDetail();
+      }
+      try
+      {
+         frameRenderer.run(steps);
+      }
+      catch (IOException e)
+      {
+         System.err.println("Cannot write frame: " + e.getMessage());
+         System.exit(1);
+      }
+
+      // Print photon detector counts.
+      frameRenderer.scanner.printCounts(photonDetectorCountsFilename);
+      System.exit(0);
+   }
+}
@@ -0,0 +1,241 @@
+// Scan renderer.
+// Draws a scan snapshot: skin layers, nevi, photon detectors, photon
+// sources with their photon traces, and a message.
+
+package skinseer;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.util.ArrayList;
+
+public class ScanRenderer
+{
+   // Photon source display.
+   public class PhotonSourceDisplay
+   {
+      public final Color COLOR = Color.WHITE;
+
+      // Draw sources and photon traces.
+      public void draw(Graphics graphics, ScanSnapshot snapshot)
+      {
+         graphics.setColor(COLOR);
+         for (int i = 0; i < snapshot.sourceX.length; i++)
+         {
+            float radius = snapshot.sourceRadius[i];
+            int   d      = (int)(radius * 2.0f);
+            float y      = (float)SkinSeerSim.SCANNER_HEIGHT - snapshot.sourceY[i];
+            graphics.fillArc((int)(snapshot.sourceX[i] - radius),
+                             (int)(y - radius), d, d, 180, 180);
+            float[] traceX = snapshot.traceX[i];
+            float[] traceY = snapshot.traceY[i];
+            if (snapshot.traceDecimated)
+            {
+               drawPolyline(graphics, traceX, traceY);
+               continue;
+            }
+            d = (int)(SkinSeerSim.PHOTON_RADIUS * 2.0f);
+            for (int j = 0; j < traceX.length; j++)
+            {
+               y = (float)SkinSeerSim.SCANNER_HEIGHT - traceY[j];
+               graphics.fillOval((int)(traceX[j] - SkinSeerSim.PHOTON_RADIUS),
+                                 (int)(y - SkinSeerSim.PHOTON_RADIUS), d, d);
+            }
+         }
+      }
+
+
+      // Draw decimated photon trace as a polyline as wide as a photon.
+      void drawPolyline(Graphics graphics, float[] traceX, float[] traceY)
+      {
+         int   n  = traceX.length;
+         int[] xs = new int[n];
+         int[] ys = new int[n];
+         for (int j = 0; j < n; j++)
+         {
+            xs[j] = (int)traceX[j];
+            ys[j] = (int)((float)SkinSeerSim.SCANNER_HEIGHT - traceY[j]);
+         }
+         if (graphics instanceof Graphics2D)
+         {
+            Graphics2D graphics2D = (Graphics2D)graphics;
+            Stroke     stroke     = graphics2D.getStroke();
+            graphics2D.setStroke(new BasicStroke(SkinSeerSim.PHOTON_RADIUS * 2.0f,
+                                                 BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            graphics2D.drawPolyline(xs, ys, n);
+            graphics2D.setStroke(stroke);
+         }
+         else
+         {
+            graphics.drawPolyline(xs, ys, n);
+         }
+      }
+   }
+
+   // Photon detector display.
+   public class PhotonDetectorDisplay
+   {
+      public final Color COLOR                     = Color.GREEN;
+      public final float HEIGHT_ASPECT             = 0.15f;
+      public final int   PHOTON_COUNTER_SATURATION = 10;
+      public float       width, height, c, y;
+
+      // Constructor.
+      public PhotonDetectorDisplay()
+      {
+         width = 0.0f;
+         for (PhotonDetectorGeometry detector : SkinSeerSim.getPhotonDetectors())
+         {
+            width = Math.max(width, detector.counterWidth * (float)SkinSeerSim.NUM_PHOTON_COUNTERS);
+         }
+         height = width * HEIGHT_ASPECT;
+         c      = height / (float)PHOTON_COUNTER_SATURATION;
+         y      = SkinSeerSim.SCANNER_HEIGHT - height - SkinSeerSim.getSkinThickness();
+      }
+
+
+      // Draw.
+      public void draw(Graphics graphics, ScanSnapshot snapshot)
+      {
+         graphics.setColor(COLOR);
+         for (int d = 0; d < snapshot.detectorX.length; d++)
+         {
+            float x            = snapshot.detectorX[d];
+            float counterWidth = snapshot.detectorCounterWidth[d];
+            int[] counts       = snapshot.detectorCounts[d];
+            for (int i = 0; i < SkinSeerSim.NUM_PHOTON_COUNTERS; i++)
+            {
+               int photonCount = counts[i];
+               if (photonCount > 0)
+               {
+                  if (photonCount > PHOTON_COUNTER_SATURATION)
+                  {
+                     photonCount = PHOTON_COUNTER_SATURATION;
+                  }
+                  float h2 = (int)(c * (float)photonCount);
+                  float y2 = y + (height - h2);
+                  graphics.fillRect((int)(x + (counterWidth * (float)i)), (int)y2,
+                                    (int)counterWidth, (int)h2);
+               }
+            }
+            for (int i = 0; i < SkinSeerSim.NUM_PHOTON_COUNTERS; i++)
+            {
+               graphics.drawRect((int)(x + (counterWidth * (float)i)), (int)y,
+                                 (int)counterWidth, (int)height);
+            }
+         }
+      }
+   }
+
+   // Nevus display.
+   public class NevusDisplay
+   {
+      public final Color COLOR = new Color(139, 0, 0);
+
+      // Draw.
+      public void draw(Graphics graphics, ScanSnapshot snapshot)
+      {
+         graphics.setColor(COLOR);
+         for (int i = 0; i < snapshot.nevusX.length; i++)
+         {
+            float y = (float)SkinSeerSim.SCANNER_HEIGHT - snapshot.nevusY[i];
+            graphics.fillOval((int)snapshot.nevusX[i], (int)y, (int)snapshot.nevusWidth[i], (int)snapshot.nevusHeight[i]);
+         }
+      }
+   }
+
+   // Components.
+   public PhotonSourceDisplay   photonSourceDisplay;
+   public PhotonDetectorDisplay photonDetectorDisplay;
+   public NevusDisplay          nevusDisplay;
+
+   public final Color   EPIDERMIS_COLOR = new Color(255, 205, 148);
+   public final Color   DERMIS_COLOR    = new Color(255, 173, 96);
+   public final Color[] LAYER_COLORS    =
+   {
+      new Color(255, 224, 189), new Color(234, 192, 134), new Color(224, 172, 105),
+      new Color(198, 134, 66)
+   };
+   public float         epidermisY;
+
+   // Layers from the surface downward.
+   public ArrayList<SkinLayer> layers;
+   public Color[]              layerColors;
+
+   // Message font.
+   public Font font = new Font("Helvetica", Font.BOLD, 12);
+
+   // Constructor.
+   public ScanRenderer()
+   {
+      photonSourceDisplay   = new PhotonSourceDisplay();
+      photonDetectorDisplay = new PhotonDetectorDisplay();
+      nevusDisplay          = new NevusDisplay();
+      epidermisY            = SkinSeerSim.SCANNER_HEIGHT - SkinSeerSim.getSkinThickness();
+
+      // Color layers.
+      layers      = SkinSeerSim.getLayers();
+      layerColors = new Color[layers.size()];
+      for (int i = 0; i < layers.size(); i++)
+      {
+         String name = layers.get(i).name;
+         if (name.equals("epidermis"))
+         {
+            layerColors[i] = EPIDERMIS_COLOR;
+         }
+         else if (name.equals("dermis"))
+         {
+            layerColors[i] = DERMIS_COLOR;
+         }
+         else
+         {
+            layerColors[i] = LAYER_COLORS[i % LAYER_COLORS.length];
+         }
+      }
+   }
+
+
+   // Draw snapshot and message (none if null).
+   public void draw(Graphics graphics, ScanSnapshot snapshot, String message)
+   {
+      // Clear display.
+      graphics.setColor(Color.BLACK);
+      graphics.fillRect(0, 0, SkinSeerSim.SCANNER_WIDTH, SkinSeerSim.SCANNER_HEIGHT);
+
+      // Draw skin layers.
+      float y = epidermisY;
+      for (int i = 0; i < layers.size(); i++)
+      {
+         SkinLayer layer = layers.get(i);
+         graphics.setColor(layerColors[i]);
+         graphics.fillRect(0, (int)y, SkinSeerSim.SCANNER_WIDTH, (int)layer.thickness);
+         y += layer.thickness;
+      }
+
+      if (snapshot != null)
+      {
+         // Draw nevus.
+         nevusDisplay.draw(graphics, snapshot);
+
+         // Draw photon detector.
+         photonDetectorDisplay.draw(graphics, snapshot);
+
+         // Draw photon source.
+         photonSourceDisplay.draw(graphics, snapshot);
+      }
+
+      // Draw message.
+      if (message != null)
+      {
+         graphics.setFont(font);
+         FontMetrics fontMetrics = graphics.getFontMetrics();
+         int         w           = fontMetrics.stringWidth(message);
+         graphics.setColor(Color.white);
+         graphics.drawString(message, (SkinSeerSim.SCANNER_WIDTH - w) / 2, fontMetrics.getHeight() + 4);
+      }
+   }
+}
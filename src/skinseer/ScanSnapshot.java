@@ -0,0 +1,163 @@
+// Scan snapshot.
+// Immutable copy of the scanner state needed for drawing: step, nevi,
+// photon detector counts, photon sources and their recent photon trace
+// points, so it can be rendered by another thread while the
+// simulation runs. Trace points are either the most recent points of
+// each trace, or a decimated polyline of the whole trace (level of
+// detail) ending at the photon.
+
+package skinseer;
+
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+
+public final class ScanSnapshot
+{
+   // Default maximum trace points per source.
+   public static final int DEFAULT_MAX_TRACE_POINTS = 1000;
+
+   // Step.
+   public final int step;
+
+   // Nevi.
+   public final float[] nevusX;
+   public final float[] nevusY;
+   public final float[] nevusWidth;
+   public final float[] nevusHeight;
+
+   // Photon detectors.
+   public final float[] detectorX;
+   public final float[] detectorCounterWidth;
+   public final int[][] detectorCounts;
+
+   // Photon sources and recent photon trace points.
+   public final float[]   sourceX;
+   public final float[]   sourceY;
+   public final float[]   sourceRadius;
+   public final float[][] traceX;
+   public final float[][] traceY;
+   public final boolean   traceDecimated;
+
+   // Constructors.
+   // Must be called on the simulation thread.
+   // Traces are given per source (null for none). With decimators, given
+   // per source, the decimators are updated with the traces and their
+   // polylines taken; otherwise the most recent trace points are taken.
+   public ScanSnapshot(SkinSeerSim scanner, int step, ArrayList<ArrayList<Point2D.Float> > traces,
+                       int maxTracePoints, TraceDecimator[] decimators)
+   {
+      this.step = step;
+
+      int n = scanner.nevi.size();
+      nevusX      = new float[n];
+      nevusY      = new float[n];
+      nevusWidth  = new float[n];
+      nevusHeight = new float[n];
+      for (int i = 0; i < n; i++)
+      {
+         Ellipse2D.Float shape = scanner.nevi.get(i).shape;
+         nevusX[i]      = shape.x;
+         nevusY[i]      = shape.y;
+         nevusWidth[i]  = shape.width;
+         nevusHeight[i] = shape.height;
+      }
+
+      scanner.sumPhotonCounts();
+      n                    = scanner.photonDetectors.size();
+      detectorX            = new float[n];
+      detectorCounterWidth = new float[n];
+      detectorCounts       = new int[n][];
+      for (int i = 0; i < n; i++)
+      {
+         SkinSeerSim.PhotonDetector detector = scanner.photonDetectors.get(i);
+         detectorX[i]            = detector.x;
+         detectorCounterWidth[i] = detector.counterWidth;
+         detectorCounts[i]       = detector.photonCounters.clone();
+      }
+
+      n            = scanner.photonSources.size();
+      sourceX      = new float[n];
+      sourceY      = new float[n];
+      sourceRadius = new float[n];
+      traceX       = new float[n][];
+      traceY       = new float[n][];
+      for (int i = 0; i < n; i++)
+      {
+         SkinSeerSim.PhotonSource source = scanner.photonSources.get(i);
+         sourceX[i]      = source.center.x;
+         sourceY[i]      = source.center.y;
+         sourceRadius[i] = source.radius;
+         ArrayList<Point2D.Float> photonTrace = traces.get(i);
+         if (decimators != null)
+         {
+            TraceDecimator decimator = decimators[i];
+            decimator.update(photonTrace);
+            Point2D.Float head  = decimator.head();
+            int           count = decimator.count;
+            boolean       tail  = (head != null) && (count > 0) &&
+                                  ((head.x != decimator.x[count - 1]) || (head.y != decimator.y[count - 1]));
+            traceX[i] = new float[tail ? count + 1 : count];
+            traceY[i] = new float[tail ? count + 1 : count];
+            System.arraycopy(decimator.x, 0, traceX[i], 0, count);
+            System.arraycopy(decimator.y, 0, traceY[i], 0, count);
+            if (tail)
+            {
+               traceX[i][count] = head.x;
+               traceY[i][count] = head.y;
+            }
+            continue;
+         }
+         int size  = (photonTrace != null) ? photonTrace.size() : 0;
+         int start = Math.max(size - maxTracePoints, 0);
+         traceX[i] = new float[size - start];
+         traceY[i] = new float[size - start];
+         for (int j = start; j < size; j++)
+         {
+            Point2D.Float p = photonTrace.get(j);
+            traceX[i][j - start] = p.x;
+            traceY[i][j - start] = p.y;
+         }
+      }
+      traceDecimated = (decimators != null);
+   }
+
+
+   public ScanSnapshot(SkinSeerSim scanner, int step, ArrayList<ArrayList<Point2D.Float> > traces, int maxTracePoints)
+   {
+      this(scanner, step, traces, maxTracePoints, null);
+   }
+
+
+   // Current photon traces, decimated.
+   public ScanSnapshot(SkinSeerSim scanner, int step, TraceDecimator[] decimators)
+   {
+      this(scanner, step, currentTraces(scanner), 0, decimators);
+   }
+
+
+   // Current photon traces.
+   public ScanSnapshot(SkinSeerSim scanner, int step, int maxTracePoints)
+   {
+      this(scanner, step, currentTraces(scanner), maxTracePoints);
+   }
+
+
+   public ScanSnapshot(SkinSeerSim scanner, int step)
+   {
+      this(scanner, step, DEFAULT_MAX_TRACE_POINTS);
+   }
+
+
+   // Current photon traces of sources.
+   static ArrayList<ArrayList<Point2D.Float> > currentTraces(SkinSeerSim scanner)
+   {
+      ArrayList<ArrayList<Point2D.Float> > traces = new ArrayList<ArrayList<Point2D.Float> >();
+
+      for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+      {
+         traces.add(source.photonTrace);
+      }
+      return(traces);
+   }
+}
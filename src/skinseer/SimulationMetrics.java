@@ -0,0 +1,347 @@
+// Simulation metrics.
+// Throughput and photon event counts of a generation run, exposed as a
+// JMX MBean and optionally logged periodically as JSON lines. Photon
+// sources count into their own plain fields while transporting; a
+// completed scan's counts are added here, into striped adders that
+// are summed when read, so metrics cost nothing in the photon loop.
+
+package skinseer;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+public class SimulationMetrics implements SimulationMetricsMBean
+{
+   // MBean name.
+   public static final String OBJECT_NAME = "skinseer:type=SimulationMetrics";
+
+   // Default metrics log interval (seconds).
+   public static final int DEFAULT_LOG_INTERVAL = 10;
+
+   // Samples.
+   public long samplesTotal;
+   LongAdder   samplesCompleted;
+
+   // Photons.
+   LongAdder photonsEmitted;
+   LongAdder photonSteps;
+
+   // Photon event regions: layers from the deepest upward, air, nevi
+   // (see SkinSeerSim.PhotonSource), and event counts by region.
+   String[]    regions;
+   LongAdder[] absorptions;
+   LongAdder[] scatters;
+   LongAdder[] exits;
+   LongAdder[] detections;
+
+   // Start time.
+   long startNanos;
+
+   // Metrics log.
+   PrintWriter              logWriter;
+   ScheduledExecutorService logger;
+
+   // Constructor.
+   // Regions are taken from the current layer parameters.
+   public SimulationMetrics(long samplesTotal)
+   {
+      this.samplesTotal = samplesTotal;
+      samplesCompleted  = new LongAdder();
+      photonsEmitted    = new LongAdder();
+      photonSteps       = new LongAdder();
+
+      ArrayList<SkinLayer> layers = SkinSeerSim.getLayers();
+      int                  n      = layers.size();
+      regions     = new String[n + 2];
+      absorptions = new LongAdder[n + 2];
+      scatters    = new LongAdder[n + 2];
+      exits       = new LongAdder[n + 2];
+      detections  = new LongAdder[n + 2];
+      for (int i = 0; i < n; i++)
+      {
+         regions[i] = layers.get(n - 1 - i).name;
+      }
+      regions[n]     = "air";
+      regions[n + 1] = "nevus";
+      for (int i = 0; i < regions.length; i++)
+      {
+         absorptions[i] = new LongAdder();
+         scatters[i]    = new LongAdder();
+         exits[i]       = new LongAdder();
+         detections[i]  = new LongAdder();
+      }
+      startNanos = System.nanoTime();
+   }
+
+
+   // Register as platform MBean.
+   public void register()
+   {
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot register metrics MBean: " + e.getMessage());
+      }
+   }
+
+
+   // Add photon counts of a completed scan.
+   public void addScan(SkinSeerSim scanner)
+   {
+      for (SkinSeerSim.PhotonSource source : scanner.photonSources)
+      {
+         photonsEmitted.add(source.photonsEmitted);
+         photonSteps.add(source.photonSteps);
+         for (int i = 0; i < regions.length; i++)
+         {
+            absorptions[i].add(source.regionAbsorptions[i]);
+            scatters[i].add(source.regionScatters[i]);
+            exits[i].add(source.regionExits[i]);
+            detections[i].add(source.regionDetections[i]);
+         }
+      }
+   }
+
+
+   // Add completed samples.
+   public void addSamples(long count)
+   {
+      samplesCompleted.add(count);
+   }
+
+
+   // Start logging a JSON line every interval seconds.
+   public void startLog(String filename, int interval) throws IOException
+   {
+      logWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                                                        new FileOutputStream(filename), StandardCharsets.UTF_8)));
+      logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                                                             Thread thread = new Thread(runnable);
+                                                             thread.setDaemon(true);
+                                                             return(thread);
+                                                          });
+      logger.scheduleAtFixedRate(this::log, interval, interval, TimeUnit.SECONDS);
+   }
+
+
+   // Write final log line and close log.
+   public void stopLog()
+   {
+      if (logger == null)
+      {
+         return;
+      }
+      logger.shutdown();
+      try
+      {
+         logger.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      log();
+      logWriter.close();
+      logger = null;
+   }
+
+
+   // Write log line.
+   synchronized void log()
+   {
+      logWriter.println(toJson());
+      logWriter.flush();
+   }
+
+
+   // Metrics as a JSON object on one line.
+   public String toJson()
+   {
+      StringBuilder json = new StringBuilder();
+
+      json.append("{\"time\":\"").append(Instant.now()).append('"');
+      json.append(",\"elapsedSeconds\":").append(getElapsedSeconds());
+      json.append(",\"samplesCompleted\":").append(getSamplesCompleted());
+      json.append(",\"samplesTotal\":").append(samplesTotal);
+      json.append(",\"samplesPerSecond\":").append(getSamplesPerSecond());
+      json.append(",\"etaSeconds\":").append(getEtaSeconds());
+      json.append(",\"photonsEmitted\":").append(getPhotonsEmitted());
+      json.append(",\"photonsPerSecond\":").append(getPhotonsPerSecond());
+      json.append(",\"meanStepsPerPhoton\":").append(getMeanStepsPerPhoton());
+      json.append(",\"regions\":[");
+      for (int i = 0; i < regions.length; i++)
+      {
+         if (i > 0)
+         {
+            json.append(',');
+         }
+         appendString(json, regions[i]);
+      }
+      json.append(']');
+      appendCounts(json, "absorptions", absorptions);
+      appendCounts(json, "scatters", scatters);
+      appendCounts(json, "exits", exits);
+      appendCounts(json, "detections", detections);
+      json.append('}');
+      return(json.toString());
+   }
+
+
+   // Append JSON string, escaping quotes, backslashes and control characters.
+   static void appendString(StringBuilder json, String value)
+   {
+      json.append('"');
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if ((c == '"') || (c == '\\'))
+         {
+            json.append('\\').append(c);
+         }
+         else if (c < 0x20)
+         {
+            json.append(String.format("\\u%04x", (int)c));
+         }
+         else
+         {
+            json.append(c);
+         }
+      }
+      json.append('"');
+   }
+
+
+   // Append JSON count array.
+   static void appendCounts(StringBuilder json, String name, LongAdder[] counts)
+   {
+      json.append(",\"").append(name).append("\":[");
+      for (int i = 0; i < counts.length; i++)
+      {
+         if (i > 0)
+         {
+            json.append(',');
+         }
+         json.append(counts[i].sum());
+      }
+      json.append(']');
+   }
+
+
+   // Sum counts.
+   static long[] sum(LongAdder[] counts)
+   {
+      long[] sums = new long[counts.length];
+
+      for (int i = 0; i < counts.length; i++)
+      {
+         sums[i] = counts[i].sum();
+      }
+      return(sums);
+   }
+
+
+   // MBean attributes.
+   public long getSamplesCompleted()
+   {
+      return(samplesCompleted.sum());
+   }
+
+
+   public long getSamplesTotal()
+   {
+      return(samplesTotal);
+   }
+
+
+   public double getSamplesPerSecond()
+   {
+      double seconds = getElapsedSeconds();
+
+      return((seconds > 0.0) ? ((double)getSamplesCompleted() / seconds) : 0.0);
+   }
+
+
+   public double getEtaSeconds()
+   {
+      long completed = getSamplesCompleted();
+
+      if ((samplesTotal <= 0) || (completed == 0))
+      {
+         return(-1.0);
+      }
+      return((double)(samplesTotal - completed) * getElapsedSeconds() / (double)completed);
+   }
+
+
+   public double getElapsedSeconds()
+   {
+      return((double)(System.nanoTime() - startNanos) / 1.0e9);
+   }
+
+
+   public long getPhotonsEmitted()
+   {
+      return(photonsEmitted.sum());
+   }
+
+
+   public double getPhotonsPerSecond()
+   {
+      double seconds = getElapsedSeconds();
+
+      return((seconds > 0.0) ? ((double)getPhotonsEmitted() / seconds) : 0.0);
+   }
+
+
+   public double getMeanStepsPerPhoton()
+   {
+      long photons = getPhotonsEmitted();
+
+      return((photons > 0) ? ((double)photonSteps.sum() / (double)photons) : 0.0);
+   }
+
+
+   public String[] getRegions()
+   {
+      return(regions.clone());
+   }
+
+
+   public long[] getAbsorptions()
+   {
+      return(sum(absorptions));
+   }
+
+
+   public long[] getScatters()
+   {
+      return(sum(scatters));
+   }
+
+
+   public long[] getExits()
+   {
+      return(sum(exits));
+   }
+
+
+   public long[] getDetections()
+   {
+      return(sum(detections));
+   }
+}
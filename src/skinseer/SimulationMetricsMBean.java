@@ -0,0 +1,37 @@
+// Simulation metrics management interface.
+// See SimulationMetrics.
+
+package skinseer;
+
+public interface SimulationMetricsMBean
+{
+   // Samples completed and total (0 if unknown).
+   public long getSamplesCompleted();
+
+   public long getSamplesTotal();
+
+   // Sample rate, estimated time to completion (-1 if unknown) and elapsed time.
+   public double getSamplesPerSecond();
+
+   public double getEtaSeconds();
+
+   public double getElapsedSeconds();
+
+   // Photons simulated.
+   public long getPhotonsEmitted();
+
+   public double getPhotonsPerSecond();
+
+   public double getMeanStepsPerPhoton();
+
+   // Photon event regions, and event counts by region.
+   public String[] getRegions();
+
+   public long[] getAbsorptions();
+
+   public long[] getScatters();
+
+   public long[] getExits();
+
+   public long[] getDetections();
+}
@@ -0,0 +1,32 @@
+// Skin medium layer.
+
+package skinseer;
+
+public class SkinLayer
+{
+   public String name;
+   public float  thickness;
+   public float  photonAbsorptionProbability;
+   public float  photonScatterProbability;
+   public double photonScatterAngleZeroMean;
+   public double photonScatterAngleSigma;
+
+   // Constructors.
+   public SkinLayer(String name, float thickness,
+                    float photonAbsorptionProbability, float photonScatterProbability,
+                    double photonScatterAngleZeroMean, double photonScatterAngleSigma)
+   {
+      this.name                        = name;
+      this.thickness                   = thickness;
+      this.photonAbsorptionProbability = photonAbsorptionProbability;
+      this.photonScatterProbability    = photonScatterProbability;
+      this.photonScatterAngleZeroMean  = photonScatterAngleZeroMean;
+      this.photonScatterAngleSigma     = photonScatterAngleSigma;
+   }
+
+
+   public SkinLayer(String name)
+   {
+      this(name, 0.0f, 0.0f, 0.0f, 0.0, 0.0);
+   }
+}
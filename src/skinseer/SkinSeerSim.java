@@ -37,7 +37,17 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import skinseer.NormalDistribution;
 
 public class SkinSeerSim
@@ -51,7 +61,21 @@ public class SkinSeerSim
    // Usage.
    public static final String Usage = "Usage: java SkinSeerSim -steps <steps>"
                                       + "\n\t[-parameterFile <file name>] [-printParameters]"
-                                      + "\n\t[-photonDetectorCountsFile <file name>] (otherwise sent to standard output)";
+                                      + "\n\t[-photonDetectorCountsFile <file name>] (otherwise sent to standard output)"
+                                      + "\n\t[-wavelengthCountsFile <file name (CSV expected counts of WAVELENGTH_<n>_* parameter wavelengths)>]"
+                                      + "\n\t[-profileFile <file name> (.csv or binary)] [-profileInterval <steps per profile row>]"
+                                      + "\n\t[-throughput (print photon source throughput)]"
+                                      + "\n\t[-randomSeed <random seed>]"
+                                      + "\n\t[-engine <scalar | TransportEngine class name (default scalar)>]"
+                                      + "\n\t\t(experimental, slower than scalar: lanes | vector (requires build_vector and java --add-modules jdk.incubator.vector))"
+                                      + "\n\t[-roulette <reachability threshold as fraction of mean photon detection probability>"
+                                      + "\n\t\t[-rouletteWeight <survivor weight>]]"
+                                      + "\n\t[-threads <photon transport threads per source (default 1, 0=available processors)>]"
+                                      + "\n\t[-fluenceFile <file name (binary fluence and absorption map)> [-fluenceCellSize <cell size (default 1)>]]"
+                                      + "\n\t[-compressThreads <threads compressing .gz profile and fluence files (default available processors)>]"
+                                      + "\n\t[-photonLog <predicate, e.g. detected,counter=7,nevus (see PhotonLog)> [-photonLogFile <file name (CSV)>]]"
+                                      + "\n\t[-replayPhoton <source>:<photon> (trace one photon instead of scanning) [-replayFile <file name>]]"
+                                      + "\n\t(-photonLog and -replayPhoton require -randomSeed)";
 
    // Parameters.
    public static int     SCANNER_WIDTH       = 450;
@@ -87,9 +111,36 @@ public class SkinSeerSim
    public static float   PHOTON_DETECTOR_WIDTH = 15.0f;
    public static int     NUM_PHOTON_COUNTERS   = 10;
 
+   // Skin layers from the surface downward (LAYER_<n>_* parameters).
+   // When none are given the medium is the epidermis over the dermis.
+   public static ArrayList<SkinLayer> LAYERS = new ArrayList<SkinLayer>();
+
+   // Nevi (NEVUS_<n>_* parameters), otherwise the single NEVUS_* nevus.
+   public static ArrayList<NevusGeometry> NEVI = new ArrayList<NevusGeometry>();
+
+   // Photon sources (PHOTON_SOURCE_<n>_* parameters), otherwise the single PHOTON_SOURCE_* source.
+   public static ArrayList<PhotonSourceGeometry> PHOTON_SOURCES = new ArrayList<PhotonSourceGeometry>();
+
+   // Photon detector arrays (PHOTON_DETECTOR_<n>_* parameters), otherwise the single PHOTON_DETECTOR_* array.
+   public static ArrayList<PhotonDetectorGeometry> PHOTON_DETECTORS = new ArrayList<PhotonDetectorGeometry>();
+
+   // Additional wavelengths (WAVELENGTH_<n>_* parameters), simulated on
+   // the same photon walks as the reference wavelength (see Wavelength).
+   public static ArrayList<Wavelength> WAVELENGTHS = new ArrayList<Wavelength>();
+
    // Load parameters.
+   // Indexed parameters (LAYER_<n>_* etc.) are loaded after the others,
+   // which give their defaults, and are collected by index, so they may
+   // appear in any order; indices must run from 0 without gaps.
    public static void loadParameters(String filename)
    {
+      ArrayList<String[]>                      indexed     = new ArrayList<String[]>();
+      TreeMap<Integer, SkinLayer>              layers      = new TreeMap<Integer, SkinLayer>();
+      TreeMap<Integer, NevusGeometry>          nevi        = new TreeMap<Integer, NevusGeometry>();
+      TreeMap<Integer, PhotonSourceGeometry>   sources     = new TreeMap<Integer, PhotonSourceGeometry>();
+      TreeMap<Integer, PhotonDetectorGeometry> detectors   = new TreeMap<Integer, PhotonDetectorGeometry>();
+      TreeMap<Integer, Wavelength>             wavelengths = new TreeMap<Integer, Wavelength>();
+
       try (BufferedReader br = new BufferedReader(new FileReader(filename)))
          {
             for (String line; (line = br.readLine()) != null; )
@@ -231,7 +282,103 @@ public class SkinSeerSim
                {
                   NUM_PHOTON_COUNTERS = Integer.parseInt(value);
                }
+               else if (name.startsWith("NEVUS_") && (name.length() > 6) &&
+                        Character.isDigit(name.charAt(6)))
+               {
+                  indexed.add(parts);
+               }
+               else if (name.startsWith("PHOTON_SOURCE_") && (name.length() > 14) &&
+                        Character.isDigit(name.charAt(14)))
+               {
+                  indexed.add(parts);
+               }
+               else if (name.startsWith("PHOTON_DETECTOR_") && (name.length() > 16) &&
+                        Character.isDigit(name.charAt(16)))
+               {
+                  indexed.add(parts);
+               }
+               else if (name.startsWith("LAYER_"))
+               {
+                  indexed.add(parts);
+               }
+               else if (name.startsWith("WAVELENGTH_"))
+               {
+                  indexed.add(parts);
+               }
+            }
+
+            // Indexed parameters.
+            for (String[] parts : indexed)
+            {
+               String name  = parts[0];
+               String value = parts[1];
+               if (name.startsWith("LAYER_"))
+               {
+                  if (!loadLayerParameter(name, value, layers))
+                  {
+                     System.err.println("Invalid layer parameter " + name + " in file " + filename);
+                     System.exit(1);
+                  }
+               }
+               else if (name.startsWith("NEVUS_"))
+               {
+                  if (!loadNevusParameter(name, value, nevi))
+                  {
+                     System.err.println("Invalid nevus parameter " + name + " in file " + filename);
+                     System.exit(1);
+                  }
+               }
+               else if (name.startsWith("PHOTON_SOURCE_"))
+               {
+                  if (!loadPhotonSourceParameter(name, value, sources))
+                  {
+                     System.err.println("Invalid photon source parameter " + name + " in file " + filename);
+                     System.exit(1);
+                  }
+               }
+               else if (name.startsWith("PHOTON_DETECTOR_"))
+               {
+                  if (!loadPhotonDetectorParameter(name, value, detectors))
+                  {
+                     System.err.println("Invalid photon detector parameter " + name + " in file " + filename);
+                     System.exit(1);
+                  }
+               }
+               else if (name.startsWith("WAVELENGTH_"))
+               {
+                  if (!loadWavelengthParameter(name, value, wavelengths))
+                  {
+                     System.err.println("Invalid wavelength parameter " + name + " in file " + filename);
+                     System.exit(1);
+                  }
+               }
+            }
+            if (!addIndexed(layers, LAYERS))
+            {
+               System.err.println("Layer parameters not numbered from 0 without gaps in file " + filename);
+               System.exit(1);
+            }
+            if (!addIndexed(nevi, NEVI))
+            {
+               System.err.println("Nevus parameters not numbered from 0 without gaps in file " + filename);
+               System.exit(1);
+            }
+            if (!addIndexed(sources, PHOTON_SOURCES))
+            {
+               System.err.println("Photon source parameters not numbered from 0 without gaps in file " + filename);
+               System.exit(1);
+            }
+            if (!addIndexed(detectors, PHOTON_DETECTORS))
+            {
+               System.err.println("Photon detector parameters not numbered from 0 without gaps in file " + filename);
+               System.exit(1);
+            }
+            if (!addIndexed(wavelengths, WAVELENGTHS))
+            {
+               System.err.println("Wavelength parameters not numbered from 0 without gaps in file " + filename);
+               System.exit(1);
             }
+            checkWavelengths(filename);
          }
          catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -249,419 +396,2472 @@ public class SkinSeerSim
    }
 
 
-   // Print parameters.
-   public static void printParameters()
+   // Add indexed parameter entries to list in index order.
+   // Return false unless the indices run from 0 without gaps.
+   static <T> boolean addIndexed(TreeMap<Integer, T> entries, ArrayList<T> list)
    {
-      System.out.println("Parameters:");
-      System.out.println("SCANNER_WIDTH=" + SCANNER_WIDTH);
-      System.out.println("SCANNER_HEIGHT=" + SCANNER_HEIGHT);
-      System.out.println("EPIDERMIS_THICKNESS=" + EPIDERMIS_THICKNESS);
-      System.out.println("EPIDERMIS_PHOTON_ABSORPTION_PROBABILITY=" + EPIDERMIS_PHOTON_ABSORPTION_PROBABILITY);
-      System.out.println("EPIDERMIS_PHOTON_SCATTER_PROBABILITY=" + EPIDERMIS_PHOTON_SCATTER_PROBABILITY);
-      System.out.println("EPIDERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + EPIDERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN);
-      System.out.println("EPIDERMIS_PHOTON_SCATTER_ANGLE_SIGMA=" + EPIDERMIS_PHOTON_SCATTER_ANGLE_SIGMA);
-      System.out.println("DERMIS_THICKNESS=" + DERMIS_THICKNESS);
-      System.out.println("DERMIS_PHOTON_ABSORPTION_PROBABILITY=" + DERMIS_PHOTON_ABSORPTION_PROBABILITY);
-      System.out.println("DERMIS_PHOTON_SCATTER_PROBABILITY=" + DERMIS_PHOTON_SCATTER_PROBABILITY);
-      System.out.println("DERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + DERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN);
-      System.out.println("DERMIS_PHOTON_SCATTER_ANGLE_SIGMA=" + DERMIS_PHOTON_SCATTER_ANGLE_SIGMA);
-      if (NEVUS_VALID)
+      if ((entries.size() > 0) && (entries.lastKey() != entries.size() - 1))
       {
-         System.out.println("NEVUS_VALID=true");
+         return(false);
+      }
+      list.addAll(entries.values());
+      return(true);
+   }
+
+
+   // Load layer parameter of form LAYER_<n>_<name> into layers by index.
+   // Return false if invalid.
+   static boolean loadLayerParameter(String name, String value, TreeMap<Integer, SkinLayer> layers)
+   {
+      int i = name.indexOf('_', 6);
+
+      if (i == -1)
+      {
+         return(false);
+      }
+      int n;
+      try
+      {
+         n = Integer.parseInt(name.substring(6, i));
+      }
+      catch (NumberFormatException e)
+      {
+         return(false);
+      }
+      if (n < 0)
+      {
+         return(false);
+      }
+      SkinLayer layer = layers.get(n);
+      if (layer == null)
+      {
+         layer = new SkinLayer("layer" + n);
+         layers.put(n, layer);
+      }
+      String    field = name.substring(i + 1);
+      if (field.equals("NAME"))
+      {
+         layer.name = value;
+      }
+      else if (field.equals("THICKNESS"))
+      {
+         layer.thickness = Float.parseFloat(value);
+      }
+      else if (field.equals("PHOTON_ABSORPTION_PROBABILITY"))
+      {
+         layer.photonAbsorptionProbability = Float.parseFloat(value);
+      }
+      else if (field.equals("PHOTON_SCATTER_PROBABILITY"))
+      {
+         layer.photonScatterProbability = Float.parseFloat(value);
+      }
+      else if (field.equals("PHOTON_SCATTER_ANGLE_ZERO_MEAN"))
+      {
+         layer.photonScatterAngleZeroMean = Double.parseDouble(value);
+      }
+      else if (field.equals("PHOTON_SCATTER_ANGLE_SIGMA"))
+      {
+         layer.photonScatterAngleSigma = Double.parseDouble(value);
       }
       else
       {
-         System.out.println("NEVUS_VALID=false");
+         return(false);
       }
-      System.out.println("NEVUS_WIDTH=" + NEVUS_WIDTH);
-      System.out.println("NEVUS_HEIGHT=" + NEVUS_HEIGHT);
-      System.out.println("NEVUS_X=" + NEVUS_X);
-      System.out.println("NEVUS_EPIDERMIS_DEPTH=" + NEVUS_EPIDERMIS_DEPTH);
-      System.out.println("NEVUS_PHOTON_ABSORPTION_PROBABILITY=" + NEVUS_PHOTON_ABSORPTION_PROBABILITY);
-      System.out.println("NEVUS_PHOTON_SCATTER_PROBABILITY=" + NEVUS_PHOTON_SCATTER_PROBABILITY);
-      System.out.println("NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN);
-      System.out.println("NEVUS_PHOTON_SCATTER_ANGLE_SIGMA=" + NEVUS_PHOTON_SCATTER_ANGLE_SIGMA);
-      System.out.println("PHOTON_SOURCE_X=" + PHOTON_SOURCE_X);
-      System.out.println("PHOTON_SOURCE_RADIUS=" + PHOTON_SOURCE_RADIUS);
-      System.out.println("PHOTON_EMISSION_RATE=" + PHOTON_EMISSION_RATE);
-      System.out.println("PHOTON_RADIUS=" + PHOTON_RADIUS);
-      System.out.println("PHOTON_MIN_EMISSION_ANGLE=" + PHOTON_MIN_EMISSION_ANGLE);
-      System.out.println("PHOTON_MAX_EMISSION_ANGLE=" + PHOTON_MAX_EMISSION_ANGLE);
-      System.out.println("PHOTON_SPEED=" + PHOTON_SPEED);
-      System.out.println("PHOTON_DETECTOR_X=" + PHOTON_DETECTOR_X);
-      System.out.println("PHOTON_DETECTOR_WIDTH=" + PHOTON_DETECTOR_WIDTH);
-      System.out.println("NUM_PHOTON_COUNTERS=" + NUM_PHOTON_COUNTERS);
+      return(true);
    }
 
 
-   // Photon source.
-   public class PhotonSource
+   // Load wavelength parameter of form WAVELENGTH_<n>_<name>, where name
+   // is NAME, NEVUS_PHOTON_ABSORPTION_PROBABILITY or
+   // LAYER_<m>_PHOTON_ABSORPTION_PROBABILITY (layer m from the surface
+   // downward: 0 is the epidermis and 1 the dermis without LAYER_*
+   // parameters), into wavelengths by index.
+   // Return false if invalid.
+   static boolean loadWavelengthParameter(String name, String value, TreeMap<Integer, Wavelength> wavelengths)
    {
-      public Point2D.Float center;
-      public float         epidermisY;
-      public float         dermisY;
-
-      // Photon.
-      public ArrayList<Point2D.Float> photonTrace;
-      public double        photonAngle;
-      public Point2D.Float photonDirection;
+      int i = name.indexOf('_', 11);
 
-      // Constructor.
-      public PhotonSource()
+      if (i == -1)
       {
-         float cx = PHOTON_SOURCE_X + PHOTON_SOURCE_RADIUS;
-         float cy = PHOTON_SOURCE_RADIUS + EPIDERMIS_THICKNESS + DERMIS_THICKNESS;
-
-         center     = new Point2D.Float(cx, cy);
-         epidermisY = EPIDERMIS_THICKNESS + DERMIS_THICKNESS;
-         dermisY    = DERMIS_THICKNESS;
+         return(false);
       }
-
-
-      // Clear.
-      public void clearPhoton()
+      int n;
+      try
+      {
+         n = Integer.parseInt(name.substring(11, i));
+      }
+      catch (NumberFormatException e)
+      {
+         return(false);
+      }
+      if (n < 0)
+      {
+         return(false);
+      }
+      Wavelength wavelength = wavelengths.get(n);
+      if (wavelength == null)
+      {
+         wavelength = new Wavelength("wavelength" + n);
+         wavelengths.put(n, wavelength);
+      }
+      String field = name.substring(i + 1);
+      if (field.equals("NAME"))
+      {
+         wavelength.name = value;
+      }
+      else if (field.equals("NEVUS_PHOTON_ABSORPTION_PROBABILITY"))
+      {
+         wavelength.nevusAbsorptionProbability = Float.parseFloat(value);
+      }
+      else if (field.startsWith("LAYER_") && field.endsWith("_PHOTON_ABSORPTION_PROBABILITY"))
+      {
+         int m;
+         try
+         {
+            m = Integer.parseInt(field.substring(6, field.length() - 30));
+         }
+         catch (NumberFormatException e)
+         {
+            return(false);
+         }
+         if (m < 0)
+         {
+            return(false);
+         }
+         wavelength.setLayerAbsorptionProbability(m, Float.parseFloat(value));
+      }
+      else
       {
-         photonTrace     = null;
-         photonDirection = null;
+         return(false);
       }
+      return(true);
+   }
 
 
-      // Update.
-      // Return false when photon track completed.
-      public boolean updatePhoton()
+   // Check wavelengths. A photon always absorbed at the reference
+   // wavelength (probability 1) cannot carry a wavelength that could
+   // survive there on, biasing its counts: exits. A wavelength absorbing
+   // less than the reference elsewhere gets survival ratios, and weights,
+   // above 1, which makes its counts noisier: warns with the largest ratio.
+   static void checkWavelengths(String filename)
+   {
+      ArrayList<SkinLayer> layers = getLayers();
+
+      for (Wavelength wavelength : WAVELENGTHS)
       {
-         if (photonTrace == null)
+         if (wavelength.layerAbsorptionProbability.length > layers.size())
          {
-            photonTrace     = new ArrayList<Point2D.Float>();
-            photonDirection = new Point2D.Float();
-            photonAngle     = (Math.random() * (PHOTON_MAX_EMISSION_ANGLE - PHOTON_MIN_EMISSION_ANGLE)) +
-                              PHOTON_MIN_EMISSION_ANGLE;
-            photonDirection.x = (float)Math.cos(toRadians(photonAngle));
-            photonDirection.y = (float)Math.sin(toRadians(photonAngle));
-            Point2D.Float p = new Point2D.Float();
-            p.x = center.x + (photonDirection.x * PHOTON_RADIUS);
-            p.y = center.y + (photonDirection.y * PHOTON_RADIUS);
-            photonTrace.add(p);
-            return(true);
+            System.err.println("Wavelength " + wavelength.name + " has absorption probabilities of missing layers in file " + filename);
+            System.exit(1);
          }
-         else
+         double maxRatio  = 1.0;
+         String maxRegion = null;
+         for (int m = 0; m <= layers.size(); m++)
          {
-            Point2D.Float p1 = photonTrace.get(photonTrace.size() - 1);
-            if (nevus.contains(p1))
+            String region;
+            float  reference;
+            float  probability;
+            if (m < layers.size())
             {
-               if (Math.random() < NEVUS_PHOTON_ABSORPTION_PROBABILITY)
-               {
-                  photonTrace = null;
-                  return(false);
-               }
-               else if (Math.random() < NEVUS_PHOTON_SCATTER_PROBABILITY)
-               {
-                  photonAngle += scatterAngle(NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN,
-                                              NEVUS_PHOTON_SCATTER_ANGLE_SIGMA);
-                  photonDirection.x = (float)Math.cos(toRadians(photonAngle));
-                  photonDirection.y = (float)Math.sin(toRadians(photonAngle));
-               }
+               SkinLayer layer = layers.get(m);
+               region      = "layer " + layer.name;
+               reference   = layer.photonAbsorptionProbability;
+               probability = wavelength.getLayerAbsorptionProbability(m, reference);
             }
             else
             {
-               if ((p1.x >= 0) && (p1.x < (float)SCANNER_WIDTH))
-               {
-                  if ((p1.y <= epidermisY) && (p1.y > dermisY))
-                  {
-                     if (Math.random() < EPIDERMIS_PHOTON_ABSORPTION_PROBABILITY)
-                     {
-                        photonTrace = null;
-                        return(false);
-                     }
-                     else if (Math.random() < EPIDERMIS_PHOTON_SCATTER_PROBABILITY)
-                     {
-                        photonAngle += scatterAngle(EPIDERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN,
-                                                    EPIDERMIS_PHOTON_SCATTER_ANGLE_SIGMA);
-                        photonDirection.x = (float)Math.cos(toRadians(photonAngle));
-                        photonDirection.y = (float)Math.sin(toRadians(photonAngle));
-                     }
-                  }
-                  else if ((p1.y <= dermisY) && (p1.y >= 0.0f))
-                  {
-                     if (Math.random() < DERMIS_PHOTON_ABSORPTION_PROBABILITY)
-                     {
-                        photonTrace = null;
-                        return(false);
-                     }
-                     else if (Math.random() < DERMIS_PHOTON_SCATTER_PROBABILITY)
-                     {
-                        photonAngle += scatterAngle(DERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN,
-                                                    DERMIS_PHOTON_SCATTER_ANGLE_SIGMA);
-                        photonDirection.x = (float)Math.cos(toRadians(photonAngle));
-                        photonDirection.y = (float)Math.sin(toRadians(photonAngle));
-                     }
-                  }
-               }
+               region      = "nevi";
+               reference   = NEVUS_PHOTON_ABSORPTION_PROBABILITY;
+               probability = wavelength.getNevusAbsorptionProbability(reference);
             }
-            Point2D.Float p2 = new Point2D.Float();
-            p2.x = p1.x + (photonDirection.x * PHOTON_SPEED);
-            p2.y = p1.y + (photonDirection.y * PHOTON_SPEED);
-            if ((p2.x < 0.0f) || (p2.x >= (float)SCANNER_WIDTH) ||
-                (p2.y < 0.0f) || (p2.y >= (float)SCANNER_HEIGHT))
+            if ((reference >= 1.0f) && (probability < 1.0f))
             {
-               clearPhoton();
-               return(false);
+               System.err.println("Wavelength " + wavelength.name + " absorbs less than the reference wavelength in " +
+                                  region + ", where the reference absorbs every photon, in file " + filename +
+                                  " (make the reference absorption probability less than 1)");
+               System.exit(1);
             }
-            if ((p2.y > epidermisY) && (photonDirection.y > 0.0f))
+            double ratio = Wavelength.survivalRatio(probability, reference);
+            if (ratio > maxRatio)
             {
-               // Detect photon.
-               if (photonDetector.detect(p2) != -1)
-               {
-                  clearPhoton();
-                  return(false);
-               }
+               maxRatio  = ratio;
+               maxRegion = region;
             }
-            photonTrace.add(p2);
-            return(true);
+         }
+         if (maxRegion != null)
+         {
+            System.err.println("Wavelength " + wavelength.name + " survives absorption up to " +
+                               String.format("%.3g", maxRatio) + " times as often as the reference wavelength (in " +
+                               maxRegion + "), increasing the variance of its counts");
          }
       }
+   }
 
 
-      // Get scatter angle.
-      public double scatterAngle(double mean, double sigma)
-      {
-         NormalDistribution scatterer = new NormalDistribution(mean, sigma);
+   // Load nevus parameter of form NEVUS_<n>_<name> into nevi by index.
+   // Return false if invalid.
+   static boolean loadNevusParameter(String name, String value, TreeMap<Integer, NevusGeometry> nevi)
+   {
+      int i = name.indexOf('_', 6);
 
-         return(scatterer.nextValue() - mean);
+      if (i == -1)
+      {
+         return(false);
       }
-
-
-      // Convert degrees to radians.
-      double toRadians(double angle)
+      int n;
+      try
       {
-         return(angle * (Math.PI / 180.0));
+         n = Integer.parseInt(name.substring(6, i));
       }
-
-
-      // Euclidean distance.
-      float dist(Point2D.Float p1, Point2D.Float p2)
+      catch (NumberFormatException e)
       {
-         return((float)Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2)));
+         return(false);
       }
-   }
-
-   // Photon detector.
-   public class PhotonDetector
-   {
-      public int[] photonCounters;
-      public float epidermisY;
-      public float width;
-
-      // Constructor.
-      public PhotonDetector()
+      if (n < 0)
       {
-         photonCounters = new int[NUM_PHOTON_COUNTERS];
-         epidermisY     = EPIDERMIS_THICKNESS + DERMIS_THICKNESS;
-         width          = SkinSeerSim.PHOTON_DETECTOR_WIDTH * (float)SkinSeerSim.NUM_PHOTON_COUNTERS;
+         return(false);
       }
-
-
-      // Reset.
-      public void reset()
+      NevusGeometry nevus = nevi.get(n);
+      if (nevus == null)
       {
-         for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
-         {
-            photonCounters[i] = 0;
-         }
+         nevus = new NevusGeometry(NEVUS_X, NEVUS_WIDTH, NEVUS_HEIGHT, NEVUS_EPIDERMIS_DEPTH);
+         nevi.put(n, nevus);
       }
-
-
-      // Detect photon.
+      String field = name.substring(i + 1);
+      if (field.equals("X"))
+      {
+         nevus.x = Float.parseFloat(value);
+      }
+      else if (field.equals("WIDTH"))
+      {
+         nevus.width = Float.parseFloat(value);
+      }
+      else if (field.equals("HEIGHT"))
+      {
+         nevus.height = Float.parseFloat(value);
+      }
+      else if (field.equals("EPIDERMIS_DEPTH"))
+      {
+         nevus.epidermisDepth = Float.parseFloat(value);
+      }
+      else
+      {
+         return(false);
+      }
+      return(true);
+   }
+
+
+   // Load photon source parameter of form PHOTON_SOURCE_<n>_<name> into
+   // sources by index.
+   // Return false if invalid.
+   static boolean loadPhotonSourceParameter(String name, String value, TreeMap<Integer, PhotonSourceGeometry> sources)
+   {
+      int i = name.indexOf('_', 14);
+
+      if (i == -1)
+      {
+         return(false);
+      }
+      int n;
+      try
+      {
+         n = Integer.parseInt(name.substring(14, i));
+      }
+      catch (NumberFormatException e)
+      {
+         return(false);
+      }
+      if (n < 0)
+      {
+         return(false);
+      }
+      PhotonSourceGeometry source = sources.get(n);
+      if (source == null)
+      {
+         source = new PhotonSourceGeometry(PHOTON_SOURCE_X, PHOTON_SOURCE_RADIUS);
+         sources.put(n, source);
+      }
+      String field = name.substring(i + 1);
+      if (field.equals("X"))
+      {
+         source.x = Float.parseFloat(value);
+      }
+      else if (field.equals("RADIUS"))
+      {
+         source.radius = Float.parseFloat(value);
+      }
+      else
+      {
+         return(false);
+      }
+      return(true);
+   }
+
+
+   // Load photon detector parameter of form PHOTON_DETECTOR_<n>_<name>
+   // into detectors by index.
+   // Return false if invalid.
+   static boolean loadPhotonDetectorParameter(String name, String value, TreeMap<Integer, PhotonDetectorGeometry> detectors)
+   {
+      int i = name.indexOf('_', 16);
+
+      if (i == -1)
+      {
+         return(false);
+      }
+      int n;
+      try
+      {
+         n = Integer.parseInt(name.substring(16, i));
+      }
+      catch (NumberFormatException e)
+      {
+         return(false);
+      }
+      if (n < 0)
+      {
+         return(false);
+      }
+      PhotonDetectorGeometry detector = detectors.get(n);
+      if (detector == null)
+      {
+         detector = new PhotonDetectorGeometry(PHOTON_DETECTOR_X, PHOTON_DETECTOR_WIDTH);
+         detectors.put(n, detector);
+      }
+      String field = name.substring(i + 1);
+      if (field.equals("X"))
+      {
+         detector.x = Float.parseFloat(value);
+      }
+      else if (field.equals("WIDTH"))
+      {
+         detector.counterWidth = Float.parseFloat(value);
+      }
+      else
+      {
+         return(false);
+      }
+      return(true);
+   }
+
+
+   // Get photon sources.
+   public static ArrayList<PhotonSourceGeometry> getPhotonSources()
+   {
+      ArrayList<PhotonSourceGeometry> sources = new ArrayList<PhotonSourceGeometry>();
+
+      if (PHOTON_SOURCES.size() > 0)
+      {
+         sources.addAll(PHOTON_SOURCES);
+      }
+      else
+      {
+         sources.add(new PhotonSourceGeometry(PHOTON_SOURCE_X, PHOTON_SOURCE_RADIUS));
+      }
+      return(sources);
+   }
+
+
+   // Get photon detector arrays.
+   public static ArrayList<PhotonDetectorGeometry> getPhotonDetectors()
+   {
+      ArrayList<PhotonDetectorGeometry> detectors = new ArrayList<PhotonDetectorGeometry>();
+
+      if (PHOTON_DETECTORS.size() > 0)
+      {
+         detectors.addAll(PHOTON_DETECTORS);
+      }
+      else
+      {
+         detectors.add(new PhotonDetectorGeometry(PHOTON_DETECTOR_X, PHOTON_DETECTOR_WIDTH));
+      }
+      return(detectors);
+   }
+
+
+   // Get nevi.
+   public static ArrayList<NevusGeometry> getNevi()
+   {
+      ArrayList<NevusGeometry> nevi = new ArrayList<NevusGeometry>();
+
+      if (NEVUS_VALID)
+      {
+         if (NEVI.size() > 0)
+         {
+            nevi.addAll(NEVI);
+         }
+         else
+         {
+            nevi.add(new NevusGeometry(NEVUS_X, NEVUS_WIDTH, NEVUS_HEIGHT, NEVUS_EPIDERMIS_DEPTH));
+         }
+      }
+      return(nevi);
+   }
+
+
+   // Get skin layers from the surface downward.
+   public static ArrayList<SkinLayer> getLayers()
+   {
+      if (LAYERS.size() > 0)
+      {
+         return(LAYERS);
+      }
+      ArrayList<SkinLayer> layers = new ArrayList<SkinLayer>();
+      layers.add(new SkinLayer("epidermis", EPIDERMIS_THICKNESS,
+                               EPIDERMIS_PHOTON_ABSORPTION_PROBABILITY, EPIDERMIS_PHOTON_SCATTER_PROBABILITY,
+                               EPIDERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN, EPIDERMIS_PHOTON_SCATTER_ANGLE_SIGMA));
+      layers.add(new SkinLayer("dermis", DERMIS_THICKNESS,
+                               DERMIS_PHOTON_ABSORPTION_PROBABILITY, DERMIS_PHOTON_SCATTER_PROBABILITY,
+                               DERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN, DERMIS_PHOTON_SCATTER_ANGLE_SIGMA));
+      return(layers);
+   }
+
+
+   // Get skin surface height.
+   public static float getSkinThickness()
+   {
+      float thickness = 0.0f;
+
+      for (SkinLayer layer : getLayers())
+      {
+         thickness += layer.thickness;
+      }
+      return(thickness);
+   }
+
+
+   // Get height of top of dermis: the layer named "dermis",
+   // otherwise the layer below the surface layer.
+   public static float getDermisY()
+   {
+      ArrayList<SkinLayer> layers = getLayers();
+      float y = getSkinThickness();
+
+      for (SkinLayer layer : layers)
+      {
+         if (layer.name.equals("dermis"))
+         {
+            return(y);
+         }
+         y -= layer.thickness;
+      }
+      return(getSkinThickness() - layers.get(0).thickness);
+   }
+
+
+   // Print parameters.
+   public static void printParameters()
+   {
+      System.out.println("Parameters:");
+      System.out.println("SCANNER_WIDTH=" + SCANNER_WIDTH);
+      System.out.println("SCANNER_HEIGHT=" + SCANNER_HEIGHT);
+      System.out.println("EPIDERMIS_THICKNESS=" + EPIDERMIS_THICKNESS);
+      System.out.println("EPIDERMIS_PHOTON_ABSORPTION_PROBABILITY=" + EPIDERMIS_PHOTON_ABSORPTION_PROBABILITY);
+      System.out.println("EPIDERMIS_PHOTON_SCATTER_PROBABILITY=" + EPIDERMIS_PHOTON_SCATTER_PROBABILITY);
+      System.out.println("EPIDERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + EPIDERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN);
+      System.out.println("EPIDERMIS_PHOTON_SCATTER_ANGLE_SIGMA=" + EPIDERMIS_PHOTON_SCATTER_ANGLE_SIGMA);
+      System.out.println("DERMIS_THICKNESS=" + DERMIS_THICKNESS);
+      System.out.println("DERMIS_PHOTON_ABSORPTION_PROBABILITY=" + DERMIS_PHOTON_ABSORPTION_PROBABILITY);
+      System.out.println("DERMIS_PHOTON_SCATTER_PROBABILITY=" + DERMIS_PHOTON_SCATTER_PROBABILITY);
+      System.out.println("DERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + DERMIS_PHOTON_SCATTER_ANGLE_ZERO_MEAN);
+      System.out.println("DERMIS_PHOTON_SCATTER_ANGLE_SIGMA=" + DERMIS_PHOTON_SCATTER_ANGLE_SIGMA);
+      if (NEVUS_VALID)
+      {
+         System.out.println("NEVUS_VALID=true");
+      }
+      else
+      {
+         System.out.println("NEVUS_VALID=false");
+      }
+      System.out.println("NEVUS_WIDTH=" + NEVUS_WIDTH);
+      System.out.println("NEVUS_HEIGHT=" + NEVUS_HEIGHT);
+      System.out.println("NEVUS_X=" + NEVUS_X);
+      System.out.println("NEVUS_EPIDERMIS_DEPTH=" + NEVUS_EPIDERMIS_DEPTH);
+      System.out.println("NEVUS_PHOTON_ABSORPTION_PROBABILITY=" + NEVUS_PHOTON_ABSORPTION_PROBABILITY);
+      System.out.println("NEVUS_PHOTON_SCATTER_PROBABILITY=" + NEVUS_PHOTON_SCATTER_PROBABILITY);
+      System.out.println("NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN);
+      System.out.println("NEVUS_PHOTON_SCATTER_ANGLE_SIGMA=" + NEVUS_PHOTON_SCATTER_ANGLE_SIGMA);
+      System.out.println("PHOTON_SOURCE_X=" + PHOTON_SOURCE_X);
+      System.out.println("PHOTON_SOURCE_RADIUS=" + PHOTON_SOURCE_RADIUS);
+      System.out.println("PHOTON_EMISSION_RATE=" + PHOTON_EMISSION_RATE);
+      System.out.println("PHOTON_RADIUS=" + PHOTON_RADIUS);
+      System.out.println("PHOTON_MIN_EMISSION_ANGLE=" + PHOTON_MIN_EMISSION_ANGLE);
+      System.out.println("PHOTON_MAX_EMISSION_ANGLE=" + PHOTON_MAX_EMISSION_ANGLE);
+      System.out.println("PHOTON_SPEED=" + PHOTON_SPEED);
+      System.out.println("PHOTON_DETECTOR_X=" + PHOTON_DETECTOR_X);
+      System.out.println("PHOTON_DETECTOR_WIDTH=" + PHOTON_DETECTOR_WIDTH);
+      System.out.println("NUM_PHOTON_COUNTERS=" + NUM_PHOTON_COUNTERS);
+      for (int i = 0; i < LAYERS.size(); i++)
+      {
+         SkinLayer layer = LAYERS.get(i);
+         System.out.println("LAYER_" + i + "_NAME=" + layer.name);
+         System.out.println("LAYER_" + i + "_THICKNESS=" + layer.thickness);
+         System.out.println("LAYER_" + i + "_PHOTON_ABSORPTION_PROBABILITY=" + layer.photonAbsorptionProbability);
+         System.out.println("LAYER_" + i + "_PHOTON_SCATTER_PROBABILITY=" + layer.photonScatterProbability);
+         System.out.println("LAYER_" + i + "_PHOTON_SCATTER_ANGLE_ZERO_MEAN=" + layer.photonScatterAngleZeroMean);
+         System.out.println("LAYER_" + i + "_PHOTON_SCATTER_ANGLE_SIGMA=" + layer.photonScatterAngleSigma);
+      }
+      for (int i = 0; i < NEVI.size(); i++)
+      {
+         NevusGeometry nevus = NEVI.get(i);
+         System.out.println("NEVUS_" + i + "_X=" + nevus.x);
+         System.out.println("NEVUS_" + i + "_WIDTH=" + nevus.width);
+         System.out.println("NEVUS_" + i + "_HEIGHT=" + nevus.height);
+         System.out.println("NEVUS_" + i + "_EPIDERMIS_DEPTH=" + nevus.epidermisDepth);
+      }
+      for (int i = 0; i < PHOTON_SOURCES.size(); i++)
+      {
+         PhotonSourceGeometry source = PHOTON_SOURCES.get(i);
+         System.out.println("PHOTON_SOURCE_" + i + "_X=" + source.x);
+         System.out.println("PHOTON_SOURCE_" + i + "_RADIUS=" + source.radius);
+      }
+      for (int i = 0; i < PHOTON_DETECTORS.size(); i++)
+      {
+         PhotonDetectorGeometry detector = PHOTON_DETECTORS.get(i);
+         System.out.println("PHOTON_DETECTOR_" + i + "_X=" + detector.x);
+         System.out.println("PHOTON_DETECTOR_" + i + "_WIDTH=" + detector.counterWidth);
+      }
+      for (int i = 0; i < WAVELENGTHS.size(); i++)
+      {
+         Wavelength wavelength = WAVELENGTHS.get(i);
+         System.out.println("WAVELENGTH_" + i + "_NAME=" + wavelength.name);
+         for (int j = 0; j < wavelength.layerAbsorptionProbability.length; j++)
+         {
+            if (!Float.isNaN(wavelength.layerAbsorptionProbability[j]))
+            {
+               System.out.println("WAVELENGTH_" + i + "_LAYER_" + j + "_PHOTON_ABSORPTION_PROBABILITY=" +
+                                  wavelength.layerAbsorptionProbability[j]);
+            }
+         }
+         if (!Float.isNaN(wavelength.nevusAbsorptionProbability))
+         {
+            System.out.println("WAVELENGTH_" + i + "_NEVUS_PHOTON_ABSORPTION_PROBABILITY=" +
+                               wavelength.nevusAbsorptionProbability);
+         }
+      }
+   }
+
+
+   // Photon source.
+   public class PhotonSource
+   {
+      public int           index;
+      public float         radius;
+      public Point2D.Float center;
+      public float         epidermisY;
+
+      // Random numbers, keyed by photon.
+      public CounterRandom      random;
+      public NormalDistribution scatterer;
+
+      // Photon counters of this source by detector array.
+      public int[][] photonCounts;
+
+      // Scanner movement since start of scan.
+      public float scanOffset;
+
+      // Layers from the deepest upward, followed by the air above the skin.
+      // Layer i occupies (layerBottom[i], layerTop[i]].
+      public int      numLayers;
+      public float[]  layerBottom;
+      public float[]  layerTop;
+      public float[]  layerAbsorptionProbability;
+      public float[]  layerScatterProbability;
+      public double[] layerScatterAngleZeroMean;
+      public double[] layerScatterAngleSigma;
+
+      // Photon: in flight, position, trace of positions (null if not
+      // kept, see photonTraces), direction and layer.
+      public boolean                  photonActive;
+      public float                    photonX;
+      public float                    photonY;
+      public ArrayList<Point2D.Float> photonTrace;
+      public double                   photonAngle;
+      public Point2D.Float            photonDirection;
+      public int                      photonLayer;
+
+      // Photon weight: counts added on detection after surviving roulette.
+      public int photonWeight;
+
+      // Detector array and photon counter index of last completed photon (-1 if not detected).
+      public int detectedDetector;
+      public int detectedCounter;
+
+      // Photon touched a nevus, and fate of last completed photon (see PhotonLog).
+      public boolean photonTouchedNevus;
+      public int     photonFate;
+
+      // Numbers of this scan's photons matching the photon log, if any.
+      public long[] loggedPhotons;
+      public int    numLoggedPhotons;
+
+      // Throughput.
+      public long photonsEmitted;
+      public long photonSteps;
+      public long transportNanos;
+
+      // Photon events by region: layers from the deepest upward, the air
+      // above the skin (index numLayers), then nevi (nevusRegion).
+      public int    nevusRegion;
+      public long[] regionAbsorptions;
+      public long[] regionScatters;
+      public long[] regionExits;
+      public long[] regionDetections;
+
+      // Fluence and absorption grids of this source (null if no fluence map).
+      public float[] fluence;
+      public float[] absorption;
+
+      // Additional wavelengths (see Wavelength). A photon walk carries a
+      // weight per wavelength, relative to the reference wavelength's
+      // walk, multiplied on surviving each absorption test by the ratio of
+      // survival probabilities in the region (wavelengthSurvival, indexed
+      // by (region * numWavelengths) + wavelength), so each wavelength's
+      // expected counts are unbiased at the cost of one walk. Ratios above
+      // 1, where a wavelength absorbs less than the reference, grow weights
+      // and variance (see checkWavelengths). Counts by
+      // wavelength, then (detector array * NUM_PHOTON_COUNTERS) + counter.
+      public int        numWavelengths;
+      public double[]   wavelengthSurvival;
+      public double[]   photonWavelengthWeights;
+      public double[][] wavelengthCounts;
+
+      // Constructors.
+      public PhotonSource()
+      {
+         this(new PhotonSourceGeometry(PHOTON_SOURCE_X, PHOTON_SOURCE_RADIUS), 0);
+      }
+
+
+      // Worker for part of a source's photons, with its own counters
+      // and the source's random number key.
+      public PhotonSource(PhotonSource source)
+      {
+         this(new PhotonSourceGeometry(source.center.x - source.radius, source.radius), source.index);
+         center       = source.center;
+         photonCounts = new int[photonDetectorArray.length][NUM_PHOTON_COUNTERS];
+         random.setKey(source.random);
+      }
+
+
+      public PhotonSource(PhotonSourceGeometry geometry, int index)
+      {
+         this.index = index;
+         radius     = geometry.radius;
+         float cx = geometry.x + radius;
+         float cy = radius + getSkinThickness();
+
+         center          = new Point2D.Float(cx, cy);
+         epidermisY      = getSkinThickness();
+         photonDirection = new Point2D.Float();
+         random          = new CounterRandom(new Random().nextLong(), 0, index);
+         scatterer       = new NormalDistribution(0.0, 0.0, random);
+         photonCounts    = new int[photonDetectorArray.length][];
+         for (int i = 0; i < photonCounts.length; i++)
+         {
+            photonCounts[i] = SkinSeerSim.this.photonCounts[(index * photonDetectorArray.length) + i];
+         }
+
+         // Build layer table.
+         ArrayList<SkinLayer> layers = getLayers();
+         numLayers                  = layers.size();
+         layerBottom                = new float[numLayers + 1];
+         layerTop                   = new float[numLayers + 1];
+         layerAbsorptionProbability = new float[numLayers];
+         layerScatterProbability    = new float[numLayers];
+         layerScatterAngleZeroMean  = new double[numLayers];
+         layerScatterAngleSigma     = new double[numLayers];
+         float y = 0.0f;
+         for (int i = 0; i < numLayers; i++)
+         {
+            SkinLayer layer = layers.get(numLayers - 1 - i);
+            layerBottom[i] = y;
+            y += layer.thickness;
+            layerTop[i] = y;
+            layerAbsorptionProbability[i] = layer.photonAbsorptionProbability;
+            layerScatterProbability[i]    = layer.photonScatterProbability;
+            layerScatterAngleZeroMean[i]  = layer.photonScatterAngleZeroMean;
+            layerScatterAngleSigma[i]     = layer.photonScatterAngleSigma;
+         }
+         layerBottom[0]         = -Float.MAX_VALUE;
+         layerBottom[numLayers] = y;
+         layerTop[numLayers]    = Float.MAX_VALUE;
+         nevusRegion            = numLayers + 1;
+         regionAbsorptions      = new long[numLayers + 2];
+         regionScatters         = new long[numLayers + 2];
+         regionExits            = new long[numLayers + 2];
+         regionDetections       = new long[numLayers + 2];
+         setFluenceGrids();
+
+         // Build wavelength survival ratio table.
+         numWavelengths          = WAVELENGTHS.size();
+         wavelengthSurvival      = new double[(numLayers + 2) * numWavelengths];
+         photonWavelengthWeights = new double[numWavelengths];
+         wavelengthCounts        = new double[numWavelengths][photonDetectorArray.length * NUM_PHOTON_COUNTERS];
+         for (int k = 0; k < numWavelengths; k++)
+         {
+            Wavelength wavelength = WAVELENGTHS.get(k);
+            for (int i = 0; i < numLayers; i++)
+            {
+               float reference = layerAbsorptionProbability[i];
+               wavelengthSurvival[(i * numWavelengths) + k] =
+                  Wavelength.survivalRatio(wavelength.getLayerAbsorptionProbability(numLayers - 1 - i, reference),
+                                           reference);
+            }
+            wavelengthSurvival[(nevusRegion * numWavelengths) + k] =
+               Wavelength.survivalRatio(wavelength.getNevusAbsorptionProbability(NEVUS_PHOTON_ABSORPTION_PROBABILITY),
+                                        NEVUS_PHOTON_ABSORPTION_PROBABILITY);
+         }
+      }
+
+
+      // Create fluence and absorption grids for the fluence map, if any.
+      void setFluenceGrids()
+      {
+         if (fluenceMap != null)
+         {
+            fluence    = fluenceMap.newGrid();
+            absorption = fluenceMap.newGrid();
+         }
+         else
+         {
+            fluence    = null;
+            absorption = null;
+         }
+      }
+
+
+      // Tally absorbed photon.
+      void tallyAbsorption(float x, float y)
+      {
+         if (fluenceMap.contains(x, y))
+         {
+            absorption[fluenceMap.cell(x, y)] += (float)photonWeight;
+         }
+      }
+
+
+      // Attenuate wavelength weights at offset of photon surviving an
+      // absorption test in region.
+      void attenuateWavelengths(int region, double[] weights, int offset)
+      {
+         int r = region * numWavelengths;
+
+         for (int k = 0; k < numWavelengths; k++)
+         {
+            weights[offset + k] *= wavelengthSurvival[r + k];
+         }
+      }
+
+
+      // Count wavelength weights at offset of photon detected by counter
+      // of detector array, with photon weight.
+      void countWavelengths(int detector, int counter, int weight, double[] weights, int offset)
+      {
+         int c = (detector * NUM_PHOTON_COUNTERS) + counter;
+
+         for (int k = 0; k < numWavelengths; k++)
+         {
+            wavelengthCounts[k][c] += (double)weight * weights[offset + k];
+         }
+      }
+
+
+      // Find layer containing height, searching from given layer.
+      int findLayer(float y, int layer)
+      {
+         while (y <= layerBottom[layer])
+         {
+            layer--;
+         }
+         while (y > layerTop[layer])
+         {
+            layer++;
+         }
+         return(layer);
+      }
+
+
+      // Clear.
+      public void clearPhoton()
+      {
+         photonTrace  = null;
+         photonActive = false;
+      }
+
+
+      // Update.
+      // Return false when photon track completed.
+      public boolean updatePhoton()
+      {
+         if (!photonActive)
+         {
+            random.setPhoton(photonsEmitted);
+            photonAngle     = (random.nextDouble() * (PHOTON_MAX_EMISSION_ANGLE - PHOTON_MIN_EMISSION_ANGLE)) +
+                              PHOTON_MIN_EMISSION_ANGLE;
+            photonDirection.x = (float)Math.cos(toRadians(photonAngle));
+            photonDirection.y = (float)Math.sin(toRadians(photonAngle));
+            detectedDetector   = -1;
+            detectedCounter    = -1;
+            photonWeight       = 1;
+            photonTouchedNevus = false;
+            if (numWavelengths > 0)
+            {
+               Arrays.fill(photonWavelengthWeights, 1.0);
+            }
+            photonsEmitted++;
+            photonX      = center.x + (photonDirection.x * PHOTON_RADIUS);
+            photonY      = center.y + (photonDirection.y * PHOTON_RADIUS);
+            photonLayer  = findLayer(photonY, numLayers);
+            photonActive = true;
+            if (photonTraces)
+            {
+               photonTrace = new ArrayList<Point2D.Float>();
+               photonTrace.add(new Point2D.Float(photonX, photonY));
+            }
+            else
+            {
+               photonTrace = null;
+            }
+            if ((eventMask & SkinSeerSimEvent.PHOTON_EMITTED) != 0)
+            {
+               postEvent(SkinSeerSimEvent.PHOTON_EMITTED, photonX, photonY);
+            }
+            return(true);
+         }
+         else
+         {
+            float x1 = photonX;
+            float y1 = photonY;
+            photonSteps++;
+            Nevus hit = null;
+            if (nevusIndex != null)
+            {
+               hit = nevusIndex.find(x1 - scanOffset, y1);
+            }
+            if (hit != null)
+            {
+               photonTouchedNevus = true;
+               if (random.nextDouble() < NEVUS_PHOTON_ABSORPTION_PROBABILITY)
+               {
+                  if ((eventMask & SkinSeerSimEvent.PHOTON_ABSORBED) != 0)
+                  {
+                     postEvent(SkinSeerSimEvent.PHOTON_ABSORBED, x1, y1);
+                  }
+                  if (absorption != null)
+                  {
+                     tallyAbsorption(x1, y1);
+                  }
+                  regionAbsorptions[nevusRegion]++;
+                  endPhoton(PhotonLog.ABSORBED, x1, y1);
+                  return(false);
+               }
+               if (numWavelengths > 0)
+               {
+                  attenuateWavelengths(nevusRegion, photonWavelengthWeights, 0);
+               }
+               if (random.nextDouble() < NEVUS_PHOTON_SCATTER_PROBABILITY)
+               {
+                  regionScatters[nevusRegion]++;
+                  photonAngle += scatterAngle(NEVUS_PHOTON_SCATTER_ANGLE_ZERO_MEAN,
+                                              NEVUS_PHOTON_SCATTER_ANGLE_SIGMA);
+                  photonDirection.x = (float)Math.cos(toRadians(photonAngle));
+                  photonDirection.y = (float)Math.sin(toRadians(photonAngle));
+                  if ((eventMask & SkinSeerSimEvent.PHOTON_SCATTERED) != 0)
+                  {
+                     postEvent(SkinSeerSimEvent.PHOTON_SCATTERED, x1, y1);
+                  }
+               }
+            }
+            else
+            {
+               if ((x1 >= 0) && (x1 < (float)SCANNER_WIDTH))
+               {
+                  int layer = photonLayer;
+                  if ((y1 <= layerBottom[layer]) || (y1 > layerTop[layer]))
+                  {
+                     layer       = findLayer(y1, layer);
+                     photonLayer = layer;
+                  }
+                  if (layer < numLayers)
+                  {
+                     if (random.nextDouble() < layerAbsorptionProbability[layer])
+                     {
+                        if ((eventMask & SkinSeerSimEvent.PHOTON_ABSORBED) != 0)
+                        {
+                           postEvent(SkinSeerSimEvent.PHOTON_ABSORBED, x1, y1);
+                        }
+                        if (absorption != null)
+                        {
+                           tallyAbsorption(x1, y1);
+                        }
+                        regionAbsorptions[layer]++;
+                        endPhoton(PhotonLog.ABSORBED, x1, y1);
+                        return(false);
+                     }
+                     if (numWavelengths > 0)
+                     {
+                        attenuateWavelengths(layer, photonWavelengthWeights, 0);
+                     }
+                     if (random.nextDouble() < layerScatterProbability[layer])
+                     {
+                        regionScatters[layer]++;
+                        photonAngle += scatterAngle(layerScatterAngleZeroMean[layer],
+                                                    layerScatterAngleSigma[layer]);
+                        photonDirection.x = (float)Math.cos(toRadians(photonAngle));
+                        photonDirection.y = (float)Math.sin(toRadians(photonAngle));
+                        if ((eventMask & SkinSeerSimEvent.PHOTON_SCATTERED) != 0)
+                        {
+                           postEvent(SkinSeerSimEvent.PHOTON_SCATTERED, x1, y1);
+                        }
+                     }
+                  }
+               }
+            }
+            float x2 = x1 + (photonDirection.x * PHOTON_SPEED);
+            float y2 = y1 + (photonDirection.y * PHOTON_SPEED);
+            if ((x2 < 0.0f) || (x2 >= (float)SCANNER_WIDTH) ||
+                (y2 < 0.0f) || (y2 >= (float)SCANNER_HEIGHT))
+            {
+               if ((eventMask & SkinSeerSimEvent.PHOTON_EXITED) != 0)
+               {
+                  postEvent(SkinSeerSimEvent.PHOTON_EXITED, x2, y2);
+               }
+               regionExits[photonLayer]++;
+               endPhoton(PhotonLog.EXITED, x2, y2);
+               return(false);
+            }
+            if ((y2 > epidermisY) && (photonDirection.y > 0.0f))
+            {
+               // Detect photon.
+               for (int i = 0; i < photonDetectorArray.length; i++)
+               {
+                  int counter = photonDetectorArray[i].counterIndex(x2);
+                  if (counter != -1)
+                  {
+                     photonCounts[i][counter] += photonWeight;
+                     if (numWavelengths > 0)
+                     {
+                        countWavelengths(i, counter, photonWeight, photonWavelengthWeights, 0);
+                     }
+                     detectedDetector = i;
+                     detectedCounter  = counter;
+                     regionDetections[photonLayer]++;
+                     if ((eventMask & SkinSeerSimEvent.PHOTON_DETECTED) != 0)
+                     {
+                        SkinSeerSim.this.postEvent(SkinSeerSimEvent.PHOTON_DETECTED, index, photonsEmitted - 1,
+                                                   x2, y2, photonAngle, i, counter);
+                     }
+                     endPhoton(PhotonLog.DETECTED, x2, y2);
+                     return(false);
+                  }
+               }
+            }
+            photonX = x2;
+            photonY = y2;
+            if (photonTrace != null)
+            {
+               photonTrace.add(new Point2D.Float(x2, y2));
+            }
+            if (fluence != null)
+            {
+               fluence[fluenceMap.cell(x2, y2)] += (float)photonWeight;
+            }
+
+            // Russian roulette where detection is unlikely.
+            if ((reachabilityMap != null) && (photonWeight == 1) &&
+                (reachabilityMap.reachability(x2, y2, photonAngle) < rouletteThreshold))
+            {
+               if (random.nextDouble() >= 1.0 / (double)rouletteWeight)
+               {
+                  if ((eventMask & SkinSeerSimEvent.PHOTON_TERMINATED) != 0)
+                  {
+                     postEvent(SkinSeerSimEvent.PHOTON_TERMINATED, x2, y2);
+                  }
+                  endPhoton(PhotonLog.TERMINATED, x2, y2);
+                  return(false);
+               }
+               photonWeight = rouletteWeight;
+            }
+            return(true);
+         }
+      }
+
+
+      // End photon with fate at position, logging it if it matches the photon log.
+      void endPhoton(int fate, float x, float y)
+      {
+         photonFate = fate;
+         photonX    = x;
+         photonY    = y;
+         if (photonLog != null)
+         {
+            logPhoton(photonsEmitted - 1, fate, detectedDetector, detectedCounter, photonTouchedNevus);
+         }
+         clearPhoton();
+      }
+
+
+      // Log completed photon if it matches the photon log.
+      void logPhoton(long photon, int fate, int detector, int counter, boolean touchedNevus)
+      {
+         if (photonLog.matches(fate, detector, counter, touchedNevus))
+         {
+            addLoggedPhoton(photon);
+         }
+      }
+
+
+      // Add logged photon number.
+      void addLoggedPhoton(long photon)
+      {
+         if (loggedPhotons == null)
+         {
+            loggedPhotons = new long[16];
+         }
+         else if (numLoggedPhotons == loggedPhotons.length)
+         {
+            loggedPhotons = Arrays.copyOf(loggedPhotons, numLoggedPhotons * 2);
+         }
+         loggedPhotons[numLoggedPhotons++] = photon;
+      }
+
+
+      // Post photon event at position.
+      void postEvent(int type, float x, float y)
+      {
+         SkinSeerSim.this.postEvent(type, index, photonsEmitted - 1, x, y, photonAngle, -1, -1);
+      }
+
+
+      // Get scatter angle.
+      public double scatterAngle(double mean, double sigma)
+      {
+         scatterer.setMean(mean);
+         scatterer.setSigma(sigma);
+         return(scatterer.nextValue() - mean);
+      }
+
+
+      // Convert degrees to radians.
+      double toRadians(double angle)
+      {
+         return(angle * (Math.PI / 180.0));
+      }
+
+
+      // Euclidean distance.
+      float dist(Point2D.Float p1, Point2D.Float p2)
+      {
+         return((float)Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2)));
+      }
+   }
+
+   // Photon detector.
+   public class PhotonDetector
+   {
+      public int   index;
+      public int[] photonCounters;
+      public float epidermisY;
+      public float x;
+      public float counterWidth;
+      public float width;
+
+      // Detection range.
+      float startX;
+      float endX;
+
+      // Constructors.
+      public PhotonDetector()
+      {
+         this(new PhotonDetectorGeometry(PHOTON_DETECTOR_X, PHOTON_DETECTOR_WIDTH), 0);
+      }
+
+
+      public PhotonDetector(PhotonDetectorGeometry geometry, int index)
+      {
+         this.index     = index;
+         photonCounters = new int[NUM_PHOTON_COUNTERS];
+         epidermisY     = getSkinThickness();
+         x            = geometry.x;
+         counterWidth = geometry.counterWidth;
+         width        = counterWidth * (float)SkinSeerSim.NUM_PHOTON_COUNTERS;
+         startX       = counterX(0);
+         endX         = counterX(NUM_PHOTON_COUNTERS - 1) + counterWidth;
+      }
+
+
+      // Left edge of photon counter.
+      public float counterX(int counter)
+      {
+         return((int)(x + (counterWidth * (float)counter)));
+      }
+
+
+      // Reset.
+      public void reset()
+      {
+         for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
+         {
+            photonCounters[i] = 0;
+         }
+      }
+
+
+      // Detect photon.
       public int detect(Point2D.Float photon)
       {
-         for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
+         int i = counterIndex(photon.x);
+
+         if (i != -1)
+         {
+            photonCounters[i]++;
+         }
+         return(i);
+      }
+
+
+      // Get index of photon counter at position, or -1.
+      // Counter edges are truncated to whole units, so the lowest
+      // counter whose range holds the position is the first or second
+      // candidate from the untruncated division.
+      public int counterIndex(float photonX)
+      {
+         if ((photonX < startX) || (photonX >= endX))
+         {
+            return(-1);
+         }
+         if (counterWidth < 1.0f)
+         {
+            for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
+            {
+               float x2 = counterX(i);
+               if ((photonX >= x2) && (photonX < (x2 + counterWidth)))
+               {
+                  return(i);
+               }
+            }
+            return(-1);
+         }
+         int i = (int)((photonX - x) / counterWidth);
+         for (int j = i; j <= i + 1 && j < NUM_PHOTON_COUNTERS; j++)
+         {
+            float x2 = counterX(j);
+            if ((photonX >= x2) && (photonX < (x2 + counterWidth)))
+            {
+               return(j);
+            }
+         }
+         return(-1);
+      }
+
+
+      // Print photon counts.
+      public void printCounts(String photonDetectorCountsFilename)
+      {
+         PrintWriter writer = openCountsWriter(photonDetectorCountsFilename);
+
+         printCounts(writer, isCsv(photonDetectorCountsFilename));
+         writer.flush();
+         if (photonDetectorCountsFilename != null)
+         {
+            writer.close();
+         }
+      }
+
+
+      // Print photon counts to writer.
+      public void printCounts(PrintWriter writer, boolean csv)
+      {
+         if (csv)
+         {
+            for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
+            {
+               writer.print(photonCounters[i] + "");
+               if (i < NUM_PHOTON_COUNTERS - 1)
+               {
+                  writer.print(",");
+               }
+               else
+               {
+                  writer.println();
+               }
+            }
+         }
+         else
+         {
+            writer.println("Photon counts:");
+            for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
+            {
+               writer.println(i + ": " + photonCounters[i]);
+            }
+         }
+      }
+   }
+
+   // Open photon detector counts file, otherwise standard output.
+   static PrintWriter openCountsWriter(String photonDetectorCountsFilename)
+   {
+      PrintWriter writer = new PrintWriter(System.out);
+
+      if (photonDetectorCountsFilename != null)
+      {
+         FileOutputStream file = null;
+         try
+         {
+            file = new FileOutputStream(new File(photonDetectorCountsFilename));
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot open photon detector counts file " + photonDetectorCountsFilename + ":" + e.getMessage());
+         }
+         writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(file)));
+      }
+      return(writer);
+   }
+
+
+   // Open writer to file, or standard output if null.
+   // Exits if the file cannot be opened.
+   static PrintWriter openWriter(String filename, String description)
+   {
+      if (filename == null)
+      {
+         return(new PrintWriter(System.out));
+      }
+      try
+      {
+         return(new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename)))));
+      }
+      catch (IOException e)
+      {
+         System.err.println("Cannot open " + description + " file " + filename + ":" + e.getMessage());
+         System.exit(1);
+      }
+      return(null);
+   }
+
+
+   // Photon detector counts file is CSV?
+   static boolean isCsv(String photonDetectorCountsFilename)
+   {
+      if (photonDetectorCountsFilename == null)
+      {
+         return(false);
+      }
+      String extension = "";
+      int    i         = photonDetectorCountsFilename.lastIndexOf('.');
+      if (i > 0)
+      {
+         extension = photonDetectorCountsFilename.substring(i + 1);
+      }
+      return(extension.equals("csv"));
+   }
+
+
+   // Nevus.
+   public class Nevus
+   {
+      // Shape at current scanner position.
+      public Ellipse2D.Float shape;
+
+      // Shape at scan start, spanning downward from its top.
+      public Ellipse2D.Float bounds;
+
+      // Constructors.
+      public Nevus()
+      {
+         this(new NevusGeometry(NEVUS_X, NEVUS_WIDTH, NEVUS_HEIGHT, NEVUS_EPIDERMIS_DEPTH));
+      }
+
+
+      public Nevus(NevusGeometry geometry)
+      {
+         shape  = new Ellipse2D.Float();
+         bounds = new Ellipse2D.Float();
+         set(geometry.x, geometry.width, geometry.height, geometry.epidermisDepth);
+      }
+
+
+      // Set geometry at scan start.
+      public void set(float x, float width, float height, float epidermisDepth)
+      {
+         float epidermisY = getSkinThickness();
+
+         shape.setFrame(x, epidermisY - epidermisDepth, width, height);
+         bounds.setFrame(x, shape.y - height, width, height);
+      }
+
+
+      // Contains point given in scan start coordinates?
+      public boolean contains(float x, float y)
+      {
+         return(bounds.intersects(x - PHOTON_RADIUS, y - PHOTON_RADIUS,
+                                  PHOTON_RADIUS * 2.0f, PHOTON_RADIUS * 2.0f));
+      }
+
+
+      // Reset.
+      public void reset()
+      {
+         shape.x = bounds.x;
+      }
+   }
+
+   // Components.
+   public ArrayList<PhotonSource>   photonSources;
+   public ArrayList<PhotonDetector> photonDetectors;
+   public ArrayList<Nevus>          nevi;
+   public NevusIndex                nevusIndex;
+
+   // Nevi not in use, and the scanner position nevus when there are
+   // none, kept for reconfiguring nevi in place.
+   ArrayList<Nevus> spareNevi;
+   Nevus            positionNevus;
+
+   // First photon source and detector array.
+   public PhotonSource   photonSource;
+   public PhotonDetector photonDetector;
+
+   // Detector arrays, and photon counters by source and detector array:
+   // row (source * detector arrays) + detector array.
+   // With a single source the rows are the detector arrays' own counters.
+   public PhotonDetector[] photonDetectorArray;
+   public int[][]          photonCounts;
+
+   // Leftmost nevus, tracking the scanner position even when there are no nevi.
+   public Nevus nevus;
+
+   // Russian roulette of photons in map bins with reachability below
+   // threshold: survivors get the roulette weight (see ReachabilityMap).
+   public static final int DEFAULT_ROULETTE_WEIGHT = 10;
+   public ReachabilityMap  reachabilityMap         = null;
+   public float            rouletteThreshold       = 0.0f;
+   public int              rouletteWeight          = DEFAULT_ROULETTE_WEIGHT;
+
+   // Photon transport engines by name (see TransportEngine), and the
+   // engine for run().
+   public static final String SCALAR_ENGINE = "scalar";
+   public static final String LANES_ENGINE  = "lanes";
+   public static final String VECTOR_ENGINE = "vector";
+   static LinkedHashMap<String, TransportEngine> engines = new LinkedHashMap<String, TransportEngine>();
+   static
+   {
+      registerEngine(new ScalarTransportEngine());
+      registerEngine(new LanesTransportEngine(LANES_ENGINE, false));
+      registerEngine(new LanesTransportEngine(VECTOR_ENGINE, true));
+   }
+   public TransportEngine engine = getEngine(SCALAR_ENGINE);
+
+   // Photon transport threads per source for run().
+   public int threads = 1;
+
+   // Keep photon traces for display? Without them photon steps
+   // allocate nothing.
+   public boolean photonTraces = true;
+
+   // Photon fluence and absorption map (null for none), and photons
+   // emitted by the sources when last reduced into it.
+   public FluenceMap fluenceMap     = null;
+   long              fluencePhotons = 0;
+
+   // Log of photons matching a predicate (null for none).
+   public PhotonLog photonLog = null;
+
+   // Client status notification.
+   public SkinSeerSimNotifier notifier;
+
+   // Event listener batches and the union of their event masks.
+   // Event posting is skipped entirely when the mask has no listener bit.
+   public static final int   DEFAULT_EVENT_BATCH_SIZE   = 1000;
+   public static final long  DEFAULT_EVENT_BATCH_MILLIS = 100;
+   ArrayList<EventBatch>     eventBatches               = new ArrayList<EventBatch>();
+   public int                eventMask                  = 0;
+
+   // Listener event batch.
+   static class EventBatch
+   {
+      SkinSeerSimListener listener;
+      int                 mask;
+      SkinSeerSimEvent[]  events;
+      int                 count;
+      long                maxNanos;
+      long                lastDelivery;
+
+      EventBatch(SkinSeerSimListener listener, int maxEvents, long maxMillis)
+      {
+         this.listener = listener;
+         mask          = listener.eventMask();
+         events        = new SkinSeerSimEvent[maxEvents];
+         for (int i = 0; i < maxEvents; i++)
+         {
+            events[i] = new SkinSeerSimEvent();
+         }
+         count        = 0;
+         maxNanos     = maxMillis * 1000000L;
+         lastDelivery = System.nanoTime();
+      }
+   }
+
+   // Constructors.
+   public SkinSeerSim()
+   {
+      // Create components.
+      createPhotonComponents();
+      createNevi();
+      notifier = null;
+   }
+
+
+   public SkinSeerSim(SkinSeerSimNotifier notifier)
+   {
+      // Create components.
+      createPhotonComponents();
+      createNevi();
+      this.notifier = notifier;
+   }
+
+
+   // Create photon detector arrays, counters and sources.
+   void createPhotonComponents()
+   {
+      ArrayList<PhotonDetectorGeometry> detectors = getPhotonDetectors();
+      ArrayList<PhotonSourceGeometry>   sources   = getPhotonSources();
+
+      photonDetectors     = new ArrayList<PhotonDetector>();
+      photonDetectorArray = new PhotonDetector[detectors.size()];
+      for (int i = 0; i < detectors.size(); i++)
+      {
+         photonDetectorArray[i] = new PhotonDetector(detectors.get(i), i);
+         photonDetectors.add(photonDetectorArray[i]);
+      }
+      photonDetector = photonDetectorArray[0];
+      photonCounts   = new int[sources.size() * detectors.size()][];
+      for (int i = 0; i < photonCounts.length; i++)
+      {
+         if (sources.size() == 1)
+         {
+            photonCounts[i] = photonDetectorArray[i].photonCounters;
+         }
+         else
+         {
+            photonCounts[i] = new int[NUM_PHOTON_COUNTERS];
+         }
+      }
+      photonSources = new ArrayList<PhotonSource>();
+      for (int i = 0; i < sources.size(); i++)
+      {
+         photonSources.add(new PhotonSource(sources.get(i), i));
+      }
+      photonSource = photonSources.get(0);
+   }
+
+
+   // Sum photon counters over sources into detector array counters.
+   // Done by run(); after step() only when there is a notifier.
+   public void sumPhotonCounts()
+   {
+      if (photonSources.size() == 1)
+      {
+         return;
+      }
+      for (int i = 0; i < photonDetectorArray.length; i++)
+      {
+         int[] photonCounters = photonDetectorArray[i].photonCounters;
+         for (int j = 0; j < NUM_PHOTON_COUNTERS; j++)
+         {
+            photonCounters[j] = 0;
+         }
+         for (int k = 0; k < photonSources.size(); k++)
+         {
+            int[] counts = photonCounts[(k * photonDetectorArray.length) + i];
+            for (int j = 0; j < NUM_PHOTON_COUNTERS; j++)
+            {
+               photonCounters[j] += counts[j];
+            }
+         }
+      }
+   }
+
+
+   // Create nevi and their index.
+   void createNevi()
+   {
+      nevi          = new ArrayList<Nevus>();
+      spareNevi     = new ArrayList<Nevus>();
+      positionNevus = null;
+      nevusIndex    = null;
+      configureNevi();
+   }
+
+
+   // Configure nevi and their index from the current nevus parameters
+   // (see getNevi), reusing nevus objects and the index.
+   public void configureNevi()
+   {
+      int n = 0;
+      if (NEVUS_VALID)
+      {
+         n = (NEVI.size() > 0) ? NEVI.size() : 1;
+      }
+      while (nevi.size() > n)
+      {
+         spareNevi.add(nevi.remove(nevi.size() - 1));
+      }
+      while (nevi.size() < n)
+      {
+         nevi.add((spareNevi.size() > 0) ? spareNevi.remove(spareNevi.size() - 1) : new Nevus());
+      }
+      nevus = null;
+      for (int i = 0; i < n; i++)
+      {
+         Nevus nv = nevi.get(i);
+         if (NEVI.size() > 0)
+         {
+            NevusGeometry geometry = NEVI.get(i);
+            nv.set(geometry.x, geometry.width, geometry.height, geometry.epidermisDepth);
+         }
+         else
+         {
+            nv.set(NEVUS_X, NEVUS_WIDTH, NEVUS_HEIGHT, NEVUS_EPIDERMIS_DEPTH);
+         }
+         if ((nevus == null) || (nv.shape.x < nevus.shape.x))
+         {
+            nevus = nv;
+         }
+      }
+      if (nevus == null)
+      {
+         if (positionNevus == null)
+         {
+            positionNevus = new Nevus();
+         }
+         positionNevus.set(NEVUS_X, NEVUS_WIDTH, NEVUS_HEIGHT, NEVUS_EPIDERMIS_DEPTH);
+         nevus      = positionNevus;
+         nevusIndex = null;
+      }
+      else if (nevusIndex == null)
+      {
+         nevusIndex = new NevusIndex(nevi);
+      }
+      else
+      {
+         nevusIndex.build(nevi);
+      }
+   }
+
+
+   // Reset.
+   public void reset()
+   {
+      for (PhotonSource source : photonSources)
+      {
+         source.clearPhoton();
+         source.scanOffset       = 0.0f;
+         source.numLoggedPhotons = 0;
+         for (double[] counts : source.wavelengthCounts)
+         {
+            Arrays.fill(counts, 0.0);
+         }
+      }
+      for (int[] counts : photonCounts)
+      {
+         for (int i = 0; i < NUM_PHOTON_COUNTERS; i++)
+         {
+            counts[i] = 0;
+         }
+      }
+      for (PhotonDetector detector : photonDetectors)
+      {
+         detector.reset();
+      }
+      for (Nevus n : nevi)
+      {
+         n.reset();
+      }
+      nevus.reset();
+      if (fluenceMap != null)
+      {
+         setFluenceMap(fluenceMap);
+         fluenceMap.clear();
+      }
+   }
+
+
+   // Reset for a new scan of the current nevus parameters, reusing the
+   // scanner's components: nevi are reconfigured in place, and photon
+   // numbering and counters restart, so the scan matches a new scanner's.
+   public void resetScan()
+   {
+      configureNevi();
+      reset();
+      for (PhotonSource source : photonSources)
+      {
+         source.photonsEmitted = 0;
+         source.photonSteps    = 0;
+         source.transportNanos = 0;
+         Arrays.fill(source.regionAbsorptions, 0);
+         Arrays.fill(source.regionScatters, 0);
+         Arrays.fill(source.regionExits, 0);
+         Arrays.fill(source.regionDetections, 0);
+      }
+   }
+
+
+   // Set random seed and sample.
+   // Photon random numbers are keyed by seed, sample, photon source and
+   // photon number, so they do not depend on how photons are scheduled.
+   public void setRandomSeed(long seed, long sample)
+   {
+      for (PhotonSource source : photonSources)
+      {
+         source.random.setSeed(seed);
+         source.random.setSample(sample);
+      }
+   }
+
+
+   public void setRandomSeed(long seed)
+   {
+      setRandomSeed(seed, 0);
+   }
+
+
+   // Step.
+   // Return false if nevus out of photon range.
+   public boolean step()
+   {
+      // Nevus out of range?
+      if (!nevusInRange())
+      {
+         notifyClient();
+         return(false);
+      }
+
+      // Emit photons.
+      for (PhotonSource source : photonSources)
+      {
+         for (int i = 0; i < PHOTON_EMISSION_RATE; i++)
+         {
+            emitPhoton(source);
+         }
+      }
+
+      // Sum counters for the notifier only; other readers sum on demand.
+      if (notifier != null)
+      {
+         sumPhotonCounts();
+      }
+
+      // Move scanner.
+      moveScanner();
+      notifyClient();
+      return(true);
+   }
+
+
+   // Emit photon and follow it to completion.
+   // Return photon counter index if detected, else -1.
+   public int emitPhoton()
+   {
+      return(emitPhoton(photonSource));
+   }
+
+
+   public int emitPhoton(PhotonSource source)
+   {
+      while (source.updatePhoton())
+      {
+         notifyClient();
+      }
+      notifyClient();
+      return(source.detectedCounter);
+   }
+
+
+   // Run scan of up to given steps without client notification,
+   // simulating the photons of each source in parallel with the transport
+   // engine (see TransportEngine). With more than one thread, each
+   // source's photons are split into contiguous ranges transported by
+   // worker sources with their own counters, merged at the end. Photon
+   // random numbers are keyed by photon number, so counts do not depend
+   // on the number of threads.
+   // Return steps run.
+   public int run(int steps)
+   {
+      if ((photonSources.size() == 1) && engine.name().equals(SCALAR_ENGINE) && (threads == 1))
+      {
+         long start = threadTime();
+         int  i     = 0;
+         for ( ; i < steps && step(); i++) {}
+         photonSource.transportNanos += threadTime() - start;
+         if (fluenceMap != null)
+         {
+            reduceFluence();
+         }
+         if (eventMask != 0)
+         {
+            flushEvents();
+         }
+         return(i);
+      }
+
+      // Move nevi through the scan.
+      float startOffset = photonSource.scanOffset;
+      float moveOffset  = startOffset;
+      int   activeSteps = 0;
+      for ( ; activeSteps < steps && nevusInRange(); activeSteps++)
+      {
+         moveNevi();
+         if ((eventMask & SkinSeerSimEvent.SCANNER_MOVED) != 0)
+         {
+            moveOffset += SCANNER_SPEED;
+            postEvent(SkinSeerSimEvent.SCANNER_MOVED, -1, -1, moveOffset, 0.0f, 0.0, -1, -1);
+         }
+      }
+
+      // Split each source's photons over workers.
+      long photons = (long)activeSteps * (long)PHOTON_EMISSION_RATE;
+      ArrayList<PhotonSource> workers = new ArrayList<PhotonSource>();
+      ArrayList<Integer>      firsts  = new ArrayList<Integer>();
+      ArrayList<Long>         counts  = new ArrayList<Long>();
+      for (PhotonSource source : photonSources)
+      {
+         source.scanOffset = startOffset;
+         long  step   = 0;
+         float offset = startOffset;
+         for (int t = 0; t < threads; t++)
+         {
+            long first = (photons * t) / threads;
+            long last  = (photons * (t + 1)) / threads;
+            if (last == first)
+            {
+               continue;
+            }
+            PhotonSource worker = source;
+            if (threads > 1)
+            {
+               worker = new PhotonSource(source);
+               for ( ; step < first / PHOTON_EMISSION_RATE; step++)
+               {
+                  offset += SCANNER_SPEED;
+               }
+               worker.scanOffset     = offset;
+               worker.photonsEmitted = source.photonsEmitted + first;
+            }
+            workers.add(worker);
+            firsts.add((int)(first % PHOTON_EMISSION_RATE));
+            counts.add(last - first);
+         }
+      }
+
+      // Transport.
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers.size(), 1));
+      ArrayList<Future<?> > results = new ArrayList<Future<?> >();
+      for (int i = 0; i < workers.size(); i++)
+      {
+         final PhotonSource worker          = workers.get(i);
+         final int          firstStepPhoton = firsts.get(i);
+         final long         count           = counts.get(i);
+         results.add(executor.submit(new Runnable()
+                                     {
+                                        public void run()
+                                        {
+                                           long start = threadTime();
+                                           engine.transport(SkinSeerSim.this, worker, firstStepPhoton, count);
+                                           worker.transportNanos += threadTime() - start;
+                                        }
+                                     }
+                                     ));
+      }
+      try
+      {
+         for (Future<?> result : results)
+         {
+            result.get();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e)
+      {
+         throw new RuntimeException(e.getCause());
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+
+      // Merge workers.
+      for (PhotonSource worker : workers)
+      {
+         PhotonSource source = photonSources.get(worker.index);
+         if (worker != source)
+         {
+            for (int i = 0; i < photonDetectorArray.length; i++)
+            {
+               for (int j = 0; j < NUM_PHOTON_COUNTERS; j++)
+               {
+                  source.photonCounts[i][j] += worker.photonCounts[i][j];
+               }
+            }
+            for (int k = 0; k < source.numWavelengths; k++)
+            {
+               for (int i = 0; i < source.wavelengthCounts[k].length; i++)
+               {
+                  source.wavelengthCounts[k][i] += worker.wavelengthCounts[k][i];
+               }
+            }
+            source.photonSteps    += worker.photonSteps;
+            source.transportNanos += worker.transportNanos;
+            for (int i = 0; i < worker.numLoggedPhotons; i++)
+            {
+               source.addLoggedPhoton(worker.loggedPhotons[i]);
+            }
+            for (int i = 0; i < source.regionExits.length; i++)
+            {
+               source.regionAbsorptions[i] += worker.regionAbsorptions[i];
+               source.regionScatters[i]    += worker.regionScatters[i];
+               source.regionExits[i]       += worker.regionExits[i];
+               source.regionDetections[i]  += worker.regionDetections[i];
+            }
+         }
+      }
+      for (PhotonSource source : photonSources)
+      {
+         if (threads > 1)
+         {
+            source.photonsEmitted += photons;
+         }
+         source.scanOffset = startOffset;
+         for (int i = 0; i < activeSteps; i++)
+         {
+            source.scanOffset += SCANNER_SPEED;
+         }
+         if (source.numLoggedPhotons > 1)
+         {
+            Arrays.sort(source.loggedPhotons, 0, source.numLoggedPhotons);
+         }
+      }
+      sumPhotonCounts();
+      if (fluenceMap != null)
+      {
+         reduceFluence(workers);
+      }
+      if (eventMask != 0)
+      {
+         flushEvents();
+      }
+      return(activeSteps);
+   }
+
+
+   // Set photon fluence and absorption map (null for none).
+   public void setFluenceMap(FluenceMap map)
+   {
+      fluenceMap     = map;
+      fluencePhotons = 0;
+      for (PhotonSource source : photonSources)
+      {
+         source.setFluenceGrids();
+         fluencePhotons += source.photonsEmitted;
+      }
+   }
+
+
+   // Reduce photon source fluence and absorption grids into the fluence map.
+   public void reduceFluence()
+   {
+      reduceFluence(new ArrayList<PhotonSource>());
+   }
+
+
+   // Reduce photon source and worker grids into the fluence map.
+   void reduceFluence(ArrayList<PhotonSource> workers)
+   {
+      ArrayList<float[]> fluenceGrids    = new ArrayList<float[]>();
+      ArrayList<float[]> absorptionGrids = new ArrayList<float[]>();
+      long               photons         = 0;
+
+      for (PhotonSource source : photonSources)
+      {
+         fluenceGrids.add(source.fluence);
+         absorptionGrids.add(source.absorption);
+         photons += source.photonsEmitted;
+      }
+      for (PhotonSource worker : workers)
+      {
+         if (worker != photonSources.get(worker.index))
+         {
+            fluenceGrids.add(worker.fluence);
+            absorptionGrids.add(worker.absorption);
+         }
+      }
+      fluenceMap.reduce(fluenceGrids, absorptionGrids, threads);
+      fluenceMap.photons += photons - fluencePhotons;
+      fluencePhotons      = photons;
+   }
+
+
+   // Register photon transport engine, replacing any of the same name.
+   public static synchronized void registerEngine(TransportEngine engine)
+   {
+      engines.put(engine.name(), engine);
+   }
+
+
+   // Photon transport engine of name, or null if none. A name that is
+   // not registered is tried as a TransportEngine class name, so engines
+   // can be added without changing the simulator.
+   public static synchronized TransportEngine getEngine(String name)
+   {
+      TransportEngine engine = engines.get(name);
+
+      if ((engine == null) && (name.indexOf('.') != -1))
+      {
+         try
+         {
+            engine = (TransportEngine)Class.forName(name).getConstructor().newInstance();
+            engines.put(name, engine);
+         }
+         catch (Throwable e)
+         {
+            return(null);
+         }
+      }
+      return(engine);
+   }
+
+
+   // Photons each source emits in a scan of up to the given steps from
+   // the start, which ends early once the nevus is out of photon range.
+   public long scanPhotons(int steps)
+   {
+      float x = nevus.bounds.x;
+      int   i = 0;
+
+      for ( ; i < steps && x < (float)SCANNER_WIDTH; i++)
+      {
+         x += SCANNER_SPEED;
+      }
+      return((long)i * (long)PHOTON_EMISSION_RATE);
+   }
+
+
+   // Replay a photon of a scan from its random number key, with a trace.
+   // The photon is re-run by a worker of its source, so the scanner's
+   // counters, fluence map and photon log are untouched.
+   public PhotonReplay replayPhoton(int sourceIndex, long photon)
+   {
+      PhotonSource source = photonSources.get(sourceIndex);
+      PhotonSource worker = new PhotonSource(source);
+
+      worker.scanOffset = 0.0f;
+      for (long step = photon / PHOTON_EMISSION_RATE; step > 0; step--)
+      {
+         worker.scanOffset += SCANNER_SPEED;
+      }
+      worker.photonsEmitted = photon;
+      worker.fluence        = null;
+      worker.absorption     = null;
+      worker.updatePhoton();
+      if (worker.photonTrace == null)
+      {
+         worker.photonTrace = new ArrayList<Point2D.Float>();
+         worker.photonTrace.add(new Point2D.Float(worker.photonX, worker.photonY));
+      }
+      PhotonReplay replay = new PhotonReplay();
+      replay.sample     = source.random.sample;
+      replay.source     = sourceIndex;
+      replay.photon     = photon;
+      replay.scanOffset = worker.scanOffset;
+      replay.trace      = worker.photonTrace;
+      while (worker.updatePhoton()) {}
+      replay.fate         = worker.photonFate;
+      replay.endX         = worker.photonX;
+      replay.endY         = worker.photonY;
+      replay.detector     = worker.detectedDetector;
+      replay.counter      = worker.detectedCounter;
+      replay.weight       = worker.photonWeight;
+      replay.steps        = worker.photonSteps;
+      replay.touchedNevus = worker.photonTouchedNevus;
+      return(replay);
+   }
+
+
+   // Current thread CPU time (ns), or elapsed time if not supported.
+   static long threadTime()
+   {
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+      if (threadBean.isCurrentThreadCpuTimeSupported())
+      {
+         return(threadBean.getCurrentThreadCpuTime());
+      }
+      return(System.nanoTime());
+   }
+
+
+   // Print photon detector counts of all arrays.
+   public void printCounts(String photonDetectorCountsFilename)
+   {
+      PrintWriter writer = openCountsWriter(photonDetectorCountsFilename);
+
+      sumPhotonCounts();
+      for (PhotonDetector detector : photonDetectors)
+      {
+         detector.printCounts(writer, isCsv(photonDetectorCountsFilename));
+      }
+      writer.flush();
+      if (photonDetectorCountsFilename != null)
+      {
+         writer.close();
+      }
+   }
+
+
+   // Expected photon counts of the additional wavelengths, summed over
+   // sources, by wavelength, then (detector array * NUM_PHOTON_COUNTERS) + counter.
+   public double[][] getWavelengthCounts()
+   {
+      double[][] counts = new double[WAVELENGTHS.size()][photonDetectorArray.length * NUM_PHOTON_COUNTERS];
+
+      for (PhotonSource source : photonSources)
+      {
+         for (int k = 0; k < source.numWavelengths; k++)
+         {
+            for (int i = 0; i < counts[k].length; i++)
+            {
+               counts[k][i] += source.wavelengthCounts[k][i];
+            }
+         }
+      }
+      return(counts);
+   }
+
+
+   // Print expected photon counts of the additional wavelengths as CSV
+   // rows: wavelength name, then counts of all arrays' counters.
+   public void printWavelengthCounts(String filename)
+   {
+      PrintWriter writer = openWriter(filename, "wavelength counts");
+      double[][]  counts = getWavelengthCounts();
+
+      for (int k = 0; k < counts.length; k++)
+      {
+         writer.print(WAVELENGTHS.get(k).name);
+         for (int i = 0; i < counts[k].length; i++)
+         {
+            writer.print("," + String.format("%.3f", counts[k][i]));
+         }
+         writer.println();
+      }
+      writer.flush();
+      if (filename != null)
+      {
+         writer.close();
+      }
+   }
+
+
+   // Print throughput of photon sources.
+   public void printThroughput()
+   {
+      System.out.println("Throughput (thread CPU time, " + photonSources.size() + " sources, " +
+                         photonDetectorArray.length + " detector arrays):");
+      for (PhotonSource source : photonSources)
+      {
+         double seconds = (double)source.transportNanos / 1.0e9;
+         System.out.print("source " + source.index + ": photons=" + source.photonsEmitted +
+                          ", steps=" + source.photonSteps + ", seconds=" + seconds);
+         if ((source.photonsEmitted > 0) && (source.transportNanos > 0))
+         {
+            System.out.print(", photons/second=" + (long)((double)source.photonsEmitted / seconds) +
+                             ", nanoseconds/photon=" + (source.transportNanos / source.photonsEmitted));
+         }
+         System.out.println();
+      }
+   }
+
+
+   // Nevus in photon range?
+   public boolean nevusInRange()
+   {
+      return(nevus.shape.x < (float)SCANNER_WIDTH);
+   }
+
+
+   // Move scanner.
+   public void moveScanner()
+   {
+      moveNevi();
+      for (PhotonSource source : photonSources)
+      {
+         source.scanOffset += SCANNER_SPEED;
+      }
+      if ((eventMask & SkinSeerSimEvent.SCANNER_MOVED) != 0)
+      {
+         postEvent(SkinSeerSimEvent.SCANNER_MOVED, -1, -1, photonSource.scanOffset, 0.0f, 0.0, -1, -1);
+      }
+   }
+
+
+   // Move nevi.
+   void moveNevi()
+   {
+      for (Nevus n : nevi)
+      {
+         n.shape.x += SCANNER_SPEED;
+      }
+      if (nevi.size() == 0)
+      {
+         nevus.shape.x += SCANNER_SPEED;
+      }
+   }
+
+
+   // Add event listener, delivering batches of up to maxEvents events,
+   // or fewer once maxMillis milliseconds have passed at the next event,
+   // and at the end of each run.
+   public synchronized void addListener(SkinSeerSimListener listener, int maxEvents, long maxMillis)
+   {
+      eventBatches.add(new EventBatch(listener, Math.max(maxEvents, 1), maxMillis));
+      updateEventMask();
+   }
+
+
+   public void addListener(SkinSeerSimListener listener)
+   {
+      addListener(listener, DEFAULT_EVENT_BATCH_SIZE, DEFAULT_EVENT_BATCH_MILLIS);
+   }
+
+
+   // Remove event listener, delivering its pending events.
+   public synchronized void removeListener(SkinSeerSimListener listener)
+   {
+      for (int i = 0; i < eventBatches.size(); i++)
+      {
+         EventBatch batch = eventBatches.get(i);
+         if (batch.listener == listener)
+         {
+            deliver(batch);
+            eventBatches.remove(i);
+            break;
+         }
+      }
+      updateEventMask();
+   }
+
+
+   void updateEventMask()
+   {
+      int mask = 0;
+
+      for (EventBatch batch : eventBatches)
+      {
+         mask |= batch.mask;
+      }
+      eventMask = mask;
+   }
+
+
+   // Post event to listeners wanting it.
+   synchronized void postEvent(int type, int source, long photon, float x, float y, double angle,
+                               int detector, int counter)
+   {
+      for (EventBatch batch : eventBatches)
+      {
+         if ((batch.mask & type) != 0)
          {
-            float x2 = (int)(PHOTON_DETECTOR_X + (PHOTON_DETECTOR_WIDTH * (float)i));
-            if ((photon.x >= x2) && (photon.x < (x2 + PHOTON_DETECTOR_WIDTH)))
+            batch.events[batch.count].set(type, source, photon, x, y, angle, detector, counter);
+            batch.count++;
+            if ((batch.count == batch.events.length) ||
+                ((System.nanoTime() - batch.lastDelivery) >= batch.maxNanos))
             {
-               photonCounters[i]++;
-               return(i);
+               deliver(batch);
             }
          }
-         return(-1);
       }
+   }
 
 
-      // Print photon counts.
-      public void printCounts(String photonDetectorCountsFilename)
+   // Deliver pending events of all listeners.
+   public synchronized void flushEvents()
+   {
+      for (EventBatch batch : eventBatches)
       {
-         PrintWriter writer = new PrintWriter(System.out);
+         deliver(batch);
+      }
+   }
 
-         if (photonDetectorCountsFilename != null)
+
+   void deliver(EventBatch batch)
+   {
+      if (batch.count > 0)
+      {
+         batch.listener.scannerEvents(this, batch.events, batch.count);
+         batch.count = 0;
+      }
+      batch.lastDelivery = System.nanoTime();
+   }
+
+
+   // Notify client of status.
+   public void notifyClient()
+   {
+      if (notifier != null)
+      {
+         notifier.scannerStatus(this);
+      }
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int     steps                        = -1;
+      String  parameterFilename            = null;
+      String  photonDetectorCountsFilename = null;
+      String  wavelengthCountsFilename     = null;
+      boolean printParms                   = false;
+      String  profileFilename              = null;
+      int     profileInterval              = -1;
+      boolean printThroughput              = false;
+      long    randomSeed                   = -1;
+      boolean randomSeedGiven              = false;
+      String  engine                       = SCALAR_ENGINE;
+      float   roulette                     = -1.0f;
+      int     rouletteWeight               = DEFAULT_ROULETTE_WEIGHT;
+      int     threads                      = 1;
+      String  fluenceFilename              = null;
+      float   fluenceCellSize              = FluenceMap.DEFAULT_CELL_SIZE;
+      String  photonLogPredicate           = null;
+      String  photonLogFilename            = null;
+      int     replaySource                 = -1;
+      long    replayPhoton                 = -1;
+      String  replayFilename               = null;
+
+      // Get arguments.
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-steps"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (steps >= 0)
+            {
+               System.err.println("Duplicate steps");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            steps = Integer.parseInt(args[i]);
+            if (steps < 0)
+            {
+               System.err.println("Invalid steps");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-parameterFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (parameterFilename != null)
+            {
+               System.err.println("Duplicate parameterFilename");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            parameterFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-photonDetectorCountsFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (photonDetectorCountsFilename != null)
+            {
+               System.err.println("Duplicate photonDetectorCountsFile");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            photonDetectorCountsFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-wavelengthCountsFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            wavelengthCountsFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-profileFile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (profileFilename != null)
+            {
+               System.err.println("Duplicate profileFile");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            profileFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-profileInterval"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (profileInterval >= 0)
+            {
+               System.err.println("Duplicate profileInterval");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            profileInterval = Integer.parseInt(args[i]);
+            if (profileInterval <= 0)
+            {
+               System.err.println("Invalid profileInterval");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-printParameters"))
+         {
+            printParms = true;
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            randomSeed      = Long.parseLong(args[i]);
+            randomSeedGiven = true;
+            continue;
+         }
+         if (args[i].equals("-engine"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            engine = args[i];
+            if (getEngine(engine) == null)
+            {
+               System.err.println("Invalid engine");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-roulette"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            roulette = Float.parseFloat(args[i]);
+            if (roulette < 0.0f)
+            {
+               System.err.println("Invalid roulette");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-rouletteWeight"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            rouletteWeight = Integer.parseInt(args[i]);
+            if (rouletteWeight < 2)
+            {
+               System.err.println("Invalid rouletteWeight");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-threads"))
          {
-            FileOutputStream file = null;
-            try
+            i++;
+            if (i == args.length)
             {
-               file = new FileOutputStream(new File(photonDetectorCountsFilename));
+               System.err.println(Usage);
+               System.exit(1);
             }
-            catch (Exception e)
+            threads = Integer.parseInt(args[i]);
+            if (threads < 0)
             {
-               System.err.println("Cannot open photon detector counts file " + photonDetectorCountsFilename + ":" + e.getMessage());
+               System.err.println("Invalid threads");
+               System.err.println(Usage);
+               System.exit(1);
             }
-            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(file)));
-         }
-         String extension = "";
-         int    i         = photonDetectorCountsFilename.lastIndexOf('.');
-         if (i > 0)
-         {
-            extension = photonDetectorCountsFilename.substring(i + 1);
-         }
-         if (extension.equals("csv"))
-         {
-            for (i = 0; i < NUM_PHOTON_COUNTERS; i++)
+            if (threads == 0)
             {
-               writer.print(photonCounters[i] + "");
-               if (i < NUM_PHOTON_COUNTERS - 1)
-               {
-                  writer.print(",");
-               }
-               else
-               {
-                  writer.println();
-               }
+               threads = Runtime.getRuntime().availableProcessors();
             }
+            continue;
          }
-         else
+         if (args[i].equals("-fluenceFile"))
          {
-            writer.println("Photon counts:");
-            for (i = 0; i < NUM_PHOTON_COUNTERS; i++)
+            i++;
+            if (i == args.length)
             {
-               writer.println(i + ": " + photonCounters[i]);
+               System.err.println(Usage);
+               System.exit(1);
             }
+            if (fluenceFilename != null)
+            {
+               System.err.println("Duplicate fluenceFile");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            fluenceFilename = args[i];
+            continue;
          }
-         writer.flush();
-         if (photonDetectorCountsFilename != null)
-         {
-            writer.close();
-         }
-      }
-   }
-
-   // Nevus.
-   public class Nevus
-   {
-      Ellipse2D.Float shape;
-
-      // Constructor.
-      public Nevus()
-      {
-         float epidermisY = EPIDERMIS_THICKNESS + DERMIS_THICKNESS;
-
-         shape = new Ellipse2D.Float(NEVUS_X, epidermisY - NEVUS_EPIDERMIS_DEPTH, NEVUS_WIDTH, NEVUS_HEIGHT);
-      }
-
-
-      // Contains point?
-      public boolean contains(Point2D.Float p)
-      {
-         Ellipse2D.Float s = (Ellipse2D.Float)nevus.shape.clone();
-         s.y -= s.height;
-         return(s.intersects(p.x - PHOTON_RADIUS, p.y - PHOTON_RADIUS,
-                             PHOTON_RADIUS * 2.0f, PHOTON_RADIUS * 2.0f));
-      }
-
-
-      // Reset.
-      public void reset()
-      {
-         shape.x = NEVUS_X;
-      }
-   }
-
-   // Components.
-   public PhotonSource   photonSource;
-   public PhotonDetector photonDetector;
-   public Nevus          nevus;
-
-   // Client status notification.
-   public SkinSeerSimNotifier notifier;
-
-   // Constructors.
-   public SkinSeerSim()
-   {
-      // Create components.
-      photonSource   = new PhotonSource();
-      photonDetector = new PhotonDetector();
-      nevus          = new Nevus();
-      notifier       = null;
-   }
-
-
-   public SkinSeerSim(SkinSeerSimNotifier notifier)
-   {
-      // Create components.
-      photonSource   = new PhotonSource();
-      photonDetector = new PhotonDetector();
-      nevus          = new Nevus();
-      this.notifier  = notifier;
-   }
-
-
-   // Reset.
-   public void reset()
-   {
-      photonSource.clearPhoton();
-      photonDetector.reset();
-      nevus.reset();
-   }
-
-
-   // Step.
-   // Return false if nevus out of photon range.
-   public boolean step()
-   {
-      // Nevus out of range?
-      if ((nevus.shape.x) >= (float)SCANNER_WIDTH)
-      {
-         notifyClient();
-         return(false);
-      }
-
-      // Emit photons.
-      for (int i = 0; i < PHOTON_EMISSION_RATE; i++)
-      {
-         // Update photon.
-         while (photonSource.updatePhoton())
-         {
-            notifyClient();
-         }
-         notifyClient();
-      }
-
-      // Move scanner.
-      nevus.shape.x += SCANNER_SPEED;
-      notifyClient();
-      return(true);
-   }
-
-
-   // Notify client of status.
-   public void notifyClient()
-   {
-      if (notifier != null)
-      {
-         notifier.scannerStatus(this);
-      }
-   }
-
-
-   // Main.
-   public static void main(String[] args)
-   {
-      int     steps                        = -1;
-      String  parameterFilename            = null;
-      String  photonDetectorCountsFilename = null;
-      boolean printParms                   = false;
-
-      // Get arguments.
-      for (int i = 0; i < args.length; i++)
-      {
-         if (args[i].equals("-steps"))
+         if (args[i].equals("-fluenceCellSize"))
          {
             i++;
             if (i == args.length)
@@ -669,22 +2869,33 @@ public class SkinSeerSim
                System.err.println(Usage);
                System.exit(1);
             }
-            if (steps >= 0)
+            fluenceCellSize = Float.parseFloat(args[i]);
+            if (fluenceCellSize <= 0.0f)
             {
-               System.err.println("Duplicate steps");
+               System.err.println("Invalid fluenceCellSize");
                System.err.println(Usage);
                System.exit(1);
             }
-            steps = Integer.parseInt(args[i]);
-            if (steps < 0)
+            continue;
+         }
+         if (args[i].equals("-compressThreads"))
+         {
+            i++;
+            if (i == args.length)
             {
-               System.err.println("Invalid steps");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            BlockGzipOutputStream.compressThreads = Integer.parseInt(args[i]);
+            if (BlockGzipOutputStream.compressThreads <= 0)
+            {
+               System.err.println("Invalid compressThreads");
                System.err.println(Usage);
                System.exit(1);
             }
             continue;
          }
-         if (args[i].equals("-parameterFile"))
+         if (args[i].equals("-photonLog"))
          {
             i++;
             if (i == args.length)
@@ -692,16 +2903,21 @@ public class SkinSeerSim
                System.err.println(Usage);
                System.exit(1);
             }
-            if (parameterFilename != null)
+            photonLogPredicate = args[i];
+            continue;
+         }
+         if (args[i].equals("-photonLogFile"))
+         {
+            i++;
+            if (i == args.length)
             {
-               System.err.println("Duplicate parameterFilename");
                System.err.println(Usage);
                System.exit(1);
             }
-            parameterFilename = args[i];
+            photonLogFilename = args[i];
             continue;
          }
-         if (args[i].equals("-photonDetectorCountsFile"))
+         if (args[i].equals("-replayPhoton"))
          {
             i++;
             if (i == args.length)
@@ -709,18 +2925,37 @@ public class SkinSeerSim
                System.err.println(Usage);
                System.exit(1);
             }
-            if (photonDetectorCountsFilename != null)
+            String[] id = args[i].split(":");
+            if (id.length != 2)
             {
-               System.err.println("Duplicate photonDetectorCountsFile");
+               System.err.println("Invalid replayPhoton");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            replaySource = Integer.parseInt(id[0]);
+            replayPhoton = Long.parseLong(id[1]);
+            if ((replaySource < 0) || (replayPhoton < 0))
+            {
+               System.err.println("Invalid replayPhoton");
                System.err.println(Usage);
                System.exit(1);
             }
-            photonDetectorCountsFilename = args[i];
             continue;
          }
-         if (args[i].equals("-printParameters"))
+         if (args[i].equals("-replayFile"))
          {
-            printParms = true;
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            replayFilename = args[i];
+            continue;
+         }
+         if (args[i].equals("-throughput"))
+         {
+            printThroughput = true;
             continue;
          }
          if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
@@ -759,15 +2994,166 @@ public class SkinSeerSim
          System.err.println(Usage);
          System.exit(1);
       }
+      if ((wavelengthCountsFilename != null) && (WAVELENGTHS.size() == 0))
+      {
+         System.err.println("wavelengthCountsFile requires WAVELENGTH_<n>_* parameters");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((profileInterval != -1) && (profileFilename == null))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (profileInterval == -1)
+      {
+         profileInterval = 1;
+      }
+      if (((photonLogPredicate != null) || (replayPhoton != -1)) && !randomSeedGiven)
+      {
+         System.err.println("Photon log and replay require randomSeed");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (((photonLogFilename != null) && (photonLogPredicate == null)) ||
+          ((replayFilename != null) && (replayPhoton == -1)))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      PhotonLog photonLog = null;
+      if (photonLogPredicate != null)
+      {
+         try
+         {
+            photonLog = PhotonLog.parse(photonLogPredicate);
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println(e.getMessage());
+            System.err.println(Usage);
+            System.exit(1);
+         }
+      }
 
       // Create scanner.
       SkinSeerSim scanner = new SkinSeerSim();
+      if (randomSeedGiven)
+      {
+         scanner.setRandomSeed(randomSeed);
+      }
+      scanner.engine  = getEngine(engine);
+      scanner.threads = threads;
+      if (roulette >= 0.0f)
+      {
+         scanner.reachabilityMap   = new ReachabilityMap(scanner);
+         scanner.rouletteThreshold = roulette * (float)scanner.reachabilityMap.meanReachability;
+         scanner.rouletteWeight    = rouletteWeight;
+      }
+      if (fluenceFilename != null)
+      {
+         scanner.setFluenceMap(new FluenceMap(fluenceCellSize));
+      }
+      scanner.photonLog = photonLog;
+
+      // Replay photon?
+      if (replayPhoton != -1)
+      {
+         if (replaySource >= scanner.photonSources.size())
+         {
+            System.err.println("Invalid replayPhoton source");
+            System.exit(1);
+         }
+         if (replayPhoton >= scanner.scanPhotons(steps))
+         {
+            System.err.println("Photon not emitted in a scan of " + steps + " steps");
+            System.exit(1);
+         }
+         PrintWriter writer = openWriter(replayFilename, "replay");
+         scanner.replayPhoton(replaySource, replayPhoton).print(writer);
+         writer.flush();
+         if (replayFilename != null)
+         {
+            writer.close();
+         }
+         System.exit(0);
+      }
+
+      // Create detector count profile?
+      PhotonCountProfile profile = null;
+      if (profileFilename != null)
+      {
+         profile = new PhotonCountProfile(steps, profileInterval,
+                                          scanner.photonDetectors.size() * NUM_PHOTON_COUNTERS);
+      }
 
       // Run.
-      for (int i = 0; i < steps && scanner.step(); i++) {}
+      if (profile != null)
+      {
+         for (int i = 0; i < steps && scanner.step(); i++)
+         {
+            profile.recordStep(scanner);
+         }
+      }
+      else
+      {
+         scanner.run(steps);
+      }
+
+      // Write detector count profile.
+      if (profile != null)
+      {
+         profile.finish(scanner);
+         try
+         {
+            profile.write(profileFilename);
+         }
+         catch (IOException e)
+         {
+            System.err.println("Cannot write profile file " + profileFilename + ":" + e.getMessage());
+            System.exit(1);
+         }
+      }
+
+      // Write fluence map.
+      if (fluenceFilename != null)
+      {
+         scanner.reduceFluence();
+         try
+         {
+            scanner.fluenceMap.write(fluenceFilename);
+         }
+         catch (IOException e)
+         {
+            System.err.println("Cannot write fluence file " + fluenceFilename + ":" + e.getMessage());
+            System.exit(1);
+         }
+      }
+
+      // Write photon log.
+      if (photonLog != null)
+      {
+         PrintWriter writer = openWriter(photonLogFilename, "photon log");
+         PhotonLog.write(writer, scanner);
+         writer.flush();
+         if (photonLogFilename != null)
+         {
+            writer.close();
+         }
+      }
 
       // Print photon detector counts.
-      scanner.photonDetector.printCounts(photonDetectorCountsFilename);
+      scanner.printCounts(photonDetectorCountsFilename);
+      if (wavelengthCountsFilename != null)
+      {
+         scanner.printWavelengthCounts(wavelengthCountsFilename);
+      }
+
+      // Print throughput?
+      if (printThroughput)
+      {
+         scanner.printThroughput();
+      }
 
       System.exit(0);
    }
@@ -5,16 +5,12 @@ package skinseer;
 import java.awt.BorderLayout;
 import java.awt.Button;
 import java.awt.Canvas;
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.Label;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.geom.Ellipse2D;
-import java.awt.geom.Point2D;
+import java.awt.image.BufferStrategy;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
@@ -26,7 +22,7 @@ public class SkinSeerSimDisplay extends JFrame
    private static final long serialVersionUID = 1L;
 
    public static final String Usage = "Usage: java SkinSeerSimDisplay"
-                                      + "\n\t[-parameterFile <file name>] [-printParameters]"
+                                      + "\n\t[-parameterFile <file name>] [-printParameters] [-levelOfDetail (decimated photon traces)]"
                                       + "\n\t[-steps <steps> [-photonDetectorCountsFile <file name>] (otherwise sent to standard output)]";
 
    // Scanner.
@@ -38,182 +34,121 @@ public class SkinSeerSimDisplay extends JFrame
    // Photon detector counts file name.
    String photonDetectorCountsFilename;
 
-   // Photon source display.
-   public class PhotonSourceDisplay
-   {
-      public final Color COLOR = Color.WHITE;
-
-      // Draw source and photon trace.
-      public void draw(Graphics graphics)
-      {
-         graphics.setColor(COLOR);
-         int   d = (int)(SkinSeerSim.PHOTON_SOURCE_RADIUS * 2.0f);
-         float y = (float)SkinSeerSim.SCANNER_HEIGHT - scanner.photonSource.center.y;
-         graphics.fillArc((int)(scanner.photonSource.center.x - SkinSeerSim.PHOTON_SOURCE_RADIUS),
-                          (int)(y - SkinSeerSim.PHOTON_SOURCE_RADIUS), d, d, 180, 180);
-         if (scanner.photonSource.photonTrace != null)
-         {
-            d = (int)(SkinSeerSim.PHOTON_RADIUS * 2.0f);
-            for (Point2D.Float p : scanner.photonSource.photonTrace)
-            {
-               y = (float)SkinSeerSim.SCANNER_HEIGHT - p.y;
-               graphics.fillOval((int)(p.x - SkinSeerSim.PHOTON_RADIUS),
-                                 (int)(y - SkinSeerSim.PHOTON_RADIUS), d, d);
-            }
-         }
-      }
-   }
-
-   // Photon detector display.
-   public class PhotonDetectorDisplay
-   {
-      public final Color COLOR                     = Color.GREEN;
-      public final float HEIGHT_ASPECT             = 0.15f;
-      public final int   PHOTON_COUNTER_SATURATION = 10;
-      public float       width, height, c, y;
-
-      // Constructor.
-      public PhotonDetectorDisplay()
-      {
-         width  = SkinSeerSim.PHOTON_DETECTOR_WIDTH * (float)SkinSeerSim.NUM_PHOTON_COUNTERS;
-         height = width * HEIGHT_ASPECT;
-         c      = height / (float)PHOTON_COUNTER_SATURATION;
-         y      = SkinSeerSim.SCANNER_HEIGHT - height -
-                  SkinSeerSim.EPIDERMIS_THICKNESS - SkinSeerSim.DERMIS_THICKNESS;
-      }
-
-
-      // Draw.
-      public void draw(Graphics graphics)
-      {
-         graphics.setColor(COLOR);
-         for (int i = 0; i < SkinSeerSim.NUM_PHOTON_COUNTERS; i++)
-         {
-            int photonCount = scanner.photonDetector.photonCounters[i];
-            if (photonCount > 0)
-            {
-               if (photonCount > PHOTON_COUNTER_SATURATION)
-               {
-                  photonCount = PHOTON_COUNTER_SATURATION;
-               }
-               float h2 = (int)(c * (float)photonCount);
-               float y2 = y + (height - h2);
-               graphics.fillRect((int)(SkinSeerSim.PHOTON_DETECTOR_X + (SkinSeerSim.PHOTON_DETECTOR_WIDTH * (float)i)), (int)y2,
-                                 (int)SkinSeerSim.PHOTON_DETECTOR_WIDTH, (int)h2);
-            }
-         }
-         for (int i = 0; i < SkinSeerSim.NUM_PHOTON_COUNTERS; i++)
-         {
-            graphics.drawRect((int)(SkinSeerSim.PHOTON_DETECTOR_X + (SkinSeerSim.PHOTON_DETECTOR_WIDTH * (float)i)), (int)y,
-                              (int)SkinSeerSim.PHOTON_DETECTOR_WIDTH, (int)height);
-         }
-      }
-   }
-
-   // Nevus display.
-   public class NevusDisplay
-   {
-      public final Color COLOR = new Color(139, 0, 0);
-
-      // Draw.
-      public void draw(Graphics graphics)
-      {
-         if (SkinSeerSim.NEVUS_VALID)
-         {
-            graphics.setColor(COLOR);
-            Ellipse2D.Float shape = scanner.nevus.shape;
-            float           y     = (float)SkinSeerSim.SCANNER_HEIGHT - shape.y;
-            graphics.fillOval((int)shape.x, (int)y, (int)shape.width, (int)shape.height);
-         }
-      }
-   }
+   // Draw photon traces as decimated polylines?
+   boolean levelOfDetail;
 
    // Scanner display.
+   // The simulation thread steps the scanner and publishes immutable
+   // snapshots at most once per frame; the render thread draws the
+   // latest snapshot with a buffer strategy at the target frame rate,
+   // so drawing does not slow the simulation.
    public class ScannerDisplay extends Canvas implements SkinSeerSimNotifier, Runnable
    {
       private static final long serialVersionUID = 1L;
 
-      // Components.
-      public PhotonSourceDisplay   photonSourceDisplay;
-      public PhotonDetectorDisplay photonDetectorDisplay;
-      public NevusDisplay          nevusDisplay;
+      // Renderer.
+      public ScanRenderer renderer;
+      public int          step;
 
-      public final Color EPIDERMIS_COLOR = new Color(255, 205, 148);
-      public final Color DERMIS_COLOR    = new Color(255, 173, 96);
-      public float       epidermisY;
-      public float       dermisY;
-      public int         step;
+      // Target frame rate.
+      public static final int FRAME_RATE = 30;
 
-      // Display update frequency (ms).
+      // Display update frequency when stopped (ms).
       public static final int DISPLAY_DELAY = 50;
 
-      // Buffered display.
-      Graphics graphics;
-      Image    image;
-      Graphics imageGraphics;
+      // Scanner updates between snapshot publication checks at full speed.
+      public static final int SNAPSHOT_CHECK_UPDATES = 64;
+
+      // Photon trace decimators for level of detail (null for full detail).
+      TraceDecimator[] decimators;
 
-      // Message and font.
-      String      message;
-      Font        font = new Font("Helvetica", Font.BOLD, 12);
-      FontMetrics fontMetrics;
-      int         fontAscent;
-      int         fontWidth;
-      int         fontHeight;
+      // Latest snapshot, next publication time and updates since last check.
+      volatile ScanSnapshot snapshot;
+      long                  nextSnapshotTime;
+      int                   updates;
 
-      // Display thread.
+      // Reset requested by controls.
+      volatile boolean resetRequested;
+
+      // Simulation and render threads.
       private Thread thread;
+      private Thread renderThread;
 
       // Constructor.
       public ScannerDisplay()
       {
          setSize(SkinSeerSim.SCANNER_WIDTH, SkinSeerSim.SCANNER_HEIGHT);
-         photonSourceDisplay   = new PhotonSourceDisplay();
-         photonDetectorDisplay = new PhotonDetectorDisplay();
-         nevusDisplay          = new NevusDisplay();
-         epidermisY            = SkinSeerSim.SCANNER_HEIGHT -
-                                 (SkinSeerSim.EPIDERMIS_THICKNESS + SkinSeerSim.DERMIS_THICKNESS);
-         dermisY = SkinSeerSim.SCANNER_HEIGHT - SkinSeerSim.DERMIS_THICKNESS;
-         step    = 0;
+         setIgnoreRepaint(true);
+         renderer         = new ScanRenderer();
+         step             = 0;
+         snapshot         = null;
+         nextSnapshotTime = 0;
+         updates          = 0;
+         resetRequested   = false;
       }
 
 
       // Start.
       public void start()
       {
-         // Set graphics and font.
-         graphics      = getGraphics();
-         image         = createImage(SkinSeerSim.SCANNER_WIDTH, SkinSeerSim.SCANNER_HEIGHT);
-         imageGraphics = image.getGraphics();
-         graphics.setFont(font);
-         imageGraphics.setFont(font);
-         fontMetrics = graphics.getFontMetrics();
-         fontAscent  = fontMetrics.getMaxAscent();
-         fontWidth   = fontMetrics.getMaxAdvance();
-         fontHeight  = fontMetrics.getHeight();
-
-         // Start thread.
+         createBufferStrategy(2);
+
+         // Create photon trace decimators?
+         if (levelOfDetail)
+         {
+            decimators = new TraceDecimator[scanner.photonSources.size()];
+            for (int i = 0; i < decimators.length; i++)
+            {
+               decimators[i] = new TraceDecimator();
+            }
+         }
+
+         // Start render thread.
+         renderThread = new Thread(new Runnable()
+                                   {
+                                      public void run()
+                                      {
+                                         render();
+                                      }
+                                   }
+                                   );
+         renderThread.setDaemon(true);
+         renderThread.start();
+
+         // Start simulation thread.
          thread = new Thread(this);
          thread.setPriority(Thread.MIN_PRIORITY);
          thread.start();
       }
 
 
-      // Run.
+      // Run simulation.
       public void run()
       {
          boolean active = true;
 
+         publish();
          while (Thread.currentThread() == thread)
          {
-            drawStep();
+            // Reset?
+            if (resetRequested)
+            {
+               resetRequested = false;
+               scanner.reset();
+               step   = 0;
+               active = true;
+               publish();
+            }
 
             // Steps completed?
             if ((steps != -1) && (step >= steps))
             {
+               publish();
+
                // Print photon detector counts?
                if (photonDetectorCountsFilename != null)
                {
-                  scanner.photonDetector.printCounts(photonDetectorCountsFilename);
+                  scanner.printCounts(photonDetectorCountsFilename);
                }
                System.exit(0);
             }
@@ -224,111 +159,107 @@ public class SkinSeerSimDisplay extends JFrame
                active = scanner.step();
                step++;
             }
+            else
+            {
+               publish();
+               try
+               {
+                  Thread.sleep(DISPLAY_DELAY);
+               }
+               catch (InterruptedException e) {}
+            }
+         }
+      }
+
+
+      // Publish snapshot.
+      void publish()
+      {
+         if (decimators != null)
+         {
+            snapshot = new ScanSnapshot(scanner, step, decimators);
+         }
+         else
+         {
+            snapshot = new ScanSnapshot(scanner, step);
          }
+         nextSnapshotTime = System.nanoTime() + (1000000000L / FRAME_RATE);
       }
 
 
-      // Draw step.
-      void drawStep()
+      // Render loop.
+      void render()
       {
+         long frameNanos = 1000000000L / FRAME_RATE;
+
          while (true)
          {
-            try
+            long         start   = System.nanoTime();
+            ScanSnapshot current = snapshot;
+            if (current != null)
             {
+               String message;
                if (steps != -1)
                {
-                  setMessage("step=" + step + " / " + steps);
+                  message = "step=" + current.step + " / " + steps;
                }
                else
                {
-                  setMessage("step=" + step);
+                  message = "step=" + current.step;
                }
-               draw();
-               if (controls.delay == Controls.MAX_DELAY)
+               BufferStrategy strategy = getBufferStrategy();
+               do
                {
-                  Thread.sleep(DISPLAY_DELAY);
-               }
-               else
-               {
-                  int t = 0;
-                  while (t < controls.delay && controls.delay < Controls.MAX_DELAY)
-                  {
-                     int t2 = controls.delay - t;
-                     if (t2 > DISPLAY_DELAY)
-                     {
-                        t2 = DISPLAY_DELAY;
-                     }
-                     Thread.sleep(t2);
-                     t += t2;
-                     draw();
-                  }
-                  if (controls.delay < Controls.MAX_DELAY)
+                  do
                   {
-                     break;
-                  }
+                     Graphics graphics = strategy.getDrawGraphics();
+                     renderer.draw(graphics, current, message);
+                     graphics.dispose();
+                  } while (strategy.contentsRestored());
+                  strategy.show();
+               } while (strategy.contentsLost());
+               Toolkit.getDefaultToolkit().sync();
+            }
+            long sleep = (frameNanos - (System.nanoTime() - start)) / 1000000L;
+            if (sleep > 0)
+            {
+               try
+               {
+                  Thread.sleep(sleep);
                }
+               catch (InterruptedException e) {}
             }
-            catch (InterruptedException e) {}
          }
       }
 
 
-      // Draw display.
-      void draw()
-      {
-         // Clear display.
-         imageGraphics.setColor(Color.BLACK);
-         imageGraphics.fillRect(0, 0, SkinSeerSim.SCANNER_WIDTH, SkinSeerSim.SCANNER_HEIGHT);
-
-         // Draw epidermis and dermis.
-         imageGraphics.setColor(EPIDERMIS_COLOR);
-         imageGraphics.fillRect(0, (int)epidermisY, SkinSeerSim.SCANNER_WIDTH,
-                                (int)SkinSeerSim.EPIDERMIS_THICKNESS);
-         imageGraphics.setColor(DERMIS_COLOR);
-         imageGraphics.fillRect(0, (int)dermisY, SkinSeerSim.SCANNER_WIDTH,
-                                (int)SkinSeerSim.DERMIS_THICKNESS);
-
-         // Draw nevus.
-         nevusDisplay.draw(imageGraphics);
-
-         // Draw photon detector.
-         photonDetectorDisplay.draw(imageGraphics);
-
-         // Draw photon source.
-         photonSourceDisplay.draw(imageGraphics);
-
-         // Draw message.
-         drawMessage();
-
-         // Refresh display.
-         graphics.drawImage(image, 0, 0, this);
-      }
-
-
-      // Set message.
-      public void setMessage(String s)
-      {
-         message = s;
-      }
-
-
-      // Draw message.
-      private void drawMessage()
-      {
-         int w;
-
-         if (message == null) { return; }
-         imageGraphics.setColor(Color.black);
-         w = fontMetrics.stringWidth(message);
-         imageGraphics.setColor(Color.white);
-         imageGraphics.drawString(message, (SkinSeerSim.SCANNER_WIDTH - w) / 2, fontHeight + 4);
-      }
-
-
       // Scanner status callback.
+      // Publishes a snapshot when a frame is due, and paces the
+      // simulation by the control delay unless at full speed.
       public void scannerStatus(SkinSeerSim scanner)
       {
-         drawStep();
+         int delay = controls.delay;
+
+         if (delay <= Controls.MIN_DELAY)
+         {
+            updates++;
+            if (updates < SNAPSHOT_CHECK_UPDATES)
+            {
+               return;
+            }
+            updates = 0;
+            if (System.nanoTime() >= nextSnapshotTime)
+            {
+               publish();
+            }
+            return;
+         }
+         publish();
+         try
+         {
+            Thread.sleep(Math.min(delay, Controls.MAX_DELAY));
+         }
+         catch (InterruptedException e) {}
       }
    }
 
@@ -342,7 +273,8 @@ public class SkinSeerSimDisplay extends JFrame
 
       public final static int CONTROLS_HEIGHT = 75;
 
-      // Simulation speed given as update delay time (ms).
+      // Simulation speed given as update delay time (ms):
+      // full speed at minimum, stopped at maximum.
       public final static int MIN_DELAY = 1;
       public final static int MAX_DELAY = 50;
       public int              delay;
@@ -379,8 +311,7 @@ public class SkinSeerSimDisplay extends JFrame
       // Reset button listener.
       public void actionPerformed(ActionEvent evt)
       {
-         scanner.reset();
-         scannerDisplay.step = 0;
+         scannerDisplay.resetRequested = true;
       }
 
 
@@ -395,10 +326,11 @@ public class SkinSeerSimDisplay extends JFrame
    Controls controls;
 
    // Constructor.
-   public SkinSeerSimDisplay(int steps, String photonDetectorCountsFilename)
+   public SkinSeerSimDisplay(int steps, String photonDetectorCountsFilename, boolean levelOfDetail)
    {
       this.steps = steps;
       this.photonDetectorCountsFilename = photonDetectorCountsFilename;
+      this.levelOfDetail = levelOfDetail;
 
       // Set title.
       setTitle("SkinSeer scanner simulation");
@@ -425,6 +357,12 @@ public class SkinSeerSimDisplay extends JFrame
    }
 
 
+   public SkinSeerSimDisplay(int steps, String photonDetectorCountsFilename)
+   {
+      this(steps, photonDetectorCountsFilename, false);
+   }
+
+
    // Main.
    public static void main(String[] args)
    {
@@ -432,6 +370,7 @@ public class SkinSeerSimDisplay extends JFrame
       String  parameterFilename            = null;
       String  photonDetectorCountsFilename = null;
       boolean printParms                   = false;
+      boolean levelOfDetail                = false;
 
       // Get arguments.
       for (int i = 0; i < args.length; i++)
@@ -481,6 +420,11 @@ public class SkinSeerSimDisplay extends JFrame
             printParms = true;
             continue;
          }
+         if (args[i].equals("-levelOfDetail"))
+         {
+            levelOfDetail = true;
+            continue;
+         }
          if (args[i].equals("-parameterFile"))
          {
             i++;
@@ -531,6 +475,6 @@ public class SkinSeerSimDisplay extends JFrame
       }
 
       @SuppressWarnings("unused")
-      SkinSeerSimDisplay scannerDisplay = new SkinSeerSimDisplay(steps, photonDetectorCountsFilename);
+      SkinSeerSimDisplay scannerDisplay = new SkinSeerSimDisplay(steps, photonDetectorCountsFilename, levelOfDetail);
    }
 }
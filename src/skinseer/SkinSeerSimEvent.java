@@ -0,0 +1,79 @@
+// SkinSeer simulation event.
+// Event objects are reused by the scanner's event batches: listeners
+// must copy what they keep beyond the delivery call.
+
+package skinseer;
+
+public class SkinSeerSimEvent
+{
+   // Event types, as bits of a listener event mask.
+   public static final int PHOTON_EMITTED    = 1;
+   public static final int PHOTON_SCATTERED  = 2;
+   public static final int PHOTON_ABSORBED   = 4;
+   public static final int PHOTON_DETECTED   = 8;
+   public static final int PHOTON_EXITED     = 16;
+   public static final int PHOTON_TERMINATED = 32;
+   public static final int SCANNER_MOVED     = 64;
+   public static final int ALL_EVENTS        = 127;
+
+   // Event type.
+   public int type;
+
+   // Photon source and photon number (photon events).
+   public int  source;
+   public long photon;
+
+   // Photon position, or scan offset in x for scanner moves.
+   public float x;
+   public float y;
+
+   // Photon direction angle (photon events).
+   public double angle;
+
+   // Detector array and counter (detection events), otherwise -1.
+   public int detector;
+   public int counter;
+
+   // Set event.
+   void set(int type, int source, long photon, float x, float y, double angle, int detector, int counter)
+   {
+      this.type     = type;
+      this.source   = source;
+      this.photon   = photon;
+      this.x        = x;
+      this.y        = y;
+      this.angle    = angle;
+      this.detector = detector;
+      this.counter  = counter;
+   }
+
+
+   // Event type name.
+   public static String typeName(int type)
+   {
+      switch (type)
+      {
+      case PHOTON_EMITTED:
+         return("photon emitted");
+
+      case PHOTON_SCATTERED:
+         return("photon scattered");
+
+      case PHOTON_ABSORBED:
+         return("photon absorbed");
+
+      case PHOTON_DETECTED:
+         return("photon detected");
+
+      case PHOTON_EXITED:
+         return("photon exited");
+
+      case PHOTON_TERMINATED:
+         return("photon terminated");
+
+      case SCANNER_MOVED:
+         return("scanner moved");
+      }
+      return("unknown");
+   }
+}
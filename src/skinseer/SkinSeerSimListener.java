@@ -0,0 +1,13 @@
+// SkinSeer simulation event listener interface.
+// Events are delivered in batches; see SkinSeerSim.addListener.
+
+package skinseer;
+
+public interface SkinSeerSimListener
+{
+   // Event types wanted, as a mask of SkinSeerSimEvent types.
+   public int eventMask();
+
+   // Deliver events[0..count-1].
+   public void scannerEvents(SkinSeerSim scanner, SkinSeerSimEvent[] events, int count);
+}
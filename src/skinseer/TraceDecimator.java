@@ -0,0 +1,136 @@
+// Photon trace decimator.
+// Level-of-detail polyline of a source's photon trace, built
+// incrementally as points are appended: a point is kept only if it is at
+// least the tolerance from the last kept point. Starting at the photon
+// radius, kept points overlap on the display anyway. When the kept
+// points reach the maximum the tolerance is doubled and the kept points
+// thinned again, so the polyline, and the cost of copying and drawing
+// it, stays bounded however long the trace grows.
+
+package skinseer;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+
+public class TraceDecimator
+{
+   // Default maximum kept points.
+   public static final int DEFAULT_MAX_POINTS = 1024;
+
+   // Trace being decimated and points of it consumed.
+   ArrayList<Point2D.Float> trace;
+   int                      consumed;
+
+   // Kept points.
+   public float[] x;
+   public float[] y;
+   public int     count;
+
+   // Tolerance.
+   public float baseTolerance;
+   public float tolerance;
+
+   // Constructors.
+   public TraceDecimator(float baseTolerance, int maxPoints)
+   {
+      this.baseTolerance = baseTolerance;
+      tolerance          = baseTolerance;
+      x                  = new float[maxPoints];
+      y                  = new float[maxPoints];
+      count              = 0;
+      trace              = null;
+      consumed           = 0;
+   }
+
+
+   public TraceDecimator()
+   {
+      this(SkinSeerSim.PHOTON_RADIUS, DEFAULT_MAX_POINTS);
+   }
+
+
+   // Update with trace, consuming points appended since the last update.
+   // A different trace (a new photon) restarts the polyline.
+   public void update(ArrayList<Point2D.Float> photonTrace)
+   {
+      if (photonTrace != trace)
+      {
+         trace     = photonTrace;
+         consumed  = 0;
+         count     = 0;
+         tolerance = baseTolerance;
+      }
+      if (trace == null)
+      {
+         return;
+      }
+      int size = trace.size();
+      for ( ; consumed < size; consumed++)
+      {
+         Point2D.Float p = trace.get(consumed);
+         append(p.x, p.y);
+      }
+   }
+
+
+   // Append point.
+   void append(float px, float py)
+   {
+      if (count > 0)
+      {
+         float dx = px - x[count - 1];
+         float dy = py - y[count - 1];
+         if (((dx * dx) + (dy * dy)) < (tolerance * tolerance))
+         {
+            return;
+         }
+      }
+      if (count == x.length)
+      {
+         coarsen();
+      }
+      x[count] = px;
+      y[count] = py;
+      count++;
+   }
+
+
+   // Double tolerance and thin kept points.
+   void coarsen()
+   {
+      tolerance *= 2.0f;
+      int n = 1;
+      for (int i = 1; i < count; i++)
+      {
+         float dx = x[i] - x[n - 1];
+         float dy = y[i] - y[n - 1];
+         if (((dx * dx) + (dy * dy)) >= (tolerance * tolerance))
+         {
+            x[n] = x[i];
+            y[n] = y[i];
+            n++;
+         }
+      }
+      if (n == count)
+      {
+         n = count / 2;
+         for (int i = 1; i < n; i++)
+         {
+            x[i] = x[i * 2];
+            y[i] = y[i * 2];
+         }
+      }
+      count = n;
+   }
+
+
+   // Current trace head, or null if none.
+   public Point2D.Float head()
+   {
+      if ((trace == null) || (trace.size() == 0))
+      {
+         return(null);
+      }
+      return(trace.get(trace.size() - 1));
+   }
+}
@@ -0,0 +1,21 @@
+// Photon transport engine interface.
+// An engine transports the photons of a run for a photon source (see
+// SkinSeerSim.run), counting detections in the source's counters. The
+// scalar engine, stepping each photon with PhotonSource.updatePhoton, is
+// the reference model. Engines that draw each photon's random numbers in
+// the same order give identical counts; others must be statistically
+// equivalent to it (see EngineCheck). Engines are selected by name (see
+// SkinSeerSim.getEngine).
+
+package skinseer;
+
+public interface TransportEngine
+{
+   // Engine name.
+   public String name();
+
+   // Transport photons of a run for source, a photon source or a worker
+   // copy of one, starting with the given photon of the step at the
+   // source's scan offset.
+   public void transport(SkinSeerSim scanner, SkinSeerSim.PhotonSource source, int firstStepPhoton, long photons);
+}
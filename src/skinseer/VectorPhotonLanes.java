@@ -0,0 +1,75 @@
+// Photon lanes advanced with the Vector API.
+// Requires java --add-modules jdk.incubator.vector; PhotonLanes.create
+// falls back to scalar lanes when the module or this class is not
+// available. Only compiled by the optional work/build_vector step, so
+// the default build does not need the incubator module.
+
+package skinseer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorPhotonLanes extends PhotonLanes
+{
+   static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+   // Status as lane masks.
+   boolean[] exited;
+   boolean[] detected;
+
+   // Constructor.
+   // Lanes are a whole number of vectors.
+   public VectorPhotonLanes(SkinSeerSim scanner, SkinSeerSim.PhotonSource source)
+   {
+      super(scanner, source, SPECIES.loopBound(DEFAULT_NUM_LANES + SPECIES.length() - 1));
+      exited   = new boolean[numLanes];
+      detected = new boolean[numLanes];
+   }
+
+
+   // Advance all lanes one step and set their status.
+   @Override
+   void advance()
+   {
+      FloatVector speed  = FloatVector.broadcast(SPECIES, SkinSeerSim.PHOTON_SPEED);
+      float       width  = (float)SkinSeerSim.SCANNER_WIDTH;
+      float       height = (float)SkinSeerSim.SCANNER_HEIGHT;
+      float       epiY   = source.epidermisY;
+
+      for (int i = 0; i < numLanes; i += SPECIES.length())
+      {
+         FloatVector vdx = FloatVector.fromArray(SPECIES, dx, i);
+         FloatVector vdy = FloatVector.fromArray(SPECIES, dy, i);
+         FloatVector vx  = FloatVector.fromArray(SPECIES, x, i).add(vdx.mul(speed));
+         FloatVector vy  = FloatVector.fromArray(SPECIES, y, i).add(vdy.mul(speed));
+         vx.intoArray(x, i);
+         vy.intoArray(y, i);
+
+         VectorMask<Float> out = vx.compare(VectorOperators.LT, 0.0f)
+                                    .or(vx.compare(VectorOperators.GE, width))
+                                    .or(vy.compare(VectorOperators.LT, 0.0f))
+                                    .or(vy.compare(VectorOperators.GE, height));
+         VectorMask<Float> in = vy.compare(VectorOperators.GT, epiY)
+                                   .and(vdy.compare(VectorOperators.GT, 0.0f))
+                                   .andNot(out);
+         out.intoArray(exited, i);
+         in.intoArray(detected, i);
+         if (out.or(in).anyTrue())
+         {
+            for (int j = i; j < i + SPECIES.length(); j++)
+            {
+               status[j] = exited[j] ? EXITED : (detected[j] ? DETECTED : MOVING);
+            }
+         }
+         else
+         {
+            for (int j = i; j < i + SPECIES.length(); j++)
+            {
+               status[j] = MOVING;
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,76 @@
+// Additional simulation wavelength.
+// Absorption probabilities of the skin layers and nevi at a wavelength
+// other than the reference one of the layer and nevus parameters.
+// Scattering is shared with the reference wavelength, so one photon walk
+// serves all wavelengths (see SkinSeerSim.PhotonSource). Unset
+// probabilities are the reference ones. Where the reference absorbs every
+// photon (probability 1) so must the wavelength; elsewhere it may absorb
+// less, at the cost of noisier counts (see SkinSeerSim.checkWavelengths).
+
+package skinseer;
+
+import java.util.Arrays;
+
+public class Wavelength
+{
+   public String name;
+
+   // Absorption probabilities of layers from the surface downward and
+   // of nevi, NaN if unset.
+   public float[] layerAbsorptionProbability;
+   public float   nevusAbsorptionProbability;
+
+   // Constructor.
+   public Wavelength(String name)
+   {
+      this.name                  = name;
+      layerAbsorptionProbability = new float[0];
+      nevusAbsorptionProbability = Float.NaN;
+   }
+
+
+   // Set absorption probability of layer n from the surface downward.
+   public void setLayerAbsorptionProbability(int n, float probability)
+   {
+      if (n >= layerAbsorptionProbability.length)
+      {
+         int length = layerAbsorptionProbability.length;
+         layerAbsorptionProbability = Arrays.copyOf(layerAbsorptionProbability, n + 1);
+         Arrays.fill(layerAbsorptionProbability, length, n + 1, Float.NaN);
+      }
+      layerAbsorptionProbability[n] = probability;
+   }
+
+
+   // Absorption probability of layer n from the surface downward, or the
+   // reference probability if unset.
+   public float getLayerAbsorptionProbability(int n, float reference)
+   {
+      if ((n >= layerAbsorptionProbability.length) || Float.isNaN(layerAbsorptionProbability[n]))
+      {
+         return(reference);
+      }
+      return(layerAbsorptionProbability[n]);
+   }
+
+
+   // Absorption probability of nevi, or the reference probability if unset.
+   public float getNevusAbsorptionProbability(float reference)
+   {
+      return(Float.isNaN(nevusAbsorptionProbability) ? reference : nevusAbsorptionProbability);
+   }
+
+
+   // Ratio of survival probabilities of an absorption test at this and
+   // the reference wavelength: the weight factor of a surviving photon.
+   // Above 1 for a probability below the reference one (0 if the
+   // reference is 1: no photon survives to carry the weight).
+   public static double survivalRatio(float probability, float reference)
+   {
+      if (reference >= 1.0f)
+      {
+         return(0.0);
+      }
+      return((1.0 - (double)probability) / (1.0 - (double)reference));
+   }
+}
@@ -0,0 +1,54 @@
+// Sample allocation check.
+// Generates samples of a fixed configuration in process, without output,
+// and fails if the median bytes allocated per sample of any distribution
+// exceed the limit: steady-state samples reuse the scanner and buffers,
+// so they should allocate (almost) nothing (see GenClassificationData).
+// Run with check_allocation.sh from this directory.
+
+import skinseer.GenClassificationData;
+import skinseer.LogHistogram;
+
+public class AllocationCheck
+{
+   // Samples, and the default allowed median allocated bytes per sample.
+   public static final int  SAMPLES       = 400;
+   public static final long DEFAULT_LIMIT = 8192;
+
+   public static void main(String[] args)
+   {
+      long limit = (args.length > 0) ? Long.parseLong(args[0]) : DEFAULT_LIMIT;
+
+      // A simulated and a pooled distribution.
+      GenClassificationData generator = new GenClassificationData(new String[] {
+            "-datasetSize", Integer.toString(SAMPLES), "-steps", "300",
+            "-parameterFile", "parameters.txt", "-randomSeed", "1", "-datasetFilename", "-",
+            "-nevusDistribution", "60", "5", "60", "5", "20", "2", ".5",
+            "-nevusDistribution", "60", "0", "120", "0", "20", "0", ".5"
+         });
+      generator.init();
+      int[] photonCounters = new int[generator.numCounters];
+      for (int i = 0; i < SAMPLES; i++)
+      {
+         generator.generateSample(i, photonCounters);
+      }
+
+      boolean passed = true;
+      for (int n = 0; n < generator.sampleBytes.length; n++)
+      {
+         LogHistogram bytes = generator.sampleBytes[n];
+         if (bytes.totalCount == 0)
+         {
+            System.err.println("Sample allocation not measurable");
+            System.exit(1);
+         }
+         long median = bytes.percentile(50.0);
+         System.out.println("distribution " + n + ": median sample allocation " + median + " bytes");
+         if (median > limit)
+         {
+            System.err.println("Distribution " + n + " median sample allocation exceeds " + limit + " bytes");
+            passed = false;
+         }
+      }
+      System.exit(passed ? 0 : 1);
+   }
+}
@@ -1,3 +1,5 @@
 
-javac -d . ../src/skinseer/*.java
+dir /b /s ..\src\skinseer\*.java | findstr /v VectorPhotonLanes > sources.txt
+javac -d . @sources.txt
+del sources.txt
 jar cvfm ../bin/skinseersim.jar skinseersim.mf skinseer
@@ -1,3 +1,3 @@
 #!/bin/bash
-javac -d . ../src/skinseer/*.java
+javac -d . $(ls ../src/skinseer/*.java | grep -v VectorPhotonLanes)
 jar cvfm ../bin/skinseersim.jar skinseersim.mf skinseer
@@ -0,0 +1,3 @@
+
+javac --add-modules jdk.incubator.vector -cp . -d . ../src/skinseer/VectorPhotonLanes.java
+jar uvf ../bin/skinseersim.jar skinseer/VectorPhotonLanes.class
@@ -0,0 +1 @@
+java -cp ../bin/skinseersim.jar AllocationCheck.java $*
@@ -0,0 +1 @@
+java -cp ../bin/skinseersim.jar skinseer.ScanFrameRenderer %*
\ No newline at end of file
@@ -0,0 +1 @@
+java -cp ../bin/skinseersim.jar skinseer.ScanFrameRenderer $*